@@ -0,0 +1,194 @@
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * BlockSignature describes the copy of a file a server holds as a list of
+ * fixed size blocks, each with a weak rolling checksum and a strong hash. A
+ * sender holding a newer version of the file slides a window over it and
+ * finds blocks the server already holds by their weak checksum, confirmed by
+ * their strong hash, so that only data around the changes is sent.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class BlockSignature implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// blocks grow with the square root of file size within these bounds
+	static final int MIN_BLOCK = 2 * 1024;
+	static final int MAX_BLOCK = 128 * 1024;
+
+	private long size;
+	private int blockSize;
+	private int blocks;
+	private int[] weak;
+	private long[] strong;
+
+	// blocks by weak checksum, built by the sender on first lookup
+	private transient HashMap<Integer, ArrayList<Integer>> index;
+
+	/**
+	 * Create an empty signature of a file, blocks being added in order
+	 * 
+	 * @param size
+	 *            : size of the file
+	 */
+	public BlockSignature(long size) {
+		this.size = size;
+		blockSize = (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Long.highestOneBit((long) Math.sqrt(size))));
+		int count = (int) ((size + blockSize - 1) / blockSize);
+		weak = new int[count];
+		strong = new long[count];
+	}
+
+	/**
+	 * Add the next block of the file
+	 * 
+	 * @param data
+	 *            : buffer holding the block
+	 * @param length
+	 *            : length of the block, shorter than block size for the last
+	 *            block only
+	 */
+	public void addBlock(byte[] data, int length) {
+		weak[blocks] = weakChecksum(data, 0, length);
+		strong[blocks] = strongChecksum(data, 0, length);
+		blocks++;
+	}
+
+	/**
+	 * Return size of the file
+	 * 
+	 * @return
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Return size of the blocks of the file
+	 * 
+	 * @return
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Return length of a block, the last block being shorter
+	 * 
+	 * @param block
+	 *            : index of the block
+	 * @return length of the block
+	 */
+	public int getBlockLength(int block) {
+		return (int) Math.min(blockSize, size - (long) block * blockSize);
+	}
+
+	/**
+	 * Find a block of the file with the same content as some data
+	 * 
+	 * @param checksum
+	 *            : weak checksum of the data
+	 * @param data
+	 *            : buffer holding the data
+	 * @param offset
+	 *            : position of the data in buffer
+	 * @param length
+	 *            : length of the data
+	 * @return index of the block, -1 if none matches
+	 */
+	public int find(int checksum, byte[] data, int offset, int length) {
+		if (index == null) {
+			index = new HashMap<>();
+			for (int i = 0; i < blocks; i++) {
+				if (!index.containsKey(weak[i]))
+					index.put(weak[i], new ArrayList<Integer>());
+				index.get(weak[i]).add(i);
+			}
+		}
+
+		ArrayList<Integer> candidates = index.get(checksum);
+		if (candidates == null)
+			return -1;
+		Long hash = null;
+		for (int block : candidates) {
+			if (getBlockLength(block) != length)
+				continue;
+			if (hash == null)
+				hash = strongChecksum(data, offset, length);
+			if (strong[block] == hash)
+				return block;
+		}
+		return -1;
+	}
+
+	/**
+	 * Calculate weak checksum of some data, as two 16 bit sums of its bytes,
+	 * the second one weighted by position
+	 * 
+	 * @param data
+	 *            : buffer holding the data
+	 * @param offset
+	 *            : position of the data in buffer
+	 * @param length
+	 *            : length of the data
+	 * @return weak checksum
+	 */
+	public static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0, b = 0;
+		for (int i = 0; i < length; i++) {
+			a += data[offset + i] & 0xff;
+			b += (length - i) * (data[offset + i] & 0xff);
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Slide the window of a weak checksum by one byte
+	 * 
+	 * @param checksum
+	 *            : weak checksum of the window
+	 * @param out
+	 *            : byte leaving the window
+	 * @param in
+	 *            : byte entering the window
+	 * @param length
+	 *            : length of the window
+	 * @return weak checksum of the window moved by one byte
+	 */
+	public static int roll(int checksum, byte out, byte in, int length) {
+		int a = ((checksum & 0xffff) - (out & 0xff) + (in & 0xff)) & 0xffff;
+		int b = ((checksum >>> 16) - length * (out & 0xff) + a) & 0xffff;
+		return a | (b << 16);
+	}
+
+	/**
+	 * Calculate strong hash of some data, first 64 bits of its MD5 digest
+	 * 
+	 * @param data
+	 *            : buffer holding the data
+	 * @param offset
+	 *            : position of the data in buffer
+	 * @param length
+	 *            : length of the data
+	 * @return strong hash
+	 */
+	public static long strongChecksum(byte[] data, int offset, int length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(data, offset, length);
+			byte[] digest = md5.digest();
+			long hash = 0;
+			for (int i = 0; i < 8; i++)
+				hash = (hash << 8) | (digest[i] & 0xff);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		}
+	}
+}
@@ -0,0 +1,363 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BulkUploader allows a client to upload many files at once. Files are
+ * grouped by the server holding the root node of each of their trees, and
+ * every server is sent a few uploads at a time over one connection, with a
+ * bound on uploads in flight over all servers. Files larger than a chunk are
+ * streamed to the server chunk by chunk instead of being read into memory,
+ * or sent as a delta if the server holds a previous version of them, and
+ * with deduplication only chunks a server does not hold are sent.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class BulkUploader {
+
+	// uploads in flight over all servers and to each server
+	private static final int MAX_THREADS = Integer.getInteger("dht.upload.threads", 16);
+	private static final int PER_SERVER = Integer.getInteger("dht.upload.perServer", 4);
+	private Client client;
+	private AtomicInteger uploaded;
+	private AtomicInteger failed;
+	private AtomicLong bytes;
+
+	public BulkUploader(Client client) {
+		this.client = client;
+		uploaded = new AtomicInteger();
+		failed = new AtomicInteger();
+		bytes = new AtomicLong();
+	}
+
+	/**
+	 * A file to be uploaded to the root node of one of its trees.
+	 */
+	private static class Upload {
+		File file;
+		int tree;
+
+		Upload(File file, int tree) {
+			this.file = file;
+			this.tree = tree;
+		}
+	}
+
+	/**
+	 * Upload all files of a directory, or all files named in a list file with
+	 * one path per line. Relative paths in a list are taken from the lookup
+	 * directory of the client.
+	 * 
+	 * @param path
+	 *            : directory or list file
+	 * @return true if every file is uploaded, false otherwise
+	 */
+	public boolean upload(String path) {
+		File source = new File(path);
+		ArrayList<File> files = new ArrayList<>();
+		try {
+			if (source.isDirectory()) {
+				File[] entries = source.listFiles();
+				if (entries != null)
+					for (File entry : entries)
+						if (entry.isFile())
+							files.add(entry);
+			} else
+				files = readList(source);
+		} catch (IOException e) {
+			System.out.println("Error : Unable to read " + path);
+			return false;
+		}
+		return upload(files);
+	}
+
+	/**
+	 * Read names of files to be uploaded from a list file
+	 * 
+	 * @param list
+	 *            : file with one path per line
+	 * @return files named in the list
+	 * @throws IOException
+	 */
+	private ArrayList<File> readList(File list) throws IOException {
+		ArrayList<File> files = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new FileReader(list));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				File file = new File(line);
+				files.add(file.isAbsolute() ? file : new File(client.getLookupDirectory() + line));
+			}
+		} finally {
+			reader.close();
+		}
+		return files;
+	}
+
+	/**
+	 * Upload files to the root node of each of their trees.
+	 * 
+	 * @param files
+	 *            : files to be uploaded, stored under their own name
+	 * @return true if every file is uploaded, false otherwise
+	 */
+	public boolean upload(ArrayList<File> files) {
+
+		// group uploads by server holding the root node, a file being sent
+		// once to a server holding root nodes of several of its trees
+		HashMap<String, ConcurrentLinkedQueue<Upload>> queues = new HashMap<>();
+		HashMap<String, File> names = new HashMap<>();
+		int uploads = 0;
+		for (File file : files) {
+			File listed = names.get(file.getName());
+			if (listed != null) {
+				if (!listed.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+					System.out.println("@Client - '" + file.getName() + "' listed twice, " + file + " skipped.");
+					failed.incrementAndGet();
+				}
+				continue;
+			}
+			names.put(file.getName(), file);
+
+			HashSet<String> hosts = new HashSet<>();
+			for (int tree = 0; tree < ServerTable.TREES; tree++) {
+				String hostName = client.getHost(file.getName(), tree, "00");
+				if (!hosts.add(hostName))
+					continue;
+				if (!queues.containsKey(hostName))
+					queues.put(hostName, new ConcurrentLinkedQueue<Upload>());
+				queues.get(hostName).add(new Upload(file, tree));
+				uploads++;
+			}
+		}
+
+		System.out.println("@Client - Uploading " + names.size() + " file(s) to " + queues.size() + " server(s), "
+				+ uploads + " upload(s) in all.");
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(MAX_THREADS);
+		for (Map.Entry<String, ConcurrentLinkedQueue<Upload>> entry : queues.entrySet()) {
+			final String hostName = entry.getKey();
+			final ConcurrentLinkedQueue<Upload> queue = entry.getValue();
+			for (int i = 0; i < Math.min(PER_SERVER, queue.size()); i++) {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						drain(hostName, queue);
+					}
+				});
+			}
+		}
+
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("@Client - %d upload(s) done, %d failed, %.1f MB in %.1fs (%.1f MB/s)",
+				uploaded.get(), failed.get(), bytes.get() / 1e6, seconds, bytes.get() / 1e6 / seconds));
+		return failed.get() == 0;
+	} // upload
+
+	/**
+	 * Upload files queued for one server until the queue is empty
+	 * 
+	 * @param hostName
+	 *            : server holding the root node of these files
+	 * @param queue
+	 *            : files to be uploaded to this server
+	 */
+	private void drain(String hostName, ConcurrentLinkedQueue<Upload> queue) {
+		S2CInterface server;
+		try {
+			server = client.getServer(hostName);
+		} catch (MalformedURLException | RemoteException | NotBoundException e) {
+			System.out.println("@Client - Unable to reach : " + hostName);
+			while (queue.poll() != null)
+				failed.incrementAndGet();
+			return;
+		}
+
+		Upload upload;
+		while ((upload = queue.poll()) != null) {
+			try {
+				if (Client.DEDUP) {
+					if (!sendDeduplicated(server, upload.file, upload.tree))
+						throw new IOException("Server failed to store file");
+				} else if (upload.file.length() <= Chunk.SIZE)
+					sendFile(server, upload.file, upload.tree);
+				else if (!sendDelta(server, upload.file, upload.tree))
+					streamFile(server, upload.file, upload.tree);
+				uploaded.incrementAndGet();
+				bytes.addAndGet(upload.file.length());
+			} catch (IOException | ServerBusyException e) {
+				System.out.println("@Client - Upload of '" + upload.file.getName() + "' to " + hostName + " failed : "
+						+ e.getMessage());
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Upload a file as content defined chunks, retrying while the server is
+	 * busy. Chunks stored before the server turned busy are not sent again.
+	 * 
+	 * @param server
+	 *            : server holding the root node
+	 * @param file
+	 *            : file to be uploaded
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @return true if the server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 *             if the server stays busy after all attempts
+	 */
+	private boolean sendDeduplicated(S2CInterface server, File file, int tree) throws IOException, ServerBusyException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return Client.sendDeduplicated(server, file, tree);
+			} catch (ServerBusyException e) {
+				if (attempt == Client.MAX_ATTEMPTS)
+					throw e;
+				Client.backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Upload a new version of a large file as a delta against the version the
+	 * server holds, retrying while the server is busy
+	 * 
+	 * @param server
+	 *            : server holding the root node
+	 * @param file
+	 *            : file to be uploaded
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @return true if the server stored the new version, false if the file
+	 *         has to be uploaded whole
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 *             if the server stays busy after all attempts
+	 */
+	private boolean sendDelta(S2CInterface server, File file, int tree) throws IOException, ServerBusyException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return Client.sendDelta(server, file, tree);
+			} catch (ServerBusyException e) {
+				if (attempt == Client.MAX_ATTEMPTS)
+					throw e;
+				Client.backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Upload a small file in one call, as a single chunk
+	 * 
+	 * @param server
+	 *            : server holding the root node
+	 * @param file
+	 *            : file to be uploaded
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 *             if the server stays busy after all attempts
+	 */
+	private void sendFile(S2CInterface server, File file, int tree) throws IOException, ServerBusyException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		sendChunk(server, new Chunk(file.getName(), 0, data, true).compress(), tree);
+	}
+
+	/**
+	 * Upload a large file as a sequence of chunks, reading one chunk at a time
+	 * 
+	 * @param server
+	 *            : server holding the root node
+	 * @param file
+	 *            : file to be uploaded
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 *             if the server stays busy after all attempts
+	 */
+	private void streamFile(S2CInterface server, File file, int tree) throws IOException, ServerBusyException {
+		long size = file.length();
+		String upload = Chunk.newUpload();
+		InputStream input = new FileInputStream(file);
+		try {
+			long offset = 0;
+			while (offset < size) {
+				byte[] data = new byte[(int) Math.min(Chunk.SIZE, size - offset)];
+				int read = 0;
+				while (read < data.length) {
+					int n = input.read(data, read, data.length - read);
+					if (n < 0)
+						throw new IOException("File changed during upload : " + file.getName());
+					read += n;
+				}
+				sendChunk(server, new Chunk(file.getName(), offset, data, offset + data.length == size, upload).compress(),
+						tree);
+				offset += data.length;
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Upload one chunk of a large file
+	 * 
+	 * @param server
+	 *            : server holding the root node
+	 * @param chunk
+	 *            : chunk to be uploaded
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 *             if the server stays busy after all attempts
+	 */
+	private void sendChunk(S2CInterface server, Chunk chunk, int tree) throws IOException, ServerBusyException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (!server.insertChunk(chunk, tree))
+					throw new IOException("Server failed to store chunk at " + chunk.getOffset());
+				return;
+			} catch (ServerBusyException e) {
+				if (attempt == Client.MAX_ATTEMPTS)
+					throw e;
+				Client.backoff(attempt);
+			}
+		}
+	}
+
+} // BulkUploader
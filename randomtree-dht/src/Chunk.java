@@ -0,0 +1,165 @@
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * This class represents a Chunk of file data sent from a server to a client,
+ * or uploaded by a client to a server. Large files and byte range requests
+ * are transferred as a sequence of chunks, each one carrying its position
+ * within the file. Data of a chunk may be sent compressed, and is
+ * decompressed on first access by the receiver. Every chunk carries a CRC32C
+ * checksum of its data, computed by its sender, for the receiver to verify
+ * before storing it.
+ *
+ * @author Anurag Malik, am3926
+ *
+ */
+public class Chunk implements Serializable {
+	private static final long serialVersionUID = 1L;
+	static final int SIZE = 1024 * 1024;
+	private String fileName;
+	private long offset;
+	private byte[] data;
+	private boolean last;
+
+	// identifies the upload this chunk belongs to, so that uploads of a file
+	// running at once are written apart
+	private String upload;
+
+	// data is held compressed, along with its length once decompressed
+	private boolean compressed;
+	private int length;
+	private transient byte[] decompressed;
+	private int checksum;
+
+	public Chunk(String fileName, long offset, byte[] data, boolean last) {
+		this.fileName = fileName;
+		this.offset = offset;
+		this.data = data;
+		this.last = last;
+		this.length = data.length;
+		this.checksum = ChunkChecksums.checksum(data, 0, data.length);
+	}
+
+	public Chunk(String fileName, long offset, byte[] data, boolean last, String upload) {
+		this(fileName, offset, data, last);
+		this.upload = upload;
+	}
+
+	/**
+	 * Return a new identifier for the chunks of an upload
+	 *
+	 * @return identifier of the upload
+	 */
+	public static String newUpload() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Return a copy of this chunk holding its data compressed, for sending
+	 *
+	 * @return compressed chunk, this chunk if its data does not compress
+	 */
+	public Chunk compress() {
+		if (compressed)
+			return this;
+		byte[] packed = Compression.compress(data);
+		if (packed == null)
+			return this;
+		Chunk chunk = new Chunk(fileName, offset, packed, last, upload);
+		chunk.compressed = true;
+		chunk.length = data.length;
+		chunk.decompressed = data;
+		chunk.checksum = checksum;
+		return chunk;
+	}
+
+	/**
+	 * Check data of this chunk against the checksum computed by its sender
+	 *
+	 * @return true if data is intact
+	 */
+	public boolean verify() {
+		try {
+			byte[] data = getData();
+			return data.length == length && ChunkChecksums.checksum(data, 0, data.length) == checksum;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return name of the file this chunk belongs to
+	 *
+	 * @return
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Return identifier of the upload this chunk belongs to
+	 *
+	 * @return identifier, null if the chunk was sent without one
+	 */
+	public String getUpload() {
+		return upload;
+	}
+
+	/**
+	 * Return position of the first byte of this chunk within the file
+	 *
+	 * @return
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Return data of this chunk
+	 *
+	 * @return
+	 */
+	public byte[] getData() {
+		if (!compressed)
+			return data;
+		if (decompressed == null)
+			decompressed = Compression.decompress(data, length);
+		return decompressed;
+	}
+
+	/**
+	 * Return number of bytes of data, without decompressing it
+	 *
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Return number of bytes of data as sent, compressed or not
+	 *
+	 * @return
+	 */
+	public int getEncodedLength() {
+		return data.length;
+	}
+
+	/**
+	 * Check if data of this chunk is sent compressed
+	 *
+	 * @return
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Check if this chunk reaches the end of the file
+	 *
+	 * @return
+	 */
+	public boolean isLast() {
+		return last;
+	}
+}
@@ -0,0 +1,355 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * ChunkChecksums keeps CRC32C checksums of the blocks of a file stored by a
+ * server, computed once when the file is written and kept in a hidden file
+ * next to it. Reads verify only the blocks they touch, so that corruption of
+ * a stored file is found without hashing whole file on every read, and a
+ * corrupt block can be repaired by fetching that block alone from another
+ * copy of the file. CRC32 checksum of whole file, which clients verify
+ * downloads with, is computed in the same pass and kept along with them, so
+ * that it is never calculated again to serve a file. A client resuming a
+ * download sends a checksum made of the checksums of the blocks it holds,
+ * checked against those kept instead of reading the blocks again.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ChunkChecksums {
+
+	// checksums cover blocks of this size, a chunk being a whole number of
+	// blocks
+	static final int BLOCK_SIZE = 64 * 1024;
+	private static final String SUFFIX = ".crc";
+
+	// size and checksum of whole file, followed by checksum of every block
+	private static final int HEADER = 16;
+
+	/**
+	 * Return the hidden file holding checksums of a file
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @return file of its checksums
+	 */
+	public static File getFile(File file) {
+		return new File(file.getParentFile(), "." + file.getName() + SUFFIX);
+	}
+
+	/**
+	 * Calculate CRC32C checksum of some data
+	 * 
+	 * @param data
+	 *            : buffer holding the data
+	 * @param offset
+	 *            : position of the data in buffer
+	 * @param length
+	 *            : length of the data
+	 * @return checksum of the data
+	 */
+	public static int checksum(byte[] data, int offset, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Calculate checksums of the blocks of a file and write them
+	 * 
+	 * @param input
+	 *            : content of the file, closed once read
+	 * @param checksums
+	 *            : file the checksums are written into
+	 * @throws IOException
+	 */
+	public static void write(InputStream input, File checksums) throws IOException {
+		ArrayList<Integer> blocks = new ArrayList<>();
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte[] block = new byte[BLOCK_SIZE];
+		try {
+			int length;
+			while ((length = readBlock(input, block)) > 0) {
+				blocks.add(checksum(block, 0, length));
+				crc.update(block, 0, length);
+				size += length;
+			}
+		} finally {
+			input.close();
+		}
+
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(checksums)));
+		try {
+			output.writeLong(size);
+			output.writeLong(crc.getValue());
+			for (int checksum : blocks)
+				output.writeInt(checksum);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Read a whole block of a stream, shorter at end of stream only
+	 * 
+	 * @param input
+	 *            : stream read
+	 * @param block
+	 *            : buffer of one block
+	 * @return number of bytes read, 0 at end of stream
+	 * @throws IOException
+	 */
+	private static int readBlock(InputStream input, byte[] block) throws IOException {
+		return readBlock(input, block, block.length);
+	}
+
+	/**
+	 * Read bytes of a stream into start of a buffer, fewer at end of stream
+	 * only
+	 * 
+	 * @param input
+	 *            : stream read
+	 * @param block
+	 *            : buffer the bytes are read into
+	 * @param size
+	 *            : number of bytes to be read
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	static int readBlock(InputStream input, byte[] block, int size) throws IOException {
+		int length = 0;
+		while (length < size) {
+			int read = input.read(block, length, size - length);
+			if (read < 0)
+				break;
+			length += read;
+		}
+		return length;
+	}
+
+	/**
+	 * Calculate checksum of the first bytes of a file, a CRC32 of the CRC32C
+	 * checksums of its blocks, the last one possibly partial
+	 * 
+	 * @param input
+	 *            : content of the file, closed once read
+	 * @param length
+	 *            : number of bytes from start of file
+	 * @return checksum of the bytes, -1 if the file is shorter
+	 * @throws IOException
+	 */
+	public static long getPrefixChecksum(InputStream input, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] block = new byte[BLOCK_SIZE];
+		try {
+			for (long position = 0; position < length; position += BLOCK_SIZE) {
+				int size = (int) Math.min(BLOCK_SIZE, length - position);
+				if (readBlock(input, block, size) < size)
+					return -1;
+				update(crc, checksum(block, 0, size));
+			}
+		} finally {
+			input.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Calculate checksum of the first bytes of a file from checksums kept of
+	 * its blocks, reading none of them but the last partial one
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @param length
+	 *            : number of bytes from start of file
+	 * @param tail
+	 *            : bytes of the last block, up to the length, if the length
+	 *            is not a whole number of blocks
+	 * @return checksum of the bytes, -1 if the file is shorter
+	 * @throws IOException
+	 *             if the file has no checksums
+	 */
+	public static long getPrefixChecksum(File file, long length, byte[] tail) throws IOException {
+		CRC32 crc = new CRC32();
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(getFile(file))));
+		try {
+			if (input.readLong() < length)
+				return -1;
+			input.readLong();
+			for (long block = length / BLOCK_SIZE; block > 0; block--)
+				update(crc, input.readInt());
+		} finally {
+			input.close();
+		}
+		if (length % BLOCK_SIZE != 0)
+			update(crc, checksum(tail, 0, tail.length));
+		return crc.getValue();
+	}
+
+	/**
+	 * Add checksum of a block to a checksum of several blocks
+	 * 
+	 * @param crc
+	 *            : checksum of blocks before it
+	 * @param checksum
+	 *            : checksum of the block
+	 */
+	private static void update(CRC32 crc, int checksum) {
+		crc.update(checksum >>> 24);
+		crc.update(checksum >>> 16);
+		crc.update(checksum >>> 8);
+		crc.update(checksum);
+	}
+
+	/**
+	 * Verify data read from a file against checksums of its blocks. A file
+	 * without checksums, stored before they were kept, is not verified.
+	 * 
+	 * @param file
+	 *            : file read
+	 * @param offset
+	 *            : position the data was read from, at start of a block
+	 * @param data
+	 *            : data read, whole blocks up to end of file
+	 * @return true if data matches checksums of the file
+	 * @throws IOException
+	 */
+	public static boolean verify(File file, long offset, byte[] data) throws IOException {
+		File checksums = getFile(file);
+		if (!checksums.exists())
+			return true;
+		if (offset % BLOCK_SIZE != 0)
+			throw new IllegalArgumentException("Data does not start at a block : " + offset);
+
+		RandomAccessFile input = new RandomAccessFile(checksums, "r");
+		try {
+
+			// a file cut short, or data short of end of file, is corrupt
+			long size = input.readLong();
+			if (file.length() != size || (data.length % BLOCK_SIZE != 0 && offset + data.length != size))
+				return false;
+
+			input.seek(HEADER + 4 * (offset / BLOCK_SIZE));
+			for (int start = 0; start < data.length; start += BLOCK_SIZE) {
+				int length = Math.min(BLOCK_SIZE, data.length - start);
+				if (input.readInt() != checksum(data, start, length))
+					return false;
+			}
+			return true;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Return checksum of a block of a file
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @param block
+	 *            : index of the block
+	 * @return checksum of the block
+	 * @throws IOException
+	 *             if the file has no checksum of the block
+	 */
+	public static int getChecksum(File file, long block) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(getFile(file), "r");
+		try {
+			input.seek(HEADER + 4 * block);
+			return input.readInt();
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Find blocks of a file which do not match their checksums
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @return indexes of corrupt blocks, every block if the file is cut short
+	 * @throws IOException
+	 */
+	public static ArrayList<Long> findCorrupt(File file) throws IOException {
+		ArrayList<Long> corrupt = new ArrayList<>();
+		DataInputStream checksums = new DataInputStream(new BufferedInputStream(new FileInputStream(getFile(file))));
+		InputStream input = new FileInputStream(file);
+		try {
+			long size = checksums.readLong();
+			checksums.readLong();
+			long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			byte[] block = new byte[BLOCK_SIZE];
+			for (long i = 0; i < blocks; i++) {
+				int crc = checksums.readInt();
+				int length = readBlock(input, block);
+				if (length != Math.min(BLOCK_SIZE, size - i * BLOCK_SIZE) || crc != checksum(block, 0, length))
+					corrupt.add(i);
+			}
+		} finally {
+			checksums.close();
+			input.close();
+		}
+		return corrupt;
+	}
+
+	/**
+	 * Return size of a file when its checksums were written
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @return size of the file, -1 if it has no checksums
+	 */
+	public static long getSize(File file) {
+		return readHeader(file, 0);
+	}
+
+	/**
+	 * Return CRC32 checksum of whole file when its checksums were written
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @return checksum of the file, -1 if it has no checksums
+	 */
+	public static long getFileChecksum(File file) {
+		return readHeader(file, 1);
+	}
+
+	/**
+	 * Read a field of the header of the checksums of a file
+	 * 
+	 * @param file
+	 *            : file stored
+	 * @param field
+	 *            : index of the field, 0 for size and 1 for checksum
+	 * @return value of the field, -1 if the file has no checksums
+	 */
+	private static long readHeader(File file, int field) {
+		try {
+			DataInputStream input = new DataInputStream(new FileInputStream(getFile(file)));
+			try {
+				long value = input.readLong();
+				return field == 0 ? value : input.readLong();
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+}
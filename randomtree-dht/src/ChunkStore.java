@@ -0,0 +1,573 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * ChunkStore keeps files of a server as content addressed chunks, so that a
+ * chunk shared by several files, or by several versions of a file, is stored
+ * only once. Chunks are held in a hidden directory of the lookup directory,
+ * each named by the hash of its content, and every file is described by a
+ * hidden manifest listing hashes and lengths of its chunks in order. A chunk
+ * is deleted once no manifest refers to it and no open stream reads it, and
+ * a chunk stored for an upload which never completed is deleted after a
+ * while. Chunks are hashed again when read, and a chunk whose content no
+ * longer matches its name is deleted, so that it is reported missing and can
+ * be stored again.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ChunkStore {
+
+	private static final String MANIFEST = ".manifest";
+
+	private String directory;
+	private File chunkDirectory;
+
+	// number of manifests referring to each chunk, and number of open
+	// streams reading each chunk
+	private HashMap<String, Integer> references;
+	private HashMap<String, Integer> pins;
+	private long storedBytes;
+
+	/**
+	 * Create a chunk store within a lookup directory, counting references of
+	 * manifests already stored and deleting chunks none of them refers to.
+	 * 
+	 * @param directory
+	 *            : lookup directory of the server
+	 */
+	public ChunkStore(String directory) {
+		this.directory = directory;
+		chunkDirectory = new File(directory + ".chunks");
+		chunkDirectory.mkdirs();
+		references = new HashMap<>();
+		pins = new HashMap<>();
+
+		File[] manifests = new File(directory).listFiles();
+		if (manifests != null) {
+			for (File manifest : manifests) {
+				String name = manifest.getName();
+				if (!name.startsWith(".") || !name.endsWith(MANIFEST))
+					continue;
+				try {
+					for (String[] entry : readManifest(manifest))
+						addReference(entry[0], 1);
+				} catch (IOException e) {
+					System.out.println("Unable to read manifest " + manifest);
+				}
+			}
+		}
+
+		File[] chunks = chunkDirectory.listFiles();
+		if (chunks != null) {
+			for (File chunk : chunks) {
+				if (references.containsKey(chunk.getName()))
+					storedBytes += chunk.length();
+				else
+					chunk.delete();
+			}
+		}
+	}
+
+	private File getManifestFile(String fileName) {
+		return new File(directory + "." + fileName + MANIFEST);
+	}
+
+	private File getChunkFile(String hash) {
+		return new File(chunkDirectory, hash);
+	}
+
+	/**
+	 * Read entries of a manifest
+	 * 
+	 * @param manifest
+	 *            : manifest file
+	 * @return hash and length of every chunk, in order
+	 * @throws IOException
+	 */
+	private static ArrayList<String[]> readManifest(File manifest) throws IOException {
+		ArrayList<String[]> entries = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] entry = line.trim().split(" ");
+				if (entry.length == 2)
+					entries.add(entry);
+			}
+		} finally {
+			reader.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Change reference count of a chunk, deleting it once no longer used
+	 * 
+	 * @param hash
+	 *            : name of the chunk
+	 * @param delta
+	 *            : change of the count
+	 */
+	private void addReference(String hash, int delta) {
+		if (!update(references, hash, delta) && !pins.containsKey(hash))
+			delete(hash);
+	}
+
+	/**
+	 * Change number of open streams reading a chunk, deleting it once no
+	 * longer used
+	 * 
+	 * @param hash
+	 *            : name of the chunk
+	 * @param delta
+	 *            : change of the count
+	 */
+	private void addPin(String hash, int delta) {
+		if (!update(pins, hash, delta) && !references.containsKey(hash))
+			delete(hash);
+	}
+
+	/**
+	 * Change a count kept for a chunk, dropping it once it reaches zero
+	 * 
+	 * @param counts
+	 *            : counts by name of chunk
+	 * @param hash
+	 *            : name of the chunk
+	 * @param delta
+	 *            : change of the count
+	 * @return true if the count is still above zero
+	 */
+	private static boolean update(HashMap<String, Integer> counts, String hash, int delta) {
+		Integer count = counts.get(hash);
+		int updated = (count == null ? 0 : count) + delta;
+		if (updated > 0) {
+			counts.put(hash, updated);
+			return true;
+		}
+		counts.remove(hash);
+		return false;
+	}
+
+	/**
+	 * Delete a chunk no longer used
+	 * 
+	 * @param hash
+	 *            : name of the chunk
+	 */
+	private void delete(String hash) {
+		File chunk = getChunkFile(hash);
+		long length = chunk.length();
+		if (chunk.delete())
+			storedBytes -= length;
+	}
+
+	/**
+	 * Return chunks of a list this store does not hold
+	 * 
+	 * @param hashes
+	 *            : names of chunks
+	 * @return names of chunks missing, each listed once
+	 */
+	public synchronized String[] getMissing(String[] hashes) {
+		LinkedHashSet<String> missing = new LinkedHashSet<>();
+		for (String hash : hashes)
+			if (!getChunkFile(hash).exists())
+				missing.add(hash);
+		return missing.toArray(new String[missing.size()]);
+	}
+
+	/**
+	 * Store a chunk unless it is already held. A chunk stays unreferenced
+	 * until a manifest using it is inserted.
+	 * 
+	 * @param data
+	 *            : content of the chunk
+	 * @return name of the chunk
+	 * @throws IOException
+	 */
+	public String put(byte[] data) throws IOException {
+		String hash = ContentChunker.hash(data);
+		File chunk = getChunkFile(hash);
+		synchronized (this) {
+
+			// a chunk not referenced yet is kept as long as it is stored again
+			if (chunk.exists()) {
+				if (!references.containsKey(hash))
+					chunk.setLastModified(System.currentTimeMillis());
+				return hash;
+			}
+		}
+
+		// write into a temporary file first, so that a chunk is never seen
+		// partially written
+		File partial = File.createTempFile(hash, ".part", chunkDirectory);
+		FileOutputStream output = new FileOutputStream(partial);
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+		synchronized (this) {
+			if (chunk.exists()) {
+				partial.delete();
+				return hash;
+			}
+			Files.move(partial.toPath(), chunk.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			storedBytes += data.length;
+		}
+		return hash;
+	}
+
+	/**
+	 * Read content of a chunk, verified against its name
+	 * 
+	 * @param hash
+	 *            : name of the chunk
+	 * @return content of the chunk
+	 * @throws IOException
+	 *             if the chunk is not held or is corrupt
+	 */
+	public byte[] get(String hash) throws IOException {
+		byte[] data = Files.readAllBytes(getChunkFile(hash).toPath());
+		if (ContentChunker.hash(data).equals(hash))
+			return data;
+		discard(hash);
+		throw new IOException("Corrupt chunk " + hash);
+	}
+
+	/**
+	 * Delete a corrupt chunk, keeping its references so that manifests using
+	 * it are complete again once it is stored again
+	 * 
+	 * @param hash
+	 *            : name of the chunk
+	 */
+	private synchronized void discard(String hash) {
+		delete(hash);
+	}
+
+	/**
+	 * Store a file described by the given chunks, replacing the previous
+	 * version of the file if any. All chunks must be held already.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param hashes
+	 *            : names of chunks of the file, in order
+	 * @return true if the manifest is stored, false if a chunk is missing
+	 * @throws IOException
+	 */
+	public synchronized boolean insert(String fileName, String[] hashes) throws IOException {
+		for (String hash : hashes)
+			if (!getChunkFile(hash).exists())
+				return false;
+
+		File manifest = getManifestFile(fileName);
+		File partial = new File(manifest.getPath() + ".part");
+		PrintWriter writer = new PrintWriter(partial);
+		for (String hash : hashes)
+			writer.println(hash + " " + getChunkFile(hash).length());
+		writer.close();
+
+		// count references of new version before releasing previous one, as
+		// both share most chunks
+		for (String hash : hashes)
+			addReference(hash, 1);
+		ArrayList<String[]> previous = manifest.exists() ? readManifest(manifest) : new ArrayList<String[]>();
+		Files.move(partial.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		for (String[] entry : previous)
+			addReference(entry[0], -1);
+		return true;
+	}
+
+	/**
+	 * Split a stream into chunks and store it as a file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param input
+	 *            : content of the file
+	 * @return true if the file is stored
+	 * @throws IOException
+	 */
+	public boolean store(String fileName, InputStream input) throws IOException {
+		ArrayList<String> hashes = new ArrayList<>();
+		ContentChunker chunker = new ContentChunker(input);
+		byte[] data;
+		while ((data = chunker.next()) != null)
+			hashes.add(put(data));
+		return insert(fileName, hashes.toArray(new String[hashes.size()]));
+	}
+
+	/**
+	 * Remove a file from this store, if it is held
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	public synchronized void remove(String fileName) {
+		File manifest = getManifestFile(fileName);
+		if (!manifest.exists())
+			return;
+		try {
+			ArrayList<String[]> entries = readManifest(manifest);
+			manifest.delete();
+			for (String[] entry : entries)
+				addReference(entry[0], -1);
+		} catch (IOException e) {
+			System.out.println("Unable to read manifest of '" + fileName + "'");
+		}
+	}
+
+	/**
+	 * Check if a file is held in this store
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return true if a manifest of the file is held
+	 */
+	public boolean contains(String fileName) {
+		return getManifestFile(fileName).exists();
+	}
+
+	/**
+	 * Return names of chunks of a file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return names of chunks in order, null if the file is not held
+	 */
+	public String[] getHashes(String fileName) {
+		try {
+			ArrayList<String[]> entries = readManifest(getManifestFile(fileName));
+			String[] hashes = new String[entries.size()];
+			for (int i = 0; i < hashes.length; i++)
+				hashes[i] = entries.get(i)[0];
+			return hashes;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return lengths of chunks of a file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return lengths of chunks in order, null if the file is not held
+	 */
+	public long[] getLengths(String fileName) {
+		try {
+			ArrayList<String[]> entries = readManifest(getManifestFile(fileName));
+			long[] lengths = new long[entries.size()];
+			for (int i = 0; i < lengths.length; i++)
+				lengths[i] = Long.parseLong(entries.get(i)[1]);
+			return lengths;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return names of chunks of a file, keeping the chunks until released
+	 * even if the file is removed or replaced meanwhile
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return names of chunks in order, null if the file is not held
+	 * @see #release(String[])
+	 */
+	public synchronized String[] pin(String fileName) {
+		String[] hashes = getHashes(fileName);
+		if (hashes != null)
+			for (String hash : hashes)
+				addPin(hash, 1);
+		return hashes;
+	}
+
+	/**
+	 * Release chunks kept by {@link #pin(String)}
+	 * 
+	 * @param hashes
+	 *            : names of chunks returned by {@link #pin(String)}
+	 */
+	public synchronized void release(String[] hashes) {
+		for (String hash : hashes)
+			addPin(hash, -1);
+	}
+
+	/**
+	 * Return size of a file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return total length of its chunks, -1 if the file is not held
+	 */
+	public long getSize(String fileName) {
+		try {
+			long size = 0;
+			for (String[] entry : readManifest(getManifestFile(fileName)))
+				size += Long.parseLong(entry[1]);
+			return size;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Return time a file was last written
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return time its manifest was written in milliseconds, 0 if the file is
+	 *         not held
+	 */
+	public long getLastModified(String fileName) {
+		return getManifestFile(fileName).lastModified();
+	}
+
+	/**
+	 * Open a file for reading from a given position, chunks being read and
+	 * verified one after another as they are reached. Chunks of the file are
+	 * kept until the stream is closed, even if the file is removed or
+	 * replaced meanwhile.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param offset
+	 *            : position of the first byte read
+	 * @return stream of file data from the offset on
+	 * @throws IOException
+	 *             if the file is not held
+	 */
+	public InputStream open(String fileName, long offset) throws IOException {
+		final ArrayList<String[]> entries;
+		synchronized (this) {
+			entries = readManifest(getManifestFile(fileName));
+			for (String[] entry : entries)
+				addPin(entry[0], 1);
+		}
+
+		// skip chunks before the offset
+		int first = 0;
+		while (first < entries.size() && offset >= Long.parseLong(entries.get(first)[1])) {
+			offset -= Long.parseLong(entries.get(first)[1]);
+			first++;
+		}
+
+		final int start = first;
+		final int skip = (int) offset;
+		return new InputStream() {
+			int next = start;
+			byte[] buffer = new byte[0];
+			int index;
+			boolean closed;
+
+			@Override
+			public int read() throws IOException {
+				if (!fill())
+					return -1;
+				return buffer[index++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] data, int offset, int length) throws IOException {
+				if (length == 0)
+					return 0;
+				if (!fill())
+					return -1;
+				int read = Math.min(length, buffer.length - index);
+				System.arraycopy(buffer, index, data, offset, read);
+				index += read;
+				return read;
+			}
+
+			private boolean fill() throws IOException {
+				while (index >= buffer.length) {
+					if (next >= entries.size())
+						return false;
+					buffer = get(entries.get(next)[0]);
+					index = next++ == start ? Math.min(skip, buffer.length) : 0;
+				}
+				return true;
+			}
+
+			@Override
+			public void close() {
+				synchronized (ChunkStore.this) {
+					if (closed)
+						return;
+					closed = true;
+					for (String[] entry : entries)
+						addPin(entry[0], -1);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Delete chunks which no manifest refers to and no stream reads, such as
+	 * chunks of uploads which never completed, and chunks partially written
+	 * 
+	 * @param age
+	 *            : milliseconds since a chunk was last stored for it to be
+	 *            deleted
+	 */
+	public synchronized void removeUnused(long age) {
+		File[] chunks = chunkDirectory.listFiles();
+		if (chunks == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File chunk : chunks) {
+			String name = chunk.getName();
+			if (references.containsKey(name) || pins.containsKey(name) || now - chunk.lastModified() < age)
+				continue;
+			System.out.println("Removing unused chunk " + name);
+			if (name.endsWith(".part"))
+				chunk.delete();
+			else
+				delete(name);
+		}
+	}
+
+	/**
+	 * Return names of all files held in this store
+	 * 
+	 * @return names of files
+	 */
+	public ArrayList<String> getFileNames() {
+		ArrayList<String> names = new ArrayList<>();
+		File[] files = new File(directory).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(".") && name.endsWith(MANIFEST))
+					names.add(name.substring(1, name.length() - MANIFEST.length()));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Return bytes of distinct chunks held on disk
+	 * 
+	 * @return bytes stored
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+}
@@ -4,16 +4,24 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.zip.CRC32;
 
 /***
  * This class represents a client capable of connecting to servers within a
@@ -26,22 +34,63 @@ public class Client implements Remote {
 	static HashMap<Integer, String> hashTable = null;
 	private String lookupDirectory;
 	private static int TOTAL_SERVERS = 0;
-	private int PORT = 4040;
+	private static final int TREE_DEPTH = Integer.getInteger("dht.tree.depth", 3);
+
+	// attempts made for a request rejected by busy servers, and the initial
+	// backoff between attempts in milliseconds
+	static final int MAX_ATTEMPTS = Integer.getInteger("dht.client.attempts", 5);
+	private static final long BACKOFF = 20;
+
+	// upload files as content defined chunks, sending only chunks servers do
+	// not hold yet
+	static final boolean DEDUP = Boolean.getBoolean("dht.dedup");
+
+	// names printed by a search from the menu
+	private static final int LIST_LIMIT = 100;
+	private ClientCache cache;
+	private HashMap<String, ArrayList<ReplicaLocation>> locationMap;
+
+	// latest version of each file seen, reads being served only by copies
+	// which are not older
+	private HashMap<String, VersionVector> versionMap;
+
+	// files downloaded lately in this session, oldest first, sent along with
+	// requests for servers to learn which files are requested together
+	private static final int SESSION_WINDOW = Integer.getInteger("dht.session.window", 4);
+	private static final long SESSION_TIME = Long.getLong("dht.session.time", 60000);
+	private LinkedList<Request.Access> session;
+	private LeafSelector selector;
 
 	public Client() {
+		this(System.getProperty("user.home") + "/Courses/dht/Client/");
+	}
+
+	/**
+	 * Create a client using the given lookup directory, allowing more than one
+	 * client to run on a machine.
+	 * 
+	 * @param lookupDirectory
+	 *            : directory holding files of this client
+	 */
+	public Client(String lookupDirectory) {
 		// initialize lookup directory for client and initialize hashmap for
 		// available servers.
 		hashTable = new HashMap<>();
-		lookupDirectory = System.getProperty("user.home") + "/Courses/dht/Client/";
+		locationMap = new HashMap<>();
+		versionMap = new HashMap<>();
+		session = new LinkedList<>();
+		selector = new LeafSelector(this);
+		this.lookupDirectory = lookupDirectory;
 		initClient();
+
+		// cache of downloaded files, 1 GB unless configured otherwise
+		cache = new ClientCache(this, lookupDirectory + "cache/", Long.getLong("dht.cache.bytes", 1L << 30));
 	}
 
 	public void initClient() {
 
 		// list of all available servers
-		String[] servers = { "glados.cs.rit.edu", "kansas.cs.rit.edu", "gorgon.cs.rit.edu",
-				"newyork.cs.rit.edu", "yes.cs.rit.edu", "kinks.cs.rit.edu", "medusa.cs.rit.edu", "joplin.cs.rit.edu",
-				"delaware.cs.rit.edu", "buddy.cs.rit.edu", "arizona.cs.rit.edu" };
+		String[] servers = ServerTable.getServers();
 		TOTAL_SERVERS = servers.length;
 		for (int i = 0; i < TOTAL_SERVERS; i++) {
 			hashTable.put(i, servers[i]);
@@ -74,6 +123,83 @@ public class Client implements Remote {
 		return null;
 	} // getHostName
 
+	/**
+	 * Return the default lookup directory of this client
+	 * 
+	 * @return path of lookup directory
+	 */
+	public String getLookupDirectory() {
+		return lookupDirectory;
+	} // getLookupDirectory
+
+	/**
+	 * Return host name of the server responsible for a file at a given node of
+	 * one of its trees.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param tree
+	 *            : index of the tree
+	 * @param node
+	 *            : coordinates of the node, e.g. "00" for root
+	 * @return host name of the server
+	 */
+	public String getHost(String fileName, int tree, String node) {
+		return hashTable.get(ServerTable.getIndex(fileName, tree, node, TOTAL_SERVERS));
+	} // getHost
+
+	/**
+	 * Connect to RMI interface of a server.
+	 * 
+	 * @param hostName
+	 *            : host name of the server
+	 * @return client interface exported by the server
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public S2CInterface getServer(String hostName) throws MalformedURLException, RemoteException, NotBoundException {
+		String registryURL = ServerTable.getURL(hostName, "dht");
+		return (S2CInterface) Naming.lookup(registryURL);
+	} // getServer
+
+	/**
+	 * Return coordinates of all nodes of the tree, level by level starting
+	 * from the root.
+	 * 
+	 * @return coordinates of all nodes
+	 */
+	public static String[] getTreeNodes() {
+		String[] nodes = new String[(1 << TREE_DEPTH) - 1];
+		int i = 0;
+		for (int x = 0; x < TREE_DEPTH; x++)
+			for (int y = 0; y < (1 << x); y++)
+				nodes[i++] = "" + x + y;
+		return nodes;
+	} // getTreeNodes
+
+	/**
+	 * Calculate CRC32 checksum of a file.
+	 * 
+	 * @param file
+	 *            : file to be checked
+	 * @return checksum of file data
+	 * @throws IOException
+	 */
+	public static long getChecksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		BufferedInputStream input = new BufferedInputStream(new FileInputStream(file.getPath()));
+		try {
+			int read;
+			while ((read = input.read(buffer)) != -1)
+				crc.update(buffer, 0, read);
+		} finally {
+			input.close();
+		}
+		return crc.getValue();
+	} // getChecksum
+
 	/**
 	 * this method is responsible for reading file data from the default lookup
 	 * directory on client machine and return its byte data.
@@ -82,56 +208,214 @@ public class Client implements Remote {
 	 *            : name of file to be read
 	 * @return byte data read from file
 	 * @throws FileNotFoundException
+	 * @throws IOException
+	 *             if the file cannot be read whole
 	 */
-	public byte[] readFile(String fileName) throws FileNotFoundException {
+	public byte[] readFile(String fileName) throws FileNotFoundException, IOException {
 
 		// lookup for file in default lookup directory
 		File file = new File(lookupDirectory + fileName);
 		if (!file.exists())
 			throw new FileNotFoundException();
 
-		// read data into byte array
-		byte buffer[] = new byte[(int) file.length()];
+		// read whole file, a short read would be stored with a valid checksum
+		return Files.readAllBytes(file.toPath());
+	} // readFile
+
+	/**
+	 * Wait before the next attempt of a request rejected by a busy server.
+	 * The wait is picked at random up to a limit doubling on every attempt,
+	 * so that clients retrying together do not collide again.
+	 * 
+	 * @param attempt
+	 *            : number of attempts made so far
+	 */
+	static void backoff(int attempt) {
 		try {
-			BufferedInputStream input = new BufferedInputStream(new FileInputStream(file.getPath()));
-			input.read(buffer, 0, buffer.length);
-			input.close();
-		} catch (Exception exp) {
-			exp.printStackTrace();
+			Thread.sleep(1 + (long) (Math.random() * (BACKOFF << Math.min(attempt, 10))));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		return buffer;
-	} // readFile
+	} // backoff
 
 	/**
 	 * This method is responsible for connecting to any random servers on a
-	 * distributed systems network and upload a given file to the server.
+	 * distributed systems network and upload a given file to the server. The
+	 * file is uploaded to the root node of each of its trees, so that it stays
+	 * available while any one of them is reachable.
 	 * 
 	 * @param fileName
 	 *            : file to be uploaded
 	 */
 	public void sendToServer(String fileName) {
+		byte[] data;
 		try {
-			byte[] data = readFile(fileName);
+			data = readFile(fileName);
+		} catch (FileNotFoundException e) {
+			System.out.println("Error : File reading error.\nFile not found.");
+			return;
+		} catch (IOException e) {
+			System.out.println("Error : File reading error.\n" + e);
+			return;
+		}
 
-			// calculate the root node for given file
-			int id = Math.abs((fileName + "00").hashCode()) % TOTAL_SERVERS;
-			System.out.println("Sending file to : " + hashTable.get(id));
+		for (int tree = 0; tree < ServerTable.TREES; tree++) {
+			try {
+				sendToRoot(data, fileName, tree);
+			} catch (MalformedURLException | RemoteException | NotBoundException e) {
+				System.out.println("Error : Unable to establish connection with server.");
+				// e.printStackTrace();
+			}
+		}
+	} // sendToServer
 
-			// naming lookup for the required server, get host-name from hashmap
-			String registryURL = "rmi://" + hashTable.get(id) + ":" + PORT + "/dht";
-			S2CInterface server = (S2CInterface) Naming.lookup(registryURL);
+	/**
+	 * Upload a file to the root node of one of its trees. If the server is
+	 * busy, upload is retried after a backoff.
+	 * 
+	 * @param data
+	 *            : file data
+	 * @param fileName
+	 *            : name of file
+	 * @param tree
+	 *            : index of the tree
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private void sendToRoot(byte[] data, String fileName, int tree)
+			throws MalformedURLException, RemoteException, NotBoundException {
 
-			// connection successful, upload file to server
-			server.insertFile(data, fileName);
+		// calculate the root node for given file
+		String hostName = getHost(fileName, tree, "00");
+		System.out.println("Sending file to : " + hostName);
 
-		} catch (MalformedURLException | RemoteException | NotBoundException e) {
-			System.out.println("Error : Unable to establish connection with server.");
-			// e.printStackTrace();
-		} catch (FileNotFoundException e) {
-			System.out.println("Error : File reading error.\nFile not found.");
-			// e.printStackTrace();
+		// naming lookup for the required server, get host-name from hashmap
+		S2CInterface server = getServer(hostName);
+
+		// connection successful, upload file to server
+		for (int attempt = 1;; attempt++) {
+			try {
+				File file = new File(lookupDirectory + fileName);
+				if (DEDUP) {
+					if (!sendDeduplicated(server, file, tree))
+						System.out.println("Error : Server failed to store '" + fileName + "'");
+					return;
+				}
+
+				// send only changes to a version the server holds already
+				if (sendDelta(server, file, tree))
+					return;
+
+				// file is sent as a single chunk, verified by the server
+				if (!server.insertChunk(new Chunk(fileName, 0, data, true).compress(), tree))
+					System.out.println("Error : Server failed to store '" + fileName + "'");
+				return;
+			} catch (ServerBusyException e) {
+				if (attempt == MAX_ATTEMPTS) {
+					System.out.println("Error : " + e.getMessage());
+					return;
+				}
+				backoff(attempt);
+			} catch (IOException e) {
+				System.out.println("Error : File reading error. " + e.getMessage());
+				return;
+			}
 		}
-	} // sendToServer
+	} // sendToRoot
+
+	/**
+	 * Upload a file as content defined chunks. The server is sent names of
+	 * all chunks of the file first and only chunks it does not hold are sent
+	 * after, so that data shared with files already stored is not sent again.
+	 * 
+	 * @param server
+	 *            : server holding the root node of the file
+	 * @param file
+	 *            : file to be uploaded, stored under its own name
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @return true if the server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 */
+	static boolean sendDeduplicated(S2CInterface server, File file, int tree)
+			throws IOException, ServerBusyException {
+
+		// names of chunks are found in a first pass over the file
+		ArrayList<String> hashes = new ArrayList<>();
+		FileInputStream input = new FileInputStream(file);
+		try {
+			ContentChunker chunker = new ContentChunker(input);
+			byte[] data;
+			while ((data = chunker.next()) != null)
+				hashes.add(ContentChunker.hash(data));
+		} finally {
+			input.close();
+		}
+		String[] names = hashes.toArray(new String[hashes.size()]);
+
+		// chunks released by the server in between are sent on a second try
+		for (int attempt = 0; attempt < 2; attempt++) {
+			HashSet<String> missing = new HashSet<>(Arrays.asList(server.getMissingChunks(names)));
+			if (!missing.isEmpty()) {
+				input = new FileInputStream(file);
+				try {
+					ContentChunker chunker = new ContentChunker(input);
+					byte[] data;
+					while (!missing.isEmpty() && (data = chunker.next()) != null)
+						if (missing.remove(ContentChunker.hash(data)))
+							server.putChunk(new Chunk(ContentChunker.hash(data), 0, data, true).compress());
+				} finally {
+					input.close();
+				}
+			}
+			if (server.insertManifest(file.getName(), names, tree))
+				return true;
+		}
+		return false;
+	} // sendDeduplicated
+
+	/**
+	 * Upload a new version of a file as a delta against the version held by
+	 * the server. The server sends a signature of the blocks it holds and
+	 * only data around changes is sent back, so that appending to a large
+	 * file costs about as much as the data appended.
+	 * 
+	 * @param server
+	 *            : server holding the root node of the file
+	 * @param file
+	 *            : file to be uploaded, stored under its own name
+	 * @param tree
+	 *            : index of the tree the server is root node of
+	 * @return true if the server stored the new version, false if it holds no
+	 *         version of the file or the delta did not apply
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 */
+	static boolean sendDelta(S2CInterface server, File file, int tree) throws IOException, ServerBusyException {
+		BlockSignature signature = server.getSignature(file.getName());
+		if (signature == null)
+			return false;
+
+		long sent = 0;
+		FileInputStream input = new FileInputStream(file);
+		try {
+			DeltaEncoder encoder = new DeltaEncoder(file.getName(), input, signature);
+			Delta delta;
+			while ((delta = encoder.next()) != null) {
+				delta = delta.compress();
+				if (!server.insertDelta(delta, tree))
+					return false;
+				sent += delta.getEncodedLength();
+			}
+		} finally {
+			input.close();
+		}
+		System.out.println("@Client - Sent " + sent + " of " + file.length() + " bytes of '" + file.getName()
+				+ "' as delta.");
+		return true;
+	} // sendDelta
 
 	/**
 	 * This method is responsible for accepting file data from a server after a
@@ -152,6 +436,7 @@ public class Client implements Remote {
 			fos.write(data);
 			fos.close();
 			System.out.println("File Insertion successful.");
+			cache.store(fileName);
 			return true;
 		} catch (IOException e) {
 			System.out.println("Failed to read input file.");
@@ -160,9 +445,200 @@ public class Client implements Remote {
 		return false;
 	} // fileInsert
 
+	/**
+	 * This method is responsible for writing a chunk of file data pushed by a
+	 * server at its position within the file in default lookup directory.
+	 * 
+	 * @param chunk
+	 *            : chunk of the file requested
+	 * @return true if chunk is successfully written, false otherwise
+	 */
+	public boolean chunkInsert(Chunk chunk) {
+		if (!chunk.verify()) {
+			System.out.println("Error : Chunk of '" + chunk.getFileName() + "' at " + chunk.getOffset() + " is corrupt.");
+			return false;
+		}
+		try {
+			RandomAccessFile output = new RandomAccessFile(lookupDirectory + chunk.getFileName(), "rw");
+			try {
+				output.seek(chunk.getOffset());
+				output.write(chunk.getData());
+
+				// drop any stale data beyond end of the file
+				if (chunk.isLast()) {
+					output.setLength(chunk.getOffset() + chunk.getData().length);
+					System.out.println("File Insertion successful.");
+				}
+			} finally {
+				output.close();
+			}
+			if (chunk.isLast())
+				cache.store(chunk.getFileName());
+			return true;
+		} catch (IOException e) {
+			System.out.println("Failed to write file chunk.");
+			e.printStackTrace();
+		}
+		return false;
+	} // chunkInsert
+
+	/**
+	 * Add a file downloaded into lookup directory to the local cache.
+	 * 
+	 * @param fileName
+	 *            : name of file downloaded
+	 */
+	public void cacheFile(String fileName) {
+		cache.store(fileName);
+	} // cacheFile
+
+	/**
+	 * Remember locations of servers holding a replica of a file, as reported
+	 * by the server which sent the file.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param locations
+	 *            : servers holding a replica of the file
+	 */
+	public void cacheLocations(String fileName, ArrayList<ReplicaLocation> locations) {
+		synchronized (locationMap) {
+			locationMap.put(fileName, locations);
+		}
+		System.out.println("@Client - Replicas of '" + fileName + "' : " + locations);
+	} // cacheLocations
+
+	/**
+	 * Add a replica of a file to the known ones, such as a replica a server
+	 * prefetched next to this client.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param location
+	 *            : server holding the replica
+	 */
+	public void addLocation(String fileName, ReplicaLocation location) {
+		synchronized (locationMap) {
+			if (!locationMap.containsKey(fileName))
+				locationMap.put(fileName, new ArrayList<ReplicaLocation>());
+			for (ReplicaLocation known : locationMap.get(fileName))
+				if (known.toString().equals(location.toString()))
+					return;
+			locationMap.get(fileName).add(location);
+		}
+		System.out.println("@Client - '" + fileName + "' prefetched onto : " + location);
+	} // addLocation
+
+	/**
+	 * Record a file downloaded in this session, dropping files downloaded
+	 * before the window of the session.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param hostName
+	 *            : server which sent the file
+	 */
+	public void recordAccess(String fileName, String hostName) {
+		long now = System.currentTimeMillis();
+		synchronized (session) {
+			Iterator<Request.Access> it = session.iterator();
+			while (it.hasNext())
+				if (it.next().getFileName().equals(fileName))
+					it.remove();
+			session.add(new Request.Access(fileName, hostName, now));
+			while (session.size() > SESSION_WINDOW || now - session.getFirst().getTime() > SESSION_TIME)
+				session.removeFirst();
+		}
+	} // recordAccess
+
+	/**
+	 * Return files downloaded lately in this session, oldest first.
+	 * 
+	 * @return files downloaded within the window of the session
+	 */
+	public ArrayList<Request.Access> getRecentAccesses() {
+		long now = System.currentTimeMillis();
+		ArrayList<Request.Access> recent = new ArrayList<>();
+		synchronized (session) {
+			for (Request.Access access : session)
+				if (now - access.getTime() <= SESSION_TIME)
+					recent.add(access);
+		}
+		return recent;
+	} // getRecentAccesses
+
+	/**
+	 * Remember version of a file sent by a server. A version written through
+	 * another tree, which is neither older nor newer, replaces the one known
+	 * so that reads are not held to versions of every tree at once.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param version
+	 *            : version of the copy sent
+	 */
+	public void seenVersion(String fileName, VersionVector version) {
+		if (version == null || version.isEmpty())
+			return;
+		synchronized (versionMap) {
+			if (!version.isBefore(versionMap.get(fileName)))
+				versionMap.put(fileName, version);
+		}
+	} // seenVersion
+
+	/**
+	 * Return latest version of a file seen by this client
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return version of the file, null if none is known
+	 */
+	public VersionVector getSeenVersion(String fileName) {
+		synchronized (versionMap) {
+			return versionMap.get(fileName);
+		}
+	} // getSeenVersion
+
+	/**
+	 * Return the closest known replica of a file, i.e. the one deepest in the
+	 * tree. Replicas at the same level are picked at random to spread load.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return location of the replica, null if none is known
+	 */
+	public ReplicaLocation getClosestReplica(String fileName) {
+		ArrayList<ReplicaLocation> closest = new ArrayList<>();
+		synchronized (locationMap) {
+			if (!locationMap.containsKey(fileName))
+				return null;
+			for (ReplicaLocation location : locationMap.get(fileName)) {
+				if (!closest.isEmpty() && location.getLevel() < closest.get(0).getLevel())
+					continue;
+				if (!closest.isEmpty() && location.getLevel() > closest.get(0).getLevel())
+					closest.clear();
+				closest.add(location);
+			}
+		}
+		return closest.isEmpty() ? null : closest.get(new Random().nextInt(closest.size()));
+	} // getClosestReplica
+
+	/**
+	 * Forget known replicas of a file.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	public void dropLocations(String fileName) {
+		synchronized (locationMap) {
+			locationMap.remove(fileName);
+		}
+	} // dropLocations
+
 	/**
 	 * This method is called to search and request for downloading a file from
-	 * servers.
+	 * servers. A copy of the file in local cache is used instead, if servers
+	 * still hold the same version of it.
 	 * 
 	 * @param client
 	 *            : reference of the client instance making download request.
@@ -175,44 +651,219 @@ public class Client implements Remote {
 	private static void downloadData(Client client, String fileName)
 			throws RemoteException, NotBoundException, MalformedURLException {
 
-		// create a callback client instance, servers will reply/communicate
-		// using this instance
-		ClientInterface callBack = new ClientImplementation(client);
+		// serve file from local cache if it is still up to date
+		if (client.cache.fetch(fileName))
+			return;
 
 		// create a new request packet, including all details
-		// including file being requested, client callback instance
+		// including file being requested
 		Request packet = new Request();
 		packet.setFileName(fileName);
+		sendRequest(client, packet);
+	} // downloadData
+
+	/**
+	 * This method is called to continue an interrupted download of a file. Data
+	 * already present in the lookup directory is kept and only the remaining
+	 * bytes are requested, after servers verify the existing data by checksum.
+	 * 
+	 * @param client
+	 *            : reference of the client instance making download request.
+	 * @param fileName
+	 *            : name of the file being request
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 * @throws MalformedURLException
+	 */
+	private static void resumeDownload(Client client, String fileName)
+			throws RemoteException, NotBoundException, MalformedURLException {
+
+		Request packet = new Request();
+		packet.setFileName(fileName);
+		packet.setRange(0, -1);
+
+		// continue from the end of partially downloaded file, if any
+		File file = new File(client.lookupDirectory + fileName);
+		if (file.exists() && file.length() > 0) {
+			try {
+				packet.setPrefixChecksum(ChunkChecksums.getPrefixChecksum(new FileInputStream(file), file.length()));
+				packet.setRange(file.length(), -1);
+				System.out.println("@Client - Resuming download from byte : " + file.length());
+			} catch (IOException e) {
+				System.out.println("@Client - Unable to read partial file, downloading whole file.");
+			}
+		}
+		sendRequest(client, packet);
+	} // resumeDownload
+
+	/**
+	 * Send a download request to the closest known replica of the file or
+	 * else to a random leaf node of the tree, servers reply to the client
+	 * callback instance attached to the request. The tree walked is picked at
+	 * random among the trees of the file, and another tree is tried if a
+	 * server on the way is unreachable. A request rejected by a busy server is
+	 * retried after a backoff on another leaf node.
+	 * 
+	 * @param client
+	 *            : reference of the client instance making download request.
+	 * @param packet
+	 *            : request packet for the file
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 * @throws MalformedURLException
+	 */
+	private static void sendRequest(Client client, Request packet)
+			throws RemoteException, NotBoundException, MalformedURLException {
+
+		// create a callback client instance, servers will reply/communicate
+		// using this instance
+		ClientInterface callBack = new ClientImplementation(client);
 		packet.setClient(callBack);
+		packet.setCompression(Compression.ENABLED);
+		String fileName = packet.getFileName();
+		packet.setMinVersion(client.getSeenVersion(fileName));
+		packet.setRecent(client.getRecentAccesses());
 
-		// get random leaf node on distributed systems network
-		int[] serverNode = getServerNode();
-		packet.setDestination(serverNode);
+		// send request straight to a known replica of this file, if any
+		ReplicaLocation replica = client.getClosestReplica(fileName);
+		if (replica != null) {
+			System.out.println("@Client - Connecting to replica : " + replica);
+			packet.setTree(replica.getTree());
+			packet.setDestination(replica.getNode());
+			try {
+				if (!client.getServer(replica.getHostName()).requestFile(packet))
+					client.dropLocations(fileName);
+				return;
+			} catch (RemoteException | NotBoundException e) {
 
-		// get server host-name from Hashmap and connect to its RMI interface.
-		int id = Math.abs((fileName + serverNode[0] + serverNode[1]).hashCode()) % TOTAL_SERVERS;
-		System.out.println("@Client - Connecting to : " + hashTable.get(id));
-		String registryURL = "rmi://" + hashTable.get(id) + ":" + client.PORT + "/dht";
-		S2CInterface server = (S2CInterface) Naming.lookup(registryURL);
+				// replica is not reachable, walk the tree from a leaf instead
+				System.out.println("@Client - Replica unreachable.");
+				client.dropLocations(fileName);
+			} catch (ServerBusyException e) {
 
-		// request file from the server
-		server.requestFile(packet);
-	} // downloadData
+				// replica is overloaded, leave it to others for a while
+				System.out.println("@Client - " + e.getMessage());
+				client.selector.reportBusy(e.getHostName());
+			}
+		}
+
+		int tree = new Random().nextInt(ServerTable.TREES);
+		int unreachable = 0;
+		for (int attempt = 1;; attempt++) {
+
+			// get least loaded of two random leaf nodes of the tree on
+			// distributed systems network
+			int[] serverNode = client.getServerNode(fileName, tree);
+			packet.setTree(tree);
+			packet.setDestination(serverNode);
+
+			// get server host-name from Hashmap and connect to its RMI
+			// interface.
+			String hostName = client.getHost(fileName, tree, "" + serverNode[0] + serverNode[1]);
+			System.out.println("@Client - Connecting to : " + hostName + " in tree " + tree);
+
+			// request file from the server
+			try {
+				client.getServer(hostName).requestFile(packet);
+				return;
+			} catch (RemoteException | NotBoundException e) {
+
+				// a server on the way to the root is down, walk another tree
+				if (++unreachable == ServerTable.TREES)
+					throw e;
+				System.out.println("@Client - Tree " + tree + " unreachable, trying another tree.");
+				tree = (tree + 1) % ServerTable.TREES;
+			} catch (ServerBusyException e) {
+				System.out.println("@Client - " + e.getMessage());
+				client.selector.reportBusy(e.getHostName());
+				if (attempt == MAX_ATTEMPTS) {
+					System.out.println("@Client - Servers busy, giving up after " + attempt + " attempts.");
+					return;
+				}
+				backoff(attempt);
+			}
+		}
+	} // sendRequest
+
+	/**
+	 * Look up metadata of a file without downloading it. The query is sent to
+	 * the closest known replica of the file, or else walks a tree up from a
+	 * leaf node like a download request, another tree being tried if a server
+	 * on the way is unreachable.
+	 * 
+	 * @param fileName
+	 *            : name of the file
+	 * @return metadata of the file, null if it is not stored
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 * @throws MalformedURLException
+	 */
+	public FileMetadata statFile(String fileName) throws RemoteException, NotBoundException, MalformedURLException {
+		ReplicaLocation replica = getClosestReplica(fileName);
+		if (replica != null) {
+			try {
+				FileMetadata metadata = getServer(replica.getHostName()).statFile(fileName, replica.getTree(),
+						replica.getNode());
+				if (metadata != null) {
+					seenVersion(fileName, metadata.getVersion());
+					return metadata;
+				}
+			} catch (RemoteException | NotBoundException e) {
+				System.out.println("@Client - Replica unreachable.");
+			}
+			dropLocations(fileName);
+		}
+
+		int tree = new Random().nextInt(ServerTable.TREES);
+		for (int unreachable = 0;;) {
+			int[] serverNode = getServerNode(fileName, tree);
+			String hostName = getHost(fileName, tree, "" + serverNode[0] + serverNode[1]);
+			try {
+				FileMetadata metadata = getServer(hostName).statFile(fileName, tree, serverNode);
+				if (metadata != null)
+					seenVersion(fileName, metadata.getVersion());
+				return metadata;
+			} catch (RemoteException | NotBoundException e) {
+				if (++unreachable == ServerTable.TREES)
+					throw e;
+				System.out.println("@Client - Tree " + tree + " unreachable, trying another tree.");
+				tree = (tree + 1) % ServerTable.TREES;
+			}
+		}
+	} // statFile
 
 	/**
-	 * This method return a random leaf node co-ordinates within a distributed
-	 * systems network.
+	 * This method return a leaf node co-ordinates within a distributed systems
+	 * network. Of two random leaves, the one with lower round trip time and
+	 * load is returned.
 	 * 
-	 * @return Coordinates of a random server
+	 * @param fileName
+	 *            : name of the file being requested
+	 * @param tree
+	 *            : index of the tree walked
+	 * @return Coordinates of a leaf server
 	 */
-	private static int[] getServerNode() {
-		return new int[] { 2, new Random().nextInt() % 4 };
+	private int[] getServerNode(String fileName, int tree) {
+		return selector.selectLeaf(fileName, tree);
 	} // getServerNode
 
+	/**
+	 * Return level of the leaf nodes of the tree
+	 * 
+	 * @return level of leaf nodes
+	 */
+	public static int getLeafLevel() {
+		return TREE_DEPTH - 1;
+	} // getLeafLevel
+
 	/**
 	 * Execution starts from the main method and it responsible for taking user
 	 * input on which operations are to be performed : 1. Upload a file onto
-	 * servers 2. Request and download a file from servers
+	 * servers 2. Request and download a file from servers 4. Download a file
+	 * in parallel from all of its replicas 5. Resume an interrupted download
+	 * 6. Upload many files at once 7. Upload a file erasure coded 8. Download
+	 * an erasure coded file 9. Show metadata of a file 10. List files matching
+	 * a pattern
 	 * 
 	 * @param args
 	 */
@@ -224,7 +875,14 @@ public class Client implements Remote {
 			Scanner reader = new Scanner(System.in);
 			while (!exit) {
 				System.out.println(
-						"\nOptions :\n\t1. Upload file onto server.\n\t2. Download file from servers.\n\t3. Exit");
+						"\nOptions :\n\t1. Upload file onto server.\n\t2. Download file from servers.\n\t3. Exit"
+								+ "\n\t4. Download file in parallel from replicas."
+								+ "\n\t5. Resume interrupted download."
+								+ "\n\t6. Upload all files of a directory or list."
+								+ "\n\t7. Upload file erasure coded."
+								+ "\n\t8. Download erasure coded file."
+								+ "\n\t9. Show file metadata."
+								+ "\n\t10. List files matching a pattern.");
 				System.out.print("Enter your option : \t");
 				String fileName;
 
@@ -247,6 +905,65 @@ public class Client implements Remote {
 				case 3: // exit client service
 					exit = true;
 					break;
+				case 4:
+					System.out.println("Enter FILE NAME?");
+					fileName = reader.next();
+
+					// fetch file chunks from all servers holding a replica
+					new ReplicaDownloader(client).download(fileName);
+					break;
+				case 5:
+					System.out.println("Enter FILE NAME?");
+					fileName = reader.next();
+
+					// request remaining data of a partially downloaded file
+					resumeDownload(client, fileName);
+					break;
+				case 6:
+					System.out.println("Enter DIRECTORY or LIST FILE?");
+					fileName = reader.next();
+
+					// upload files grouped by server, several at a time
+					new BulkUploader(client).upload(fileName);
+					break;
+				case 7:
+					System.out.println("Enter FILE NAME?");
+					fileName = reader.next();
+
+					// store data and parity fragments on different servers
+					new ErasureStore(client).upload(fileName);
+					break;
+				case 8:
+					System.out.println("Enter FILE NAME?");
+					fileName = reader.next();
+
+					// fetch any k fragments in parallel and decode them
+					new ErasureStore(client).download(fileName);
+					break;
+				case 9:
+					System.out.println("Enter FILE NAME?");
+					fileName = reader.next();
+
+					// look up size, checksum and copies without downloading
+					FileMetadata metadata = client.statFile(fileName);
+					System.out.println(metadata != null ? metadata : "File '" + fileName + "' not found.");
+					break;
+				case 10:
+					System.out.println("Enter PATTERN? (e.g. logs/* or data-??.csv)");
+					fileName = reader.next();
+
+					// ask all servers at once, stopping after a screenful
+					FileSearch.Results results = new FileSearch(client).search(fileName);
+					int found = 0;
+					while (found < LIST_LIMIT && results.hasNext()) {
+						System.out.println("\t" + results.next());
+						found++;
+					}
+					if (results.hasNext())
+						System.out.println("\t...");
+					results.close();
+					System.out.println(found + " file(s) listed.");
+					break;
 				default:
 					System.out.println("Illegal option input");
 				}
@@ -0,0 +1,190 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ClientCache keeps copies of downloaded files in a size bounded cache
+ * directory on the client machine. Before a cached copy is used, its checksum
+ * is revalidated against the root server of the file, so that a file is only
+ * downloaded again if its content has changed. Least recently used files are
+ * evicted once the cache grows beyond its limit.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ClientCache {
+
+	// hidden file listing cached files, a file of the same name is not cached
+	private static final String INDEX = ".index";
+	private Client client;
+	private String cacheDirectory;
+	private long maxBytes;
+	private long usedBytes;
+
+	// cached file name to checksum, in least recently used order
+	private LinkedHashMap<String, Long> entries;
+
+	public ClientCache(Client client, String cacheDirectory, long maxBytes) {
+		this.client = client;
+		this.cacheDirectory = cacheDirectory;
+		this.maxBytes = maxBytes;
+		this.usedBytes = 0;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		new File(cacheDirectory).mkdirs();
+		loadIndex();
+	}
+
+	/**
+	 * Load cache entries saved by a previous run of the client, dropping
+	 * entries whose files are no longer present.
+	 */
+	private void loadIndex() {
+		File index = new File(cacheDirectory + INDEX);
+		if (!index.exists())
+			return;
+
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(index));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int split = line.indexOf('\t');
+				if (split < 0)
+					continue;
+				String fileName = line.substring(split + 1);
+				File file = new File(cacheDirectory + fileName);
+				if (file.exists()) {
+					entries.put(fileName, Long.parseLong(line.substring(0, split)));
+					usedBytes += file.length();
+				}
+			}
+			reader.close();
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("@Client - Unable to load cache index, starting with empty cache.");
+			entries.clear();
+			usedBytes = 0;
+		}
+	}
+
+	/**
+	 * Save cache entries, least recently used first, so that the next run of
+	 * the client can use them.
+	 */
+	private void saveIndex() {
+		try {
+			PrintWriter writer = new PrintWriter(cacheDirectory + INDEX);
+			for (Map.Entry<String, Long> entry : entries.entrySet())
+				writer.println(entry.getValue() + "\t" + entry.getKey());
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("@Client - Unable to save cache index.");
+		}
+	}
+
+	/**
+	 * Copy a file from the cache into the lookup directory of the client if
+	 * the cached copy is still the same as the one held by the servers.
+	 * 
+	 * @param fileName
+	 *            : file requested
+	 * @return true if the file was served from cache, false if it has to be
+	 *         downloaded
+	 */
+	public synchronized boolean fetch(String fileName) {
+		Long checksum = entries.get(fileName);
+		if (checksum == null)
+			return false;
+
+		// revalidate cached copy against the root copy of the file, trying
+		// root of every tree of the file until one is reachable
+		long current = -1;
+		for (int tree = 0; tree < ServerTable.TREES; tree++) {
+			try {
+				current = client.getServer(client.getHost(fileName, tree, "00")).getChecksum(fileName);
+				break;
+			} catch (MalformedURLException | RemoteException | NotBoundException e) {
+				if (tree == ServerTable.TREES - 1) {
+					System.out.println("@Client - Unable to revalidate cached copy of '" + fileName + "'.");
+					return false;
+				}
+			}
+		}
+
+		if (current != checksum) {
+			System.out.println("@Client - Cached copy of '" + fileName + "' is out of date.");
+			evict(fileName);
+			saveIndex();
+			return false;
+		}
+
+		try {
+			Files.copy(new File(cacheDirectory + fileName).toPath(),
+					new File(client.getLookupDirectory() + fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			evict(fileName);
+			saveIndex();
+			return false;
+		}
+		saveIndex();
+		System.out.println("@Client - '" + fileName + "' served from local cache.");
+		return true;
+	}
+
+	/**
+	 * Add a file downloaded into the lookup directory of the client to the
+	 * cache, evicting least recently used files to stay within the limit.
+	 * 
+	 * @param fileName
+	 *            : file downloaded
+	 */
+	public synchronized void store(String fileName) {
+		File file = new File(client.getLookupDirectory() + fileName);
+		if (!file.exists() || file.length() > maxBytes || fileName.equals(INDEX))
+			return;
+
+		try {
+			long checksum = Client.getChecksum(file);
+			evict(fileName);
+			Files.copy(file.toPath(), new File(cacheDirectory + fileName).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			entries.put(fileName, checksum);
+			usedBytes += file.length();
+		} catch (IOException e) {
+			System.out.println("@Client - Unable to cache '" + fileName + "'.");
+			return;
+		}
+
+		// evict least recently used files
+		Iterator<String> iterator = entries.keySet().iterator();
+		while (usedBytes > maxBytes && iterator.hasNext()) {
+			String oldest = iterator.next();
+			File cached = new File(cacheDirectory + oldest);
+			usedBytes -= cached.length();
+			cached.delete();
+			iterator.remove();
+		}
+		saveIndex();
+	}
+
+	/**
+	 * Remove a file from the cache
+	 * 
+	 * @param fileName
+	 */
+	private void evict(String fileName) {
+		if (entries.remove(fileName) == null)
+			return;
+		File cached = new File(cacheDirectory + fileName);
+		usedBytes -= cached.length();
+		cached.delete();
+	}
+}
@@ -1,5 +1,6 @@
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 
 /***
  * This class represents implementation of ClientInterface. It is responsible
@@ -26,24 +27,58 @@ public class ClientImplementation extends UnicastRemoteObject implements ClientI
 	/*
 	 * Method used to insert messages to this client
 	 * (non-Javadoc)
-	 * @see ClientInterface#pushTrace(java.lang.String)
+	 * @see ClientInterface#pushTrace(Trace)
 	 */
-	public void pushTrace(String trace) throws RemoteException {
-		System.out.println(trace);
+	public void pushTrace(Trace trace) throws RemoteException {
+		System.out.println(trace.getTrace());
 	}
 
 	@Override
 	/*
 	 * Method used by servers to push file data and trace message onto this client
 	 * (non-Javadoc)
-	 * @see ClientInterface#pushFile(byte[], java.lang.String, java.lang.String)
+	 * @see ClientInterface#pushFile(byte[], Trace, java.lang.String)
 	 */
-	public boolean pushFile(byte[] buffer, String trace, String fileName) throws RemoteException {
+	public boolean pushFile(byte[] buffer, Trace trace, String fileName) throws RemoteException {
 
-		System.out.println(trace);
+		System.out.println(trace.getTrace());
 		return client.fileInsert(buffer, fileName);
 	}
 
+	@Override
+	/*
+	 * Method used by servers to push a chunk of file data onto this client
+	 * (non-Javadoc)
+	 * @see ClientInterface#pushChunk(Chunk)
+	 */
+	public boolean pushChunk(Chunk chunk) throws RemoteException {
+		return client.chunkInsert(chunk);
+	}
+
+	@Override
+	/*
+	 * Method used by servers to push locations of replicas of a file, and
+	 * version of the copy sent, onto this client (non-Javadoc)
+	 * @see ClientInterface#pushLocations(java.lang.String, VersionVector, java.util.ArrayList)
+	 */
+	public void pushLocations(String fileName, VersionVector version, ArrayList<ReplicaLocation> locations)
+			throws RemoteException {
+		client.seenVersion(fileName, version);
+		client.cacheLocations(fileName, locations);
+		if (!locations.isEmpty())
+			client.recordAccess(fileName, locations.get(0).getHostName());
+	}
+
+	@Override
+	/*
+	 * Method used by servers to tell this client of a related file prefetched
+	 * next to it (non-Javadoc)
+	 * @see ClientInterface#pushPrefetched(java.lang.String, ReplicaLocation)
+	 */
+	public void pushPrefetched(String fileName, ReplicaLocation location) throws RemoteException {
+		client.addLocation(fileName, location);
+	}
+
 	@Override
 	/*
 	 * Return host name of the client machine
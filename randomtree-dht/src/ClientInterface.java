@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 /**
  * Interface providing callback functionality for interaction with the client machine
  * @author Anurag Malik, am3926
@@ -7,11 +8,23 @@ import java.rmi.RemoteException;
  */
 public interface ClientInterface extends Remote {
 	// push message onto client machine
-	public void pushTrace(String trace) throws RemoteException;
+	public void pushTrace(Trace trace) throws RemoteException;
 	
 	// push request file data and trace onto client machine
-	public boolean pushFile(byte[] buffer, String trace, String fileName) throws RemoteException;
+	public boolean pushFile(byte[] buffer, Trace trace, String fileName) throws RemoteException;
 	
+	// push a chunk of requested file data onto client machine
+	public boolean pushChunk(Chunk chunk) throws RemoteException;
+
+	// push locations of servers holding a replica of requested file, along
+	// with version of the copy sent
+	public void pushLocations(String fileName, VersionVector version, ArrayList<ReplicaLocation> locations)
+			throws RemoteException;
+
+	// push location of a replica of a file prefetched next to the client, as
+	// it usually follows the file requested
+	public void pushPrefetched(String fileName, ReplicaLocation location) throws RemoteException;
+
 	// request host name of the client machine
 	public String getAddress() throws RemoteException;
 }
@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CoAccessTracker mines which files are requested soon after a file served
+ * by a server, within the same client session. For every file served, it
+ * counts how often the file was served and how often each other file
+ * followed it, as reported by servers serving those files. Files following
+ * often enough are returned as related, to be prefetched next to the client.
+ * Counts are halved once a file has been served many times, so that
+ * associations follow changes of access patterns, and least recently served
+ * files are forgotten beyond a bound.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class CoAccessTracker {
+
+	// number of times a file is to follow another one, and fraction of times
+	// the other one was served, for files to be related
+	static final int MIN_SUPPORT = Integer.getInteger("dht.prefetch.support", 3);
+	static final double MIN_CONFIDENCE = Double.parseDouble(System.getProperty("dht.prefetch.confidence", "0.5"));
+
+	// related files returned for a file at once
+	static final int MAX_RELATED = 4;
+
+	// files tracked, files tracked following each of them, and times a file
+	// is served before its counts are halved
+	private static final int MAX_FILES = 4096;
+	private static final int MAX_FOLLOWERS = 16;
+	private static final int MAX_COUNT = 64;
+
+	/**
+	 * Counts kept for a file served
+	 */
+	private static class Counts {
+		int served;
+		HashMap<String, Integer> followers = new HashMap<>();
+	}
+
+	// files served, least recently served first
+	private LinkedHashMap<String, Counts> files;
+
+	public CoAccessTracker() {
+		files = new LinkedHashMap<String, Counts>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Counts> eldest) {
+				return size() > MAX_FILES;
+			}
+		};
+	}
+
+	/**
+	 * Count a file served to a client session
+	 * 
+	 * @param fileName
+	 *            : file served
+	 */
+	public synchronized void served(String fileName) {
+		Counts counts = files.get(fileName);
+		if (counts == null) {
+			counts = new Counts();
+			files.put(fileName, counts);
+		}
+		if (++counts.served > MAX_COUNT)
+			age(counts);
+	}
+
+	/**
+	 * Count a file requested after another one by the same client session
+	 * 
+	 * @param fileName
+	 *            : file served first, by this server
+	 * @param follower
+	 *            : file requested after it
+	 */
+	public synchronized void followed(String fileName, String follower) {
+		Counts counts = files.get(fileName);
+		if (counts == null || fileName.equals(follower))
+			return;
+		Integer count = counts.followers.get(follower);
+		if (count == null && counts.followers.size() >= MAX_FOLLOWERS) {
+
+			// make room by dropping the follower seen least
+			String least = Collections.min(counts.followers.entrySet(), new Comparator<Map.Entry<String, Integer>>() {
+				@Override
+				public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+					return Integer.compare(a.getValue(), b.getValue());
+				}
+			}).getKey();
+			counts.followers.remove(least);
+		}
+		counts.followers.put(follower, count != null ? Math.min(count + 1, counts.served) : 1);
+	}
+
+	/**
+	 * Return files which usually follow a file
+	 * 
+	 * @param fileName
+	 *            : file served
+	 * @return related files, most frequent first
+	 */
+	public synchronized ArrayList<String> related(String fileName) {
+		ArrayList<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+		Counts counts = files.get(fileName);
+		if (counts != null) {
+			for (Map.Entry<String, Integer> entry : counts.followers.entrySet())
+				if (entry.getValue() >= MIN_SUPPORT && entry.getValue() >= MIN_CONFIDENCE * counts.served)
+					candidates.add(entry);
+		}
+		Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return Integer.compare(b.getValue(), a.getValue());
+			}
+		});
+
+		ArrayList<String> related = new ArrayList<>();
+		for (int i = 0; i < candidates.size() && i < MAX_RELATED; i++)
+			related.add(candidates.get(i).getKey());
+		return related;
+	}
+
+	/**
+	 * Halve counts of a file, dropping followers no longer seen
+	 * 
+	 * @param counts
+	 *            : counts of the file
+	 */
+	private static void age(Counts counts) {
+		counts.served /= 2;
+		Iterator<Map.Entry<String, Integer>> it = counts.followers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Integer> entry = it.next();
+			if (entry.getValue() < 2)
+				it.remove();
+			else
+				entry.setValue(entry.getValue() / 2);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression compresses file data sent between clients and servers, one
+ * chunk at a time so that it works with streamed transfers. Before a chunk is
+ * compressed a few samples of it are compressed first, and data which does
+ * not shrink, such as data already compressed, is sent as it is.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class Compression {
+
+	// compression of transfers by this client or server
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("dht.compress", "true"));
+	private static final int LEVEL = Integer.getInteger("dht.compress.level", Deflater.BEST_SPEED);
+
+	// data smaller than this is not worth compressing
+	private static final int MIN_SIZE = 1024;
+
+	// samples taken of a chunk, and compressed size below which data is
+	// worth compressing
+	private static final int SAMPLES = 4;
+	private static final int SAMPLE_SIZE = 4 * 1024;
+	private static final double MAX_RATIO = 0.9;
+
+	/**
+	 * Compress data if it is worth it
+	 * 
+	 * @param data
+	 *            : data to be sent
+	 * @return compressed data, null if data is to be sent as it is
+	 */
+	public static byte[] compress(byte[] data) {
+		return ENABLED ? shrink(data) : null;
+	}
+
+	/**
+	 * Compress data kept at rest if it is worth it, whether transfers are
+	 * compressed or not
+	 * 
+	 * @param data
+	 *            : data to be stored
+	 * @return compressed data, null if data is to be stored as it is
+	 */
+	public static byte[] shrink(byte[] data) {
+		if (data.length < MIN_SIZE || !isCompressible(data))
+			return null;
+		byte[] compressed = deflate(data);
+		return compressed.length < data.length * MAX_RATIO ? compressed : null;
+	}
+
+	/**
+	 * Guess if data is compressible by compressing samples spread over it
+	 * 
+	 * @param data
+	 *            : data to be sent
+	 * @return true if samples shrink enough
+	 */
+	public static boolean isCompressible(byte[] data) {
+		if (data.length <= SAMPLES * SAMPLE_SIZE)
+			return true;
+
+		byte[] samples = new byte[SAMPLES * SAMPLE_SIZE];
+		long stride = (data.length - SAMPLE_SIZE) / (SAMPLES - 1);
+		for (int i = 0; i < SAMPLES; i++)
+			System.arraycopy(data, (int) (i * stride), samples, i * SAMPLE_SIZE, SAMPLE_SIZE);
+		return deflate(samples).length < samples.length * MAX_RATIO;
+	}
+
+	/**
+	 * Compress data
+	 * 
+	 * @param data
+	 *            : data to be compressed
+	 * @return compressed data
+	 */
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(LEVEL);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished())
+				output.write(buffer, 0, deflater.deflate(buffer));
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompress data
+	 * 
+	 * @param data
+	 *            : compressed data
+	 * @param length
+	 *            : length of the data once decompressed
+	 * @return decompressed data
+	 * @throws IllegalStateException
+	 *             if data is corrupt
+	 */
+	public static byte[] decompress(byte[] data, int length) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] output = new byte[length];
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(output, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+			if (inflated != length)
+				throw new IllegalStateException("Compressed data is truncated");
+			return output;
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed data is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
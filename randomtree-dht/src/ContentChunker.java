@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * ContentChunker splits a stream of file data into chunks whose boundaries
+ * depend on the content itself, shared by clients and servers. A rolling gear
+ * hash of the last bytes read picks a boundary wherever its top bits are all
+ * zero, so that an insertion or deletion only moves the boundaries next to
+ * it and files sharing most of their bytes share most of their chunks.
+ * Chunks are named by the SHA-256 hash of their content.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ContentChunker {
+
+	// smallest and largest chunk, boundaries fall about every 64 KB in between
+	static final int MIN_SIZE = 16 * 1024;
+	static final int MAX_SIZE = 256 * 1024;
+	private static final int AVERAGE_BITS = 16;
+
+	// random value of every byte, same on every machine for boundaries to match
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5eed);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private InputStream input;
+	private byte[] buffer;
+	private int buffered;
+	private boolean ended;
+
+	public ContentChunker(InputStream input) {
+		this.input = input;
+		buffer = new byte[MAX_SIZE];
+	}
+
+	/**
+	 * Return the next chunk of the stream
+	 * 
+	 * @return data of the chunk, null at end of stream
+	 * @throws IOException
+	 */
+	public byte[] next() throws IOException {
+		while (!ended && buffered < buffer.length) {
+			int read = input.read(buffer, buffered, buffer.length - buffered);
+			if (read < 0)
+				ended = true;
+			else
+				buffered += read;
+		}
+		if (buffered == 0)
+			return null;
+
+		int cut = findBoundary(buffer, buffered);
+		byte[] chunk = Arrays.copyOf(buffer, cut);
+		System.arraycopy(buffer, cut, buffer, 0, buffered - cut);
+		buffered -= cut;
+		return chunk;
+	}
+
+	/**
+	 * Find end of the first chunk of some data
+	 * 
+	 * @param data
+	 *            : data to be chunked
+	 * @param length
+	 *            : number of bytes of data available
+	 * @return length of the first chunk
+	 */
+	private static int findBoundary(byte[] data, int length) {
+		if (length <= MIN_SIZE)
+			return length;
+
+		long hash = 0;
+		int end = Math.min(length, MAX_SIZE);
+		for (int i = 0; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if (i >= MIN_SIZE && (hash >>> (64 - AVERAGE_BITS)) == 0)
+				return i + 1;
+		}
+		return end;
+	}
+
+	/**
+	 * Return name of a chunk, hex encoded SHA-256 hash of its content
+	 * 
+	 * @param data
+	 *            : content of the chunk
+	 * @return hash of the content
+	 */
+	public static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+}
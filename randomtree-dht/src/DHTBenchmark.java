@@ -0,0 +1,514 @@
+import java.io.File;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DHTBenchmark measures the distributed hash table under a synthetic
+ * workload. File popularity follows a Zipf distribution, file sizes a log
+ * normal distribution, and each operation is a download through a random leaf
+ * node or an upload to the root node of each tree of the file, in a
+ * configurable mix. In closed loop mode a fixed number of threads issue
+ * operations back to back; in open loop mode operations arrive at a fixed mean
+ * rate regardless of completions, and latency is measured from the intended
+ * arrival time.
+ * 
+ * Throughput, latency percentiles, hops per download with time spent in each
+ * type of hop and, for a cluster started within this JVM, replication traffic
+ * are reported at the end.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class DHTBenchmark {
+
+	// workload configuration, set by key=value arguments
+	private int files = 1000;
+	private double zipf = 0.99;
+	private long medianSize = 64 * 1024;
+	private double sizeSigma = 1.0;
+	private long maxSize = 16 * 1024 * 1024;
+	private double readRatio = 0.9;
+	private boolean openLoop = false;
+	private int threads = 8;
+	private double rate = 200;
+	private int warmup = 5;
+	private int duration = 30;
+	private int cluster = 0;
+	private int basePort = 5040;
+	private int threshold = DHTServer.REPLICATION_THRESHOLD;
+	private int depth = DHTServer.TREE_DEPTH;
+
+	private String[] servers;
+	private HashMap<String, S2CInterface> stubs;
+	private DHTCluster localCluster;
+	private ZipfGenerator popularity;
+	private int[] sizes;
+	private byte[] payload;
+
+	private LatencyHistogram readLatency;
+	private LatencyHistogram writeLatency;
+	private EnumMap<Trace.HopType, LatencyHistogram> hopLatency;
+	private AtomicLong hops;
+	private AtomicLong misses;
+	private AtomicLong errors;
+	private AtomicLong rejected;
+	private AtomicLong bytesRead;
+	private volatile long measureStart;
+	private volatile long measureEnd;
+
+	public DHTBenchmark() {
+		stubs = new HashMap<>();
+		readLatency = new LatencyHistogram();
+		writeLatency = new LatencyHistogram();
+		hopLatency = new EnumMap<>(Trace.HopType.class);
+		for (Trace.HopType type : Trace.HopType.values())
+			hopLatency.put(type, new LatencyHistogram());
+		hops = new AtomicLong();
+		misses = new AtomicLong();
+		errors = new AtomicLong();
+		rejected = new AtomicLong();
+		bytesRead = new AtomicLong();
+	}
+
+	/**
+	 * Client callback used by benchmark threads, counting data received and
+	 * hops taken by the request. One callback serves one request at a time.
+	 */
+	private static class BenchmarkCallback extends UnicastRemoteObject implements ClientInterface {
+		private static final long serialVersionUID = 1L;
+		long bytes;
+		Trace trace;
+
+		protected BenchmarkCallback() throws RemoteException {
+			super();
+		}
+
+		@Override
+		public void pushTrace(Trace trace) throws RemoteException {
+			this.trace = trace;
+		}
+
+		@Override
+		public boolean pushFile(byte[] buffer, Trace trace, String fileName) throws RemoteException {
+			bytes += buffer.length;
+			this.trace = trace;
+			return true;
+		}
+
+		@Override
+		public boolean pushChunk(Chunk chunk) throws RemoteException {
+			bytes += chunk.getData().length;
+			return true;
+		}
+
+		@Override
+		public void pushLocations(String fileName, VersionVector version, ArrayList<ReplicaLocation> locations)
+				throws RemoteException {
+		}
+
+		@Override
+		public void pushPrefetched(String fileName, ReplicaLocation location) throws RemoteException {
+		}
+
+		@Override
+		public String getAddress() throws RemoteException {
+			return "benchmark";
+		}
+	}
+
+	/**
+	 * Apply a key=value argument to the configuration
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	private void configure(String key, String value) {
+		switch (key) {
+		case "files":
+			files = Integer.parseInt(value);
+			break;
+		case "zipf":
+			zipf = Double.parseDouble(value);
+			break;
+		case "size":
+			medianSize = Long.parseLong(value);
+			break;
+		case "sigma":
+			sizeSigma = Double.parseDouble(value);
+			break;
+		case "maxSize":
+			maxSize = Long.parseLong(value);
+			break;
+		case "reads":
+			readRatio = Double.parseDouble(value);
+			break;
+		case "mode":
+			openLoop = value.equals("open");
+			break;
+		case "threads":
+			threads = Integer.parseInt(value);
+			break;
+		case "rate":
+			rate = Double.parseDouble(value);
+			break;
+		case "warmup":
+			warmup = Integer.parseInt(value);
+			break;
+		case "duration":
+			duration = Integer.parseInt(value);
+			break;
+		case "cluster":
+			cluster = Integer.parseInt(value);
+			break;
+		case "port":
+			basePort = Integer.parseInt(value);
+			break;
+		case "threshold":
+			threshold = Integer.parseInt(value);
+			break;
+		case "depth":
+			depth = Integer.parseInt(value);
+			break;
+		case "trees":
+
+			// hashing of files onto servers is fixed once ServerTable is
+			// loaded, which happens after the arguments are read
+			System.setProperty("dht.trees", value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option : " + key);
+		}
+	}
+
+	/**
+	 * Start a local cluster if requested, generate file sizes and upload all
+	 * files once.
+	 * 
+	 * @throws Exception
+	 */
+	private void setUp() throws Exception {
+		if (cluster > 0) {
+			String directory = System.getProperty("java.io.tmpdir") + File.separator + "dht-benchmark";
+			localCluster = new DHTCluster(cluster, basePort, directory, threshold, depth);
+			localCluster.start();
+			servers = localCluster.getAddresses();
+		} else
+			servers = ServerTable.getServers();
+
+		// draw file sizes from a log normal distribution
+		Random random = new Random(42);
+		sizes = new int[files];
+		long largest = 0;
+		for (int i = 0; i < files; i++) {
+			double size = medianSize * Math.exp(sizeSigma * random.nextGaussian());
+			sizes[i] = (int) Math.max(1, Math.min(maxSize, size));
+			largest = Math.max(largest, sizes[i]);
+		}
+		payload = new byte[(int) largest];
+		random.nextBytes(payload);
+
+		popularity = new ZipfGenerator(files, zipf);
+		System.out.println("Uploading " + files + " files to " + servers.length + " servers.");
+		for (int i = 0; i < files; i++)
+			write(i);
+	}
+
+	/**
+	 * Return RMI interface of a server, connecting to it on first use
+	 * 
+	 * @param server
+	 *            : address of the server
+	 * @return client interface of the server
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private S2CInterface getServer(String server) throws MalformedURLException, RemoteException, NotBoundException {
+		synchronized (stubs) {
+			S2CInterface stub = stubs.get(server);
+			if (stub == null) {
+				stub = (S2CInterface) Naming.lookup(ServerTable.getURL(server, "dht"));
+				stubs.put(server, stub);
+			}
+			return stub;
+		}
+	}
+
+	/**
+	 * Return address of the server responsible for a file at a tree node
+	 * 
+	 * @param fileName
+	 * @param tree
+	 * @param node
+	 * @return
+	 */
+	private String getHost(String fileName, int tree, String node) {
+		return servers[ServerTable.getIndex(fileName, tree, node, servers.length)];
+	}
+
+	/**
+	 * Upload a file to the root node of each of its trees
+	 * 
+	 * @param item
+	 *            : rank of the file
+	 * @throws Exception
+	 */
+	private void write(int item) throws Exception {
+		String fileName = "bench-" + item;
+		byte[] data = Arrays.copyOf(payload, sizes[item]);
+		for (int tree = 0; tree < ServerTable.TREES; tree++)
+			getServer(getHost(fileName, tree, "00")).insertFile(data, fileName, tree);
+	}
+
+	/**
+	 * Download a file through a random leaf node of a random tree
+	 * 
+	 * @param item
+	 *            : rank of the file
+	 * @param callback
+	 *            : callback receiving the file
+	 * @param random
+	 * @return true if the file was found
+	 * @throws Exception
+	 */
+	private boolean read(int item, BenchmarkCallback callback, Random random) throws Exception {
+		String fileName = "bench-" + item;
+		int level = depth - 1;
+		int[] leaf = { level, random.nextInt(1 << level) };
+		int tree = random.nextInt(ServerTable.TREES);
+
+		Request request = new Request();
+		request.setFileName(fileName);
+		request.setTree(tree);
+		request.setDestination(leaf);
+		request.setClient(callback);
+		callback.bytes = 0;
+		callback.trace = null;
+		return getServer(getHost(fileName, tree, "" + leaf[0] + leaf[1])).requestFile(request);
+	}
+
+	/**
+	 * Execute one operation and record its latency if it was meant to start
+	 * within the measurement window, however late it completes.
+	 * 
+	 * @param callback
+	 *            : callback of the calling thread
+	 * @param random
+	 *            : random source of the calling thread
+	 * @param intendedStart
+	 *            : time the operation was meant to start
+	 */
+	private void execute(BenchmarkCallback callback, Random random, long intendedStart) {
+		int item = popularity.next(random);
+		boolean isRead = random.nextDouble() < readRatio;
+		try {
+			boolean found = true;
+			if (isRead)
+				found = read(item, callback, random);
+			else
+				write(item);
+
+			long end = System.nanoTime();
+			if (intendedStart < measureStart || intendedStart >= measureEnd)
+				return;
+
+			if (isRead) {
+				readLatency.record(end - intendedStart);
+				if (callback.trace != null) {
+					hops.addAndGet(callback.trace.getHopCount());
+					for (Trace.Hop hop : callback.trace.getHops())
+						hopLatency.get(hop.getType()).record(hop.getDuration());
+				}
+				bytesRead.addAndGet(callback.bytes);
+				if (!found)
+					misses.incrementAndGet();
+			} else
+				writeLatency.record(end - intendedStart);
+		} catch (ServerBusyException e) {
+			if (intendedStart >= measureStart && intendedStart < measureEnd)
+				rejected.incrementAndGet();
+		} catch (Exception e) {
+			if (intendedStart >= measureStart && intendedStart < measureEnd)
+				errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Run operations back to back from a fixed number of threads.
+	 * 
+	 * @throws Exception
+	 */
+	private void runClosedLoop() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int i = 0; i < threads; i++) {
+			final BenchmarkCallback callback = new BenchmarkCallback();
+			final Random random = new Random(i);
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < measureEnd)
+						execute(callback, random, System.nanoTime());
+				}
+			});
+		}
+		pool.shutdown();
+		drain(pool);
+	}
+
+	/**
+	 * Issue operations with exponentially distributed inter arrival times at
+	 * the configured mean rate, independent of how fast they complete.
+	 * 
+	 * @throws Exception
+	 */
+	private void runOpenLoop() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final BlockingQueue<BenchmarkCallback> callbacks = new ArrayBlockingQueue<>(threads);
+		for (int i = 0; i < threads; i++)
+			callbacks.add(new BenchmarkCallback());
+
+		Random arrivals = new Random(7);
+		long next = System.nanoTime();
+		long seed = 0;
+		while (next < measureEnd) {
+			next += (long) (-Math.log(1 - arrivals.nextDouble()) / rate * 1e9);
+			long wait = next - System.nanoTime();
+			if (wait > 0)
+				TimeUnit.NANOSECONDS.sleep(wait);
+
+			final long intendedStart = next;
+			final Random random = new Random(seed++);
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					BenchmarkCallback callback = callbacks.poll();
+					try {
+						execute(callback, random, intendedStart);
+					} finally {
+						callbacks.add(callback);
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		drain(pool);
+	}
+
+	/**
+	 * Wait for operations still in flight, or still queued in open loop mode,
+	 * at the end of the measurement window, so that every operation meant to
+	 * start within the window is reported.
+	 * 
+	 * @param pool
+	 *            : threads running the operations, shut down
+	 * @throws InterruptedException
+	 */
+	private void drain(ExecutorService pool) throws InterruptedException {
+		while (!pool.awaitTermination(10, TimeUnit.SECONDS))
+			System.out.println("Waiting for operations in flight.");
+	}
+
+	/**
+	 * Run the workload and print results.
+	 * 
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+		setUp();
+
+		long pushesBefore = 0, bytesBefore = 0;
+		if (localCluster != null)
+			for (DHTServer server : localCluster.getServers()) {
+				pushesBefore += server.getReplicationPushes();
+				bytesBefore += server.getReplicationBytes();
+			}
+
+		long now = System.nanoTime();
+		measureStart = now + TimeUnit.SECONDS.toNanos(warmup);
+		measureEnd = measureStart + TimeUnit.SECONDS.toNanos(duration);
+		System.out.println("Running " + (openLoop ? "open loop at " + rate + " ops/s" : "closed loop")
+				+ " with " + threads + " threads for " + warmup + "s warmup + " + duration + "s.");
+		if (openLoop)
+			runOpenLoop();
+		else
+			runClosedLoop();
+
+		long reads = readLatency.getCount();
+		long writes = writeLatency.getCount();
+		System.out.println("\n*** BENCHMARK RESULTS ***");
+		System.out.println(String.format("Throughput : %.1f ops/s (%d reads, %d writes, %d busy, %d errors)",
+				(reads + writes) / (double) duration, reads, writes, rejected.get(), errors.get()));
+		System.out.println("Reads  : " + readLatency.getSummary());
+		System.out.println("Writes : " + writeLatency.getSummary());
+		System.out.println(String.format("Hops per read : %.2f, not found : %d, read bandwidth : %.1f MB/s",
+				reads == 0 ? 0 : hops.get() / (double) reads, misses.get(), bytesRead.get() / 1e6 / duration));
+		for (Trace.HopType type : Trace.HopType.values())
+			System.out.println("  " + type + " : " + hopLatency.get(type).getSummary());
+
+		if (localCluster != null) {
+			long pushes = -pushesBefore, bytes = -bytesBefore;
+			for (DHTServer server : localCluster.getServers()) {
+				pushes += server.getReplicationPushes();
+				bytes += server.getReplicationBytes();
+			}
+			System.out.println(String.format("Replication : %d pushes, %.1f MB", pushes, bytes / 1e6));
+
+			// server side hop latencies include pushes, which client traces do
+			// not for whole file downloads
+			System.out.println("Server side hops (including warmup) :");
+			for (Trace.HopType type : Trace.HopType.values()) {
+				LatencyHistogram total = new LatencyHistogram();
+				for (DHTServer server : localCluster.getServers())
+					total.add(server.getHopLatency(type));
+				System.out.println("  " + type + " : " + total.getSummary());
+			}
+			localCluster.stop();
+		} else
+			System.out.println("Replication : not available for remote servers");
+	}
+
+	/**
+	 * Execution starts from the main method, taking workload configuration as
+	 * key=value arguments, e.g.
+	 * 
+	 * <pre>
+	 * java DHTBenchmark cluster=11 files=1000 zipf=0.99 reads=0.9 mode=open rate=500
+	 * </pre>
+	 * 
+	 * Without cluster=N, servers listed by the dht.servers system property or
+	 * the default servers are used. threshold=N and depth=N are passed to the
+	 * servers of a local cluster; remote servers keep their own, and depth=N
+	 * must then match theirs.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		DHTBenchmark benchmark = new DHTBenchmark();
+		try {
+			for (String arg : args) {
+				int split = arg.indexOf('=');
+				if (split < 0)
+					throw new IllegalArgumentException("Expected key=value : " + arg);
+				benchmark.configure(arg.substring(0, split), arg.substring(split + 1));
+			}
+			benchmark.run();
+		} catch (Exception e) {
+			System.out.println("Exception in Benchmark: " + e);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+/**
+ * DHTCluster starts a number of servers on the local machine, each one with
+ * its own port, lookup directory and a server table listing all of them on
+ * loopback. Servers are started either within this JVM or as separate local
+ * processes, which allows the distributed hash table to be tested and
+ * benchmarked on a single machine.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class DHTCluster {
+
+	private static final String HOST = "localhost";
+	private int size;
+	private int basePort;
+	private String baseDirectory;
+	private int replicationThreshold;
+	private int treeDepth;
+	private String[] addresses;
+	private ArrayList<DHTServer> servers;
+	private ArrayList<Process> processes;
+
+	/**
+	 * Create a cluster of servers listening on consecutive ports.
+	 * 
+	 * @param size
+	 *            : number of servers
+	 * @param basePort
+	 *            : port of the first server
+	 * @param baseDirectory
+	 *            : directory holding lookup directories of all servers
+	 */
+	public DHTCluster(int size, int basePort, String baseDirectory) {
+		this(size, basePort, baseDirectory, DHTServer.REPLICATION_THRESHOLD, DHTServer.TREE_DEPTH);
+	}
+
+	/**
+	 * Create a cluster of servers listening on consecutive ports, replicating
+	 * files after the given number of requests in trees of the given depth.
+	 * 
+	 * @param size
+	 *            : number of servers
+	 * @param basePort
+	 *            : port of the first server
+	 * @param baseDirectory
+	 *            : directory holding lookup directories of all servers
+	 * @param replicationThreshold
+	 *            : number of requests after which a file is replicated onto
+	 *            child nodes
+	 * @param treeDepth
+	 *            : number of levels of the tree
+	 */
+	public DHTCluster(int size, int basePort, String baseDirectory, int replicationThreshold, int treeDepth) {
+		this.size = size;
+		this.basePort = basePort;
+		this.replicationThreshold = replicationThreshold;
+		this.treeDepth = treeDepth;
+		this.baseDirectory = baseDirectory.endsWith("/") ? baseDirectory : baseDirectory + "/";
+		this.servers = new ArrayList<>();
+		this.processes = new ArrayList<>();
+
+		addresses = new String[size];
+		for (int i = 0; i < size; i++)
+			addresses[i] = HOST + ":" + (basePort + i);
+	}
+
+	/**
+	 * Return addresses of all servers of this cluster
+	 * 
+	 * @return
+	 */
+	public String[] getAddresses() {
+		return addresses.clone();
+	}
+
+	/**
+	 * Return path of the file listing all servers, to be passed to clients
+	 * through the dht.servers system property.
+	 * 
+	 * @return
+	 */
+	public String getServerTablePath() {
+		return baseDirectory + "servers.txt";
+	}
+
+	/**
+	 * Return servers running within this JVM
+	 * 
+	 * @return
+	 */
+	public ArrayList<DHTServer> getServers() {
+		return servers;
+	}
+
+	/**
+	 * Return lookup directory of a server of this cluster
+	 * 
+	 * @param index
+	 *            : index of the server
+	 * @return path of lookup directory
+	 */
+	private String getDirectory(int index) {
+		return baseDirectory + "node" + index + "/";
+	}
+
+	/**
+	 * Create lookup directories of all servers and write the server table.
+	 * 
+	 * @throws IOException
+	 */
+	private void prepare() throws IOException {
+		for (int i = 0; i < size; i++)
+			new File(getDirectory(i)).mkdirs();
+		ServerTable.save(getServerTablePath(), addresses);
+	}
+
+	/**
+	 * Start all servers within this JVM. Servers are ready to accept requests
+	 * when this method returns.
+	 * 
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		prepare();
+
+		// stubs exported by servers should point at loopback
+		if (System.getProperty("java.rmi.server.hostname") == null)
+			System.setProperty("java.rmi.server.hostname", HOST);
+
+		for (int i = 0; i < size; i++) {
+			DHTServer server = new DHTServer(addresses[i], basePort + i, getDirectory(i), addresses,
+					replicationThreshold, treeDepth);
+			server.initServer();
+			server.execServer();
+			servers.add(server);
+		}
+	}
+
+	/**
+	 * Start every server as a separate local process, using class path of
+	 * this JVM.
+	 * 
+	 * @throws IOException
+	 */
+	public void startProcesses() throws IOException {
+		prepare();
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (int i = 0; i < size; i++) {
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					"-Djava.rmi.server.hostname=" + HOST, "-Ddht.servers=" + getServerTablePath(),
+					"-Ddht.replication.threshold=" + replicationThreshold, "-Ddht.tree.depth=" + treeDepth, "DHTServer",
+					addresses[i], "" + (basePort + i), getDirectory(i));
+			builder.inheritIO();
+			processes.add(builder.start());
+		}
+	}
+
+	/**
+	 * Stop all servers of this cluster.
+	 */
+	public void stop() {
+		for (DHTServer server : servers)
+			server.shutdown();
+		servers.clear();
+
+		for (Process process : processes)
+			process.destroy();
+		processes.clear();
+	}
+
+	/**
+	 * Start a cluster on the local machine and keep it running until enter is
+	 * pressed.
+	 * 
+	 * @param args
+	 *            : size [basePort] [baseDirectory] [-processes]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage : DHTCluster size [basePort] [baseDirectory] [-processes]");
+			return;
+		}
+
+		int size = Integer.parseInt(args[0]);
+		int basePort = args.length > 1 ? Integer.parseInt(args[1]) : ServerTable.DEFAULT_PORT;
+		String baseDirectory = args.length > 2 ? args[2] : System.getProperty("user.home") + "/Courses/dht/cluster/";
+		boolean fork = args.length > 3 && args[3].equals("-processes");
+
+		DHTCluster cluster = new DHTCluster(size, basePort, baseDirectory);
+		try {
+			if (fork)
+				cluster.startProcesses();
+			else
+				cluster.start();
+			System.out.println("Cluster of " + size + " servers running. Start clients with :\n\t-Ddht.servers="
+					+ cluster.getServerTablePath());
+			System.out.println("Press enter to stop.");
+			new Scanner(System.in).nextLine();
+		} catch (Exception e) {
+			System.out.println("Exception in Cluster: " + e);
+		} finally {
+			cluster.stop();
+		}
+	}
+}
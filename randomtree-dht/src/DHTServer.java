@@ -1,43 +1,364 @@
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.ObjectName;
 
 /**
  * DHTServer represents a server capable of interacting with other similar
  * servers in a distributed systems setup. Each server can accept file search
  * and download request from other servers on network or from client.
- *
+ * 
  * @author Anurag Malik, am3926
  *
  */
 public class DHTServer extends Thread implements Serializable {
 
 	private static final long serialVersionUID = 1L;
-	static final int PORT = 4040;
+
+	// number of requests after which a file is replicated onto child nodes
+	static final int REPLICATION_THRESHOLD = Integer.getInteger("dht.replication.threshold", 5);
+
+	// number of levels of the tree, leaf nodes being on the last level
+	static final int TREE_DEPTH = Integer.getInteger("dht.tree.depth", 3);
+
+	// number of requests a server serves at once, more are rejected as busy
+	static final int MAX_REQUESTS = Integer.getInteger("dht.admission.requests", 64);
+
+	// bytes of file data a server holds in memory at once for transfers
+	static final long MAX_BYTES = Long.getLong("dht.admission.bytes", 256L * 1024 * 1024);
+
+	// number of servers an upload is stored on before it is acknowledged,
+	// root included, 1 for no replication at insert time
+	static final int CHAIN_LENGTH = Integer.getInteger("dht.chain.length", 1);
+
+	// store files as content addressed chunks and replicate only the chunks
+	// a child node does not hold yet
+	static final boolean DEDUP = Boolean.getBoolean("dht.dedup");
+
+	// largest number of names returned by a name search at once
+	static final int MAX_PAGE = 1000;
+
+	// prefetch files usually requested after a file served onto the node a
+	// request entered the tree at
+	static final boolean PREFETCH = Boolean.parseBoolean(System.getProperty("dht.prefetch", "true"));
+
+	// seconds after which a partial upload no longer written is removed, and
+	// names of partial files
+	static final int PARTIAL_AGE = Integer.getInteger("dht.upload.timeout", 60 * 60);
+	private static final Pattern PARTIAL = Pattern.compile("\\..+\\.(insert|upload|delta|thaw)(\\.crc)?");
+
+	// seconds between retries of repairs of corrupt files moved aside, and
+	// names of such files
+	static final int REPAIR_RETRY = Integer.getInteger("dht.repair.retry", 5 * 60);
+	private static final String QUARANTINE = ".quarantine";
+	private static final Pattern QUARANTINED = Pattern.compile("\\.(.+)\\.quarantine");
+
 	private HashMap<Integer, String> hashTable;
-	private static HashMap<String, Integer> fileMap;
+	private HashMap<String, Integer> fileMap;
+	private HashMap<String, Long> checksumMap;
+	private HashMap<String, BlockSignature> signatureMap;
+	private HashMap<String, HashSet<String>> replicaMap;
+
+	// number of signatures invalidated, guarded by signatureMap, so that a
+	// signature computed while its file was written is not kept
+	private long signatureUpdates;
+
+	// names of files stored on this server, sorted for name searches
+	private TreeSet<String> fileIndex;
+
+	// version of the copy of each file held, and latest version each file is
+	// known to have reached through invalidations, versionMap being locked
+	// first when both are held
+	private HashMap<String, VersionVector> versionMap;
+	private HashMap<String, VersionVector> invalidMap;
+	private CoAccessTracker coAccess;
+	private AtomicInteger inFlight;
+	private AtomicLong inFlightBytes;
+	private AtomicLong requestsRejected;
+	private AtomicLong requestsServed;
+	private AtomicLong requestsForwarded;
+	private AtomicLong bytesRead;
+	private AtomicLong bytesSent;
+	private AtomicLong replicationPushes;
+	private AtomicLong replicationBytes;
+	private AtomicLong dedupBytes;
+	private AtomicLong prefetches;
+	private AtomicLong memoryReads;
+	private EnumMap<Trace.HopType, LatencyHistogram> hopLatency;
+	private IOScheduler scheduler;
+	private ExecutorService replicationExecutor;
+	private ExecutorService chainExecutor;
+	private ExecutorService invalidationExecutor;
+	private ExecutorService prefetchExecutor;
+	private ScheduledExecutorService checkpointExecutor;
+	private ScheduledExecutorService tierExecutor;
+	private HashMap<String, S2SInterface> peers;
+	private HashSet<String> pendingReplication;
+	private HashSet<String> repeatReplication;
+	private HashSet<String> pendingRepair;
+
+	// offset and length of every chunk received of uploads sent in parts, by
+	// partial file
+	private HashMap<String, HashMap<Long, Integer>> received;
+
+	// held while a stored file and its checksums are replaced together
+	private final Object storeLock = new Object();
+	private ChunkStore chunkStore;
+	private StateStore state;
+	private TieredStore tiers;
 	private String lookupDirectory;
+	private String serverName;
+	private String[] servers;
+	private int port;
+	private int replicationThreshold;
+	private int treeDepth;
+	private Registry registry;
+	private S2CInterface exportedObj;
+	private S2SInterface serverInterface;
+	private ObjectName metricsName;
 	private int TOTAL_SERVERS = 0;
 
 	// Initialize hash map of all servers over network and default directory for
 	// this server.
 	public DHTServer() {
+		this(null, ServerTable.DEFAULT_PORT, null, ServerTable.getServers());
+	}
+
+	/**
+	 * Create a server with its own name, port, lookup directory and table of
+	 * servers, allowing several servers to run on one machine.
+	 * 
+	 * @param serverName
+	 *            : name of this server, host name of the machine if null
+	 * @param port
+	 *            : port of RMI registry of this server
+	 * @param lookupDirectory
+	 *            : directory holding files of this server, default directory
+	 *            if null
+	 * @param servers
+	 *            : addresses of all servers on network
+	 */
+	public DHTServer(String serverName, int port, String lookupDirectory, String[] servers) {
+		this(serverName, port, lookupDirectory, servers, REPLICATION_THRESHOLD, TREE_DEPTH);
+	}
+
+	/**
+	 * Create a server with its own name, port, lookup directory and table of
+	 * servers, replicating files after the given number of requests in trees
+	 * of the given depth.
+	 * 
+	 * @param serverName
+	 *            : name of this server, host name of the machine if null
+	 * @param port
+	 *            : port of RMI registry of this server
+	 * @param lookupDirectory
+	 *            : directory holding files of this server, default directory
+	 *            if null
+	 * @param servers
+	 *            : addresses of all servers on network
+	 * @param replicationThreshold
+	 *            : number of requests after which a file is replicated onto
+	 *            child nodes
+	 * @param treeDepth
+	 *            : number of levels of the tree
+	 */
+	public DHTServer(String serverName, int port, String lookupDirectory, String[] servers, int replicationThreshold,
+			int treeDepth) {
+		this.serverName = serverName != null ? serverName : getLocalHostName();
+		this.port = port;
+		this.replicationThreshold = replicationThreshold;
+		this.treeDepth = treeDepth;
+		this.servers = servers;
+		this.lookupDirectory = lookupDirectory != null ? lookupDirectory
+				: System.getProperty("user.home") + "/Courses/dht/" + this.serverName + "/";
 		hashTable = new HashMap<>();
 		fileMap = new HashMap<>();
-		lookupDirectory = System.getProperty("user.home") + "/Courses/dht/" + getHostName() + "/";
+		checksumMap = new HashMap<>();
+		signatureMap = new HashMap<>();
+		replicaMap = new HashMap<>();
+		versionMap = new HashMap<>();
+		invalidMap = new HashMap<>();
+		coAccess = new CoAccessTracker();
+		inFlight = new AtomicInteger();
+		inFlightBytes = new AtomicLong();
+		requestsRejected = new AtomicLong();
+		requestsServed = new AtomicLong();
+		requestsForwarded = new AtomicLong();
+		bytesRead = new AtomicLong();
+		bytesSent = new AtomicLong();
+		replicationPushes = new AtomicLong();
+		replicationBytes = new AtomicLong();
+		dedupBytes = new AtomicLong();
+		prefetches = new AtomicLong();
+		memoryReads = new AtomicLong();
+		hopLatency = new EnumMap<>(Trace.HopType.class);
+		for (Trace.HopType type : Trace.HopType.values())
+			hopLatency.put(type, new LatencyHistogram());
+		scheduler = new IOScheduler();
+		pendingReplication = new HashSet<>();
+		repeatReplication = new HashSet<>();
+		pendingRepair = new HashSet<>();
+		received = new HashMap<>();
+		chunkStore = new ChunkStore(this.lookupDirectory);
+		tiers = new TieredStore(this.lookupDirectory, storeLock);
+		removePartials(0);
+		createChecksums();
+		fileIndex = new TreeSet<>();
+		for (File file : getStoredFiles())
+			fileIndex.add(file.getName());
+		restoreState();
+
+		// replication runs on a background thread, so that it neither delays
+		// the request which triggered it nor keeps the JVM alive
+		replicationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "replication-" + DHTServer.this.serverName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// chunks of uploads are passed down the chain while being written
+		chainExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "chain-" + DHTServer.this.serverName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// invalidations are small and sent ahead of the replication they
+		// announce, on a thread of their own
+		invalidationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "invalidation-" + DHTServer.this.serverName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// co-access reports and prefetches are sent after a file is served
+		prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "prefetch-" + DHTServer.this.serverName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// state is logged as it changes, the log flushed every second and
+		// compacted into a snapshot from time to time
+		checkpointExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "checkpoint-" + DHTServer.this.serverName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		checkpointExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				state.flush();
+				if (state.isLogFull())
+					state.checkpoint();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		checkpointExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				state.checkpoint();
+			}
+		}, StateStore.CHECKPOINT_INTERVAL, StateStore.CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+
+		// files are moved between memory, disk and cold tiers as their
+		// popularity changes
+		tierExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "tier-" + DHTServer.this.serverName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		tierExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				moveTiers();
+			}
+		}, TieredStore.INTERVAL, TieredStore.INTERVAL, TimeUnit.SECONDS);
+
+		// the same thread removes uploads abandoned by their senders, along
+		// with chunks stored for them
+		tierExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				removePartials(PARTIAL_AGE * 1000L);
+				chunkStore.removeUnused(PARTIAL_AGE * 1000L);
+			}
+		}, PARTIAL_AGE, PARTIAL_AGE, TimeUnit.SECONDS);
+
+		// and retries repairs of corrupt files moved aside
+		tierExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				retryQuarantined();
+			}
+		}, REPAIR_RETRY, REPAIR_RETRY, TimeUnit.SECONDS);
+		peers = new HashMap<>();
 	}
 
 	public void run() {
@@ -50,9 +371,6 @@ public class DHTServer extends Thread implements Serializable {
 	 * network.
 	 */
 	public void initServer() {
-		String[] servers = { "glados.cs.rit.edu", "kansas.cs.rit.edu", "gorgon.cs.rit.edu",
-				"newyork.cs.rit.edu", "yes.cs.rit.edu", "kinks.cs.rit.edu", "medusa.cs.rit.edu", "joplin.cs.rit.edu",
-				"delaware.cs.rit.edu", "buddy.cs.rit.edu", "arizona.cs.rit.edu" };
 		TOTAL_SERVERS = servers.length;
 		for (int i = 0; i < TOTAL_SERVERS; i++) {
 			hashTable.put(i, servers[i]);
@@ -79,15 +397,19 @@ public class DHTServer extends Thread implements Serializable {
 
 		try {
 			// export rmi instance for Server to Client interaction
-			S2CInterface exportedObj = new S2CImplementation(this);
+			exportedObj = new S2CImplementation(this);
 
 			// export rmi instance for Server to Server interaction
-			S2SInterface serverInterface = new S2SImplementation(this);
+			serverInterface = new S2SImplementation(this);
 
 			// bind exported instanced on RMI registry
-			Registry registry = LocateRegistry.createRegistry(PORT);
+			registry = LocateRegistry.createRegistry(port);
 			registry.rebind("dht", exportedObj);
 			registry.rebind("server", serverInterface);
+
+			// register metrics of this server for monitoring over JMX
+			metricsName = new ObjectName("dht:type=DHTServer,name=" + ObjectName.quote(serverName));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new DHTServerMetrics(this), metricsName);
 			System.out.println("Server Name : " + getHostName());
 			System.out.println("Lookup directory : " + lookupDirectory);
 
@@ -96,12 +418,49 @@ public class DHTServer extends Thread implements Serializable {
 		}
 	}
 
+	/**
+	 * Stop serving requests, removing exported instances and RMI registry of
+	 * this server.
+	 */
+	public void shutdown() {
+		replicationExecutor.shutdownNow();
+		chainExecutor.shutdownNow();
+		invalidationExecutor.shutdownNow();
+		prefetchExecutor.shutdownNow();
+		checkpointExecutor.shutdownNow();
+		tierExecutor.shutdownNow();
+		state.close();
+		try {
+			if (exportedObj != null)
+				UnicastRemoteObject.unexportObject(exportedObj, true);
+			if (serverInterface != null)
+				UnicastRemoteObject.unexportObject(serverInterface, true);
+			if (registry != null)
+				UnicastRemoteObject.unexportObject(registry, true);
+			if (metricsName != null)
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (NoSuchObjectException | InstanceNotFoundException e) {
+			System.out.println("Server " + serverName + " already stopped.");
+		} catch (MBeanRegistrationException e) {
+			System.out.println("Failed to unregister metrics of " + serverName);
+		}
+	}
+
 	/**
 	 * Return host name for this server
 	 * 
 	 * @return host name of the current server.
 	 */
 	public String getHostName() {
+		return serverName;
+	}
+
+	/**
+	 * Return host name of the machine running this server
+	 * 
+	 * @return host name of the machine
+	 */
+	private static String getLocalHostName() {
 		try {
 			return InetAddress.getLocalHost().getHostName();
 		} catch (UnknownHostException e) {
@@ -110,41 +469,133 @@ public class DHTServer extends Thread implements Serializable {
 		return null;
 	}
 
+	/**
+	 * Return number of requests after which a file is replicated onto child
+	 * nodes
+	 * 
+	 * @return replication threshold
+	 */
+	public int getReplicationThreshold() {
+		return replicationThreshold;
+	}
+
+	/**
+	 * Return number of levels of the tree, leaf nodes being on the last level
+	 * 
+	 * @return depth of the tree
+	 */
+	public int getTreeDepth() {
+		return treeDepth;
+	}
+
+	/**
+	 * Return the lookup directory holding files of this server
+	 * 
+	 * @return path of lookup directory
+	 */
+	public String getLookupDirectory() {
+		return lookupDirectory;
+	}
+
 	/**
 	 * This method is used by a server for replicating a popular file to its
-	 * neighbouring child servers.
+	 * neighbouring child servers. Replication is queued as background traffic
+	 * and only done once at a time for a file; a replication asked for while
+	 * one is running is done again once it ends, so that a version written in
+	 * between is not missed.
+	 * 
+	 * @param file
+	 *            : file to be replicated
+	 * @param tree
+	 *            : index of the tree the child nodes belong to
+	 * @param nodes
+	 *            : nodes of all servers where file has to be replicated
+	 */
+	public void replicateFile(final File file, final int tree, final String[] nodes) {
+		final String key = ServerTable.getKey(file.getName(), tree, "");
+		synchronized (pendingReplication) {
+			if (!pendingReplication.add(key)) {
+				repeatReplication.add(key);
+				return;
+			}
+		}
+
+		replicationExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean repeat;
+				try {
+					pushReplicas(file, tree, nodes);
+				} finally {
+					synchronized (pendingReplication) {
+						pendingReplication.remove(key);
+						repeat = repeatReplication.remove(key);
+					}
+				}
+				if (repeat)
+					replicateFile(file, tree, nodes);
+			}
+		});
+	}
+
+	/**
+	 * Push a file onto child servers, reading it as background traffic. A
+	 * child already holding an older version of the file is only sent what
+	 * changed, and is told the version it now holds once the push completes.
 	 * 
 	 * @param file
 	 *            : file to be replicated
+	 * @param tree
+	 *            : index of the tree the child nodes belong to
 	 * @param nodes
 	 *            : nodes of all servers where file has to be replicated
 	 */
-	public void replicateFile(File file, String[] nodes) {
+	private void pushReplicas(File file, int tree, String[] nodes) {
 		S2SInterface server;
 		int id = 0;
 		String hostName = null;
-		byte[] buffer = null;
 
+		// pushes hold a chunk or a window of a delta at a time in memory
+		long reserved = DEDUP ? ContentChunker.MAX_SIZE : 2 * Chunk.SIZE;
+		try {
+			reserveBytes(reserved);
+		} catch (ServerBusyException e) {
+			System.out.println("Replication of '" + file.getName() + "' deferred. " + e.getMessage());
+			return;
+		}
+
+		// version is taken before file is read, so that a child is never told
+		// of a version newer than the data it was sent
+		VersionVector version = getVersion(file.getName());
 		try {
-			buffer = readFile(file);
 			for (String child : nodes) {
 
 				// find hostname for each child node and replicate file onto
 				// them
-				id = Math.abs((file.getName() + child).hashCode()) % TOTAL_SERVERS;
+				id = ServerTable.getIndex(file.getName(), tree, child, TOTAL_SERVERS);
 				System.out.println("@" + getHostName() + " - Connecting to : " + hashTable.get(id));
-				hostName = "rmi://" + hashTable.get(id) + ":" + PORT + "/server";
+				hostName = ServerTable.getURL(hashTable.get(id), "server");
 
 				// find RMI interface to the child nodes
 				server = (S2SInterface) Naming.lookup(hostName);
 				System.out.println("File : " + file.getName() + " being copied to node : " + server.getHostName());
-				server.insertFile(buffer, file.getName());
+				if (!pushUpdate(server, file))
+					continue;
+				server.setVersion(file.getName(), version);
+				replicationPushes.incrementAndGet();
+
+				// remember child nodes holding a replica of this file
+				addReplica(ServerTable.getKey(file.getName(), tree, ""), child);
 			}
 		} catch (FileNotFoundException e) {
 			System.out.println("Replication failed. File not found.");
 			e.printStackTrace();
+		} catch (ServerBusyException e) {
+			System.out.println("Replication of '" + file.getName() + "' stopped. " + e.getMessage());
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			releaseBytes(reserved);
 		}
 	}
 
@@ -161,13 +612,18 @@ public class DHTServer extends Thread implements Serializable {
 	public boolean fileInsert(byte[] data, String fileName) {
 		FileOutputStream fos;
 		try {
+			if (DEDUP && deduplicate(fileName, new ByteArrayInputStream(data))) {
+				fileUpdated(fileName);
+				return true;
+			}
 
 			// write file in default lookup directory in server
-			fos = new FileOutputStream(lookupDirectory + fileName);
+			File partial = newPartial(fileName, null, true, ".insert");
+			fos = new FileOutputStream(partial);
 			fos.write(data);
 			fos.close();
-			System.out.println("File Insertion successful.");
-			fileMap.put(fileName, 0);
+			storeFile(partial, fileName);
+			fileUpdated(fileName);
 			return true;
 		} catch (IOException e) {
 			System.out.println("Failed to read input file.");
@@ -177,155 +633,2630 @@ public class DHTServer extends Thread implements Serializable {
 	}
 
 	/**
-	 * Chech if a file exists in default lookup directory of a server.
+	 * Write a chunk of a file being uploaded in parts. Chunks are written into
+	 * a hidden partial file, which replaces the file in lookup directory once
+	 * its last chunk arrives, so that readers never see a partial upload.
 	 * 
-	 * @param fileName
-	 *            : file being searched
-	 * @return File instance if file is found.
+	 * @param chunk
+	 *            : chunk of the file
+	 * @return True if chunk is written, False otherwise
 	 */
-	public File getFile(String fileName) {
-		File file = new File(lookupDirectory + fileName);
-		if (file.exists())
-			return file;
-		else
-			return null;
+	public boolean chunkInsert(Chunk chunk) {
+		String fileName = chunk.getFileName();
+		if (!chunk.verify()) {
+			System.out.println("Chunk of '" + fileName + "' at " + chunk.getOffset() + " is corrupt, discarded.");
+			return false;
+		}
+		File partial;
+		try {
+			partial = newPartial(fileName, chunk.getUpload(), chunk.getOffset() == 0 && chunk.isLast(), ".upload");
+		} catch (IOException e) {
+			System.out.println("Failed to write chunk of '" + fileName + "' : " + e);
+			return false;
+		}
+		try {
+			RandomAccessFile output = new RandomAccessFile(partial, "rw");
+			try {
+				output.seek(chunk.getOffset());
+				output.write(chunk.getData());
+				if (chunk.isLast())
+					output.setLength(chunk.getOffset() + chunk.getData().length);
+			} finally {
+				output.close();
+			}
+
+			// a file is stored once every chunk of it has arrived, an upload
+			// missing a chunk being discarded
+			if (!received(partial, chunk)) {
+				System.out.println("Upload of '" + fileName + "' is missing chunks, discarded.");
+				partial.delete();
+				return false;
+			}
+			if (chunk.isLast()) {
+				if (DEDUP && deduplicate(fileName, new FileInputStream(partial))) {
+					partial.delete();
+					fileUpdated(fileName);
+					return true;
+				}
+				storeFile(partial, fileName);
+				fileUpdated(fileName);
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Failed to write chunk of '" + fileName + "' at " + chunk.getOffset());
+			e.printStackTrace();
+		}
+		return false;
 	}
 
 	/**
-	 * Utility function to read a requested file from default lookup directory
-	 * on a server
+	 * Record a chunk written into the partial file of an upload sent in
+	 * parts, and check once its last chunk is written that no chunk is
+	 * missing
 	 * 
-	 * @param file
-	 *            : file to be read
-	 * @return bytes of file data
-	 * @throws FileNotFoundException
+	 * @param partial
+	 *            : partial file of the upload
+	 * @param chunk
+	 *            : chunk written
+	 * @return False if the last chunk is written and the file has holes
 	 */
-	private byte[] readFile(File file) throws FileNotFoundException {
-		if (!file.exists())
-			throw new FileNotFoundException();
+	private boolean received(File partial, Chunk chunk) {
+		if (chunk.getOffset() == 0 && chunk.isLast())
+			return true;
+		synchronized (received) {
+			HashMap<Long, Integer> chunks = received.get(partial.getName());
+			if (chunks == null) {
+				chunks = new HashMap<>();
+				received.put(partial.getName(), chunks);
+			}
+			chunks.put(chunk.getOffset(), chunk.getLength());
+			if (!chunk.isLast())
+				return true;
 
-		byte buffer[] = new byte[(int) file.length()];
-		try {
+			received.remove(partial.getName());
+			long length = 0;
+			for (int part : chunks.values())
+				length += part;
+			return length == chunk.getOffset() + chunk.getLength();
+		}
+	}
 
-			// read data from file
-			BufferedInputStream input = new BufferedInputStream(new FileInputStream(file.getPath()));
-			input.read(buffer, 0, buffer.length);
+	/**
+	 * Store a file as content addressed chunks, replacing a plain copy of it
+	 * if any
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param input
+	 *            : content of the file, closed once read
+	 * @return True if the file is stored, False to keep it as a plain file
+	 * @throws IOException
+	 */
+	private boolean deduplicate(String fileName, InputStream input) throws IOException {
+		boolean stored;
+		try {
+			stored = chunkStore.store(fileName, input);
+		} finally {
 			input.close();
-		} catch (Exception exp) {
-			exp.printStackTrace();
 		}
-		return (buffer);
+		if (stored)
+			removePlainFile(fileName);
+		return stored;
 	}
 
 	/**
-	 * This method is used to send a file to the client who requested it.
+	 * Replace a file in lookup directory by a partial file written in full.
+	 * Checksums of the blocks of the new version are calculated first and
+	 * replace the previous ones along with the file, so that a file is never
+	 * seen with checksums of another version.
 	 * 
-	 * @param file
-	 *            : file to be sent
-	 * @param request
-	 *            : request packet
-	 * @param trace
-	 *            : trace data for this request
+	 * @param partial
+	 *            : hidden file holding the new version
+	 * @param fileName
+	 *            : name of file
+	 * @throws IOException
 	 */
-	public void sendFile(File file, Request request, Trace trace) {
+	private void storeFile(File partial, String fileName) throws IOException {
+		File file = new File(lookupDirectory + fileName);
+		File checksums = new File(partial.getPath() + ".crc");
+		ChunkChecksums.write(new FileInputStream(partial), checksums);
+		synchronized (storeLock) {
+			Files.move(checksums.toPath(), ChunkChecksums.getFile(file).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		chunkStore.remove(fileName);
+	}
 
-		ClientInterface client = request.getClient();
-		try {
+	/**
+	 * Return hidden partial file a new version of a file is written into
+	 * before it replaces the file. Parts of an upload sent apart are written
+	 * into the partial file named after the upload, and an upload sent at
+	 * once into a partial file of its own.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param upload
+	 *            : identifier of the upload
+	 * @param whole
+	 *            : true if the upload is sent at once
+	 * @param suffix
+	 *            : kind of upload
+	 * @return partial file
+	 * @throws IOException
+	 *             if the identifier is not valid or no file can be created
+	 */
+	private File newPartial(String fileName, String upload, boolean whole, String suffix) throws IOException {
+		if (whole)
+			return File.createTempFile("." + fileName + ".", suffix, new File(lookupDirectory));
+		if (upload == null || !upload.matches("[0-9A-Za-z-]+"))
+			throw new IOException("Invalid upload : " + upload);
+		return new File(lookupDirectory + "." + fileName + "." + upload + suffix);
+	}
 
-			// read file from server directory and send it to client
-			byte[] buffer = readFile(file);
-			trace.addToTrace(getHostName());
-			trace.setStatus(true);
+	/**
+	 * Delete partial files of uploads which are no longer written, along with
+	 * their checksums
+	 * 
+	 * @param age
+	 *            : milliseconds since a partial file was last written for it
+	 *            to be deleted
+	 */
+	private void removePartials(long age) {
+		File[] files = new File(lookupDirectory).listFiles();
+		if (files == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			if (file.isFile() && PARTIAL.matcher(file.getName()).matches() && now - file.lastModified() >= age) {
+				System.out.println("Removing partial file " + file.getName());
+				file.delete();
+				synchronized (received) {
+					received.remove(file.getName());
+				}
+			}
+		}
+	}
 
-			// send file data along with whole trace of this request
-			client.pushFile(buffer, trace.getTrace(), file.getName());
-			
-		} catch (Exception e) {
-			System.out.println("File read & transfer error.");
+	/**
+	 * Delete plain copy of a file from lookup directory, along with its
+	 * checksums
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	private void removePlainFile(String fileName) {
+		File file = new File(lookupDirectory + fileName);
+		synchronized (storeLock) {
+			file.delete();
+			ChunkChecksums.getFile(file).delete();
+		}
+	}
+
+	/**
+	 * Calculate checksums of plain files in lookup directory which have none,
+	 * such as files copied in while this server was not running
+	 */
+	private void createChecksums() {
+		File[] files = new File(lookupDirectory).listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			File checksums = ChunkChecksums.getFile(file);
+			if (!file.isFile() || file.getName().startsWith(".") || checksums.exists())
+				continue;
 			try {
-				
-				// jsut send the trace to the client
-				client.pushTrace(trace.getTrace());
-			} catch (RemoteException e1) {
-				System.out.println("Lost connection with client. Exiting.");
-				return;
+				ChunkChecksums.write(new FileInputStream(file), checksums);
+			} catch (IOException e) {
+				System.out.println("Unable to calculate checksums of '" + file.getName() + "'");
+				checksums.delete();
 			}
-			return;
 		}
 	}
 
 	/**
-	 * This method is responsible for increasing the popularity count of a file.
+	 * Store a file from chunks already held by this server, as sent by a
+	 * client or another server after the chunks it was missing.
 	 * 
 	 * @param fileName
-	 *            : name of file whose popularity is to be updated
+	 *            : name of file
+	 * @param hashes
+	 *            : names of chunks of the file, in order
+	 * @return True if the file is stored, False if a chunk is missing
 	 */
-	public void increasePopularityCount(String fileName) {
-
-		// check of this is a new file request
-		if (fileMap.containsKey(fileName)) {
-			int count = fileMap.get(fileName);
-			fileMap.put(fileName, count + 1);
-		} else
-			fileMap.put(fileName, 1);
+	public boolean manifestInsert(String fileName, String[] hashes) {
+		try {
+			if (!chunkStore.insert(fileName, hashes))
+				return false;
+			removePlainFile(fileName);
+			fileUpdated(fileName);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Failed to write manifest of '" + fileName + "'");
+			e.printStackTrace();
+		}
+		return false;
 	}
 
 	/**
-	 * This method return the popularity count of a file.
+	 * Store a deduplicated file uploaded to this server as root node of one of
+	 * its trees. With insert time replication, the file is pushed onto the
+	 * nodes of the chain one after another before returning.
 	 * 
-	 * @param fileName:
-	 *            name of file to be checked in map
-	 * @return popularity count
+	 * @param fileName
+	 *            : name of file
+	 * @param hashes
+	 *            : names of chunks of the file, in order
+	 * @param tree
+	 *            : index of the tree this server is root node of
+	 * @return True if the file is stored on this server, False otherwise
 	 */
+	public boolean uploadManifest(String fileName, String[] hashes, int tree) {
+		if (!manifestInsert(fileName, hashes))
+			return false;
+		newVersion(fileName);
+		replicateChain(fileName, tree);
+		return true;
+	}
 
-	public int getFilePopularity(String fileName) {
-		if (fileMap.containsKey(fileName))
-			return fileMap.get(fileName);
-		else
-			return 0;
+	/**
+	 * Push a file just uploaded onto the nodes of its chain one after another,
+	 * for uploads which are not passed down the chain chunk by chunk
+	 * 
+	 * @param fileName
+	 *            : name of file uploaded
+	 * @param tree
+	 *            : index of the tree this server is root node of
+	 */
+	private void replicateChain(String fileName, int tree) {
+		String key = ServerTable.getKey(fileName, tree, "");
+		VersionVector version = getVersion(fileName);
+		for (String node : getChain(fileName, tree)) {
+			String hostName = hashTable.get(ServerTable.getIndex(fileName, tree, node, TOTAL_SERVERS));
+			try {
+				S2SInterface peer = getPeer(hostName);
+				if (!pushUpdate(peer, new File(lookupDirectory + fileName)))
+					break;
+				peer.setVersion(fileName, version);
+			} catch (IOException | NotBoundException | ServerBusyException e) {
+				System.out.println("Chain of '" + fileName + "' broken at " + hostName + " : " + e);
+				break;
+			}
+			addReplica(key, node);
+		}
 	}
 
 	/**
-	 * If a file being requested from this server is not found, then forward
-	 * request to another parent server.
+	 * Bring the copy of a file on another server up to date, sending only
+	 * chunks it is missing with deduplication, or else only blocks which
+	 * changed since the version it holds.
 	 * 
-	 * @param parentNode
-	 * @param request
-	 * @param trace
-	 * @return
+	 * @param server
+	 *            : server the file is pushed onto
+	 * @param file
+	 *            : file to be pushed
+	 * @return True if the other server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
 	 */
-	public boolean forwardRequest(String parentNode, Request request, Trace trace) {
-		trace.addToTrace(getHostName());
-		try {
-			// connect to another server over network and forward file search
-			// request to it.
-			int id = Math.abs((request.getFileName() + parentNode).hashCode()) % TOTAL_SERVERS;
-			System.out.println("@" + getHostName() + " - Connecting to : " + hashTable.get(id));
-			String hostName = "rmi://" + hashTable.get(id) + ":" + PORT + "/server";
+	private boolean pushUpdate(S2SInterface server, File file) throws IOException, ServerBusyException {
+		return DEDUP ? pushDeduplicated(server, file.getName()) : pushDelta(server, file);
+	}
 
-			// RMI lookup for required host name
-			S2SInterface server = (S2SInterface) Naming.lookup(hostName);
-			System.out
-					.println("Forwarding " + request.getFileName() + " request to parent server: " + hashTable.get(id));
-			return server.forwardRequest(request, trace);
+	/**
+	 * Push a file onto another server as a delta against the signature of the
+	 * version it holds, whole file being sent if it holds none or refuses the
+	 * delta
+	 * 
+	 * @param server
+	 *            : server the file is pushed onto
+	 * @param file
+	 *            : file to be pushed
+	 * @return True if the other server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 */
+	private boolean pushDelta(S2SInterface server, File file) throws IOException, ServerBusyException {
+		BlockSignature signature = server.getSignature(file.getName());
+		if (signature == null)
+			return pushDelta(server, file, null);
+		if (pushDelta(server, file, signature))
+			return true;
+		System.out.println("Sending whole of '" + file.getName() + "' to " + server.getHostName() + " instead.");
+		return pushDelta(server, file, null);
+	}
 
-		} catch (RemoteException | MalformedURLException | NotBoundException e) {
-			System.out.println("Failed to connect to parent node.");
-			e.printStackTrace();
+	/**
+	 * Push a file onto another server as a delta against a signature
+	 * 
+	 * @param server
+	 *            : server the file is pushed onto
+	 * @param file
+	 *            : file to be pushed
+	 * @param signature
+	 *            : signature of the version the other server holds, null to
+	 *            send the whole file
+	 * @return True if the other server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 */
+	private boolean pushDelta(S2SInterface server, File file, BlockSignature signature)
+			throws IOException, ServerBusyException {
+		long sent = 0, size = 0;
+		InputStream input = openFile(file, 0);
+		try {
+			DeltaEncoder encoder = new DeltaEncoder(file.getName(), input, signature);
+			Delta delta;
+			while ((delta = encoder.next()) != null) {
+				scheduler.acquireUninterruptibly(IOScheduler.Priority.BACKGROUND, delta.getLength());
+				delta = delta.compress();
+				if (!server.insertDelta(delta)) {
+					System.out.println("Delta of '" + file.getName() + "' refused by " + server.getHostName());
+					return false;
+				}
+				sent += delta.getEncodedLength();
+				size += delta.getLength();
+			}
+		} finally {
+			input.close();
 		}
-
-		return false;
+		bytesRead.addAndGet(size);
+		replicationBytes.addAndGet(sent);
+		dedupBytes.addAndGet(size - sent);
+		return true;
 	}
 
 	/**
-	 * Execution starts from the main method which is responsible for starting a
-	 * server and make it available for file request and search from other
-	 * servers/clients.
+	 * Push a file onto another server, sending only the chunks it does not
+	 * hold yet. A plain file is moved into the chunk store first.
 	 * 
-	 * @param args
+	 * @param server
+	 *            : server the file is pushed onto
+	 * @param fileName
+	 *            : name of file
+	 * @return True if the other server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
 	 */
-	public static void main(String[] args) {
-		DHTServer server = new DHTServer();
+	private boolean pushDeduplicated(S2SInterface server, String fileName) throws IOException, ServerBusyException {
+		File plain = new File(lookupDirectory + fileName);
+		warm(plain);
+		if (plain.exists() && !deduplicate(fileName, openFile(plain, 0)))
+			return false;
+		String[] hashes = chunkStore.pin(fileName);
+		if (hashes == null)
+			return false;
+		try {
+			return pushChunks(server, fileName, hashes);
+		} finally {
+			chunkStore.release(hashes);
+		}
+	}
+
+	/**
+	 * Push chunks of a file another server does not hold, then its manifest
+	 * 
+	 * @param server
+	 *            : server the file is pushed onto
+	 * @param fileName
+	 *            : name of file
+	 * @param hashes
+	 *            : names of chunks of the file, kept until pushed
+	 * @return True if the other server stored the file
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 */
+	private boolean pushChunks(S2SInterface server, String fileName, String[] hashes)
+			throws IOException, ServerBusyException {
+
+		// chunks may be released by the other server in between, so missing
+		// chunks are asked again if the manifest is refused
+		for (int attempt = 0; attempt < 2; attempt++) {
+			long size = chunkStore.getSize(fileName), sent = 0;
+			for (String hash : server.getMissingChunks(hashes)) {
+				byte[] data;
+				try {
+					data = chunkStore.get(hash);
+				} catch (IOException e) {
+					repairFile(fileName);
+					throw e;
+				}
+				scheduler.acquireUninterruptibly(IOScheduler.Priority.BACKGROUND, data.length);
+				bytesRead.addAndGet(data.length);
+				Chunk chunk = new Chunk(hash, 0, data, true).compress();
+				server.putChunk(chunk);
+				sent += chunk.getEncodedLength();
+			}
+			replicationBytes.addAndGet(sent);
+			dedupBytes.addAndGet(Math.max(0, size - sent));
+			if (server.insertManifest(fileName, hashes))
+				return true;
+		}
+		System.out.println("Deduplicated push of '" + fileName + "' refused by " + server.getHostName());
+		return false;
+	}
+
+	/**
+	 * Apply part of a delta to the version of a file held by this server.
+	 * Parts are written into a hidden partial file, ranges being copied from
+	 * the version held, and the partial file replaces the file once the last
+	 * part arrives and its checksum matches the new version.
+	 * 
+	 * @param delta
+	 *            : part of the delta
+	 * @param priority
+	 *            : class of traffic ranges copied are read as
+	 * @return True if the part is applied, False if it refers to data this
+	 *         server does not hold or the new version does not match
+	 */
+	public boolean deltaInsert(Delta delta, IOScheduler.Priority priority) {
+		String fileName = delta.getFileName();
+		File base = getFile(fileName);
+		File partial;
+		try {
+			partial = newPartial(fileName, delta.getUpload(), delta.getOffset() == 0 && delta.isLast(), ".delta");
+		} catch (IOException e) {
+			System.out.println("Failed to apply delta of '" + fileName + "' : " + e);
+			return false;
+		}
+		try {
+			RandomAccessFile output = new RandomAccessFile(partial, "rw");
+			try {
+				output.seek(delta.getOffset());
+				long[] sources = delta.getSources();
+				int[] lengths = delta.getLengths();
+				int literal = 0;
+				for (int i = 0; i < sources.length; i++) {
+					if (sources[i] < 0) {
+						output.write(delta.getLiterals(), literal, lengths[i]);
+						literal += lengths[i];
+						continue;
+					}
+					if (base == null)
+						throw new IOException("No version of '" + fileName + "' to copy from");
+
+					// copy range of the version held a chunk at a time
+					for (long copied = 0; copied < lengths[i];) {
+						byte[] data = readFile(base, sources[i] + copied,
+								(int) Math.min(Chunk.SIZE, lengths[i] - copied), priority);
+						if (data.length == 0)
+							throw new IOException("Delta of '" + fileName + "' refers past end of file");
+						output.write(data);
+						copied += data.length;
+					}
+				}
+				if (delta.isLast())
+					output.setLength(delta.getOffset() + delta.getLength());
+			} finally {
+				output.close();
+			}
+
+			if (!delta.isLast())
+				return true;
+			if (getChecksum(partial, partial.length()) != delta.getChecksum()) {
+				System.out.println("Delta of '" + fileName + "' does not match new version, discarded.");
+				partial.delete();
+				invalidateSignature(fileName);
+				return false;
+			}
+			if (DEDUP && deduplicate(fileName, new FileInputStream(partial))) {
+				partial.delete();
+				fileUpdated(fileName);
+				return true;
+			}
+			storeFile(partial, fileName);
+			fileUpdated(fileName);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Failed to apply delta of '" + fileName + "' at " + delta.getOffset() + " : " + e);
+			partial.delete();
+		}
+
+		// the delta may have been computed against a stale signature
+		invalidateSignature(fileName);
+		return false;
+	}
+
+	/**
+	 * Apply part of a delta uploaded to this server as root node of one of
+	 * the trees of the file. With insert time replication, the new version is
+	 * pushed onto the nodes of the chain once complete, each of them being
+	 * sent a delta against its own version.
+	 * 
+	 * @param delta
+	 *            : part of the delta
+	 * @param tree
+	 *            : index of the tree this server is root node of
+	 * @return True if the part is applied
+	 */
+	public boolean uploadDelta(Delta delta, int tree) {
+		if (!deltaInsert(delta, IOScheduler.Priority.CLIENT_READ))
+			return false;
+		if (delta.isLast()) {
+			newVersion(delta.getFileName());
+			replicateChain(delta.getFileName(), tree);
+		}
+		return true;
+	}
+
+	/**
+	 * Return signature of the blocks of a file held by this server, for a
+	 * sender to compute a delta against. Signatures are kept in memory until
+	 * the file is written again.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param priority
+	 *            : class of traffic the file is read as
+	 * @return signature of the file, null if it is not held
+	 * @throws IOException
+	 */
+	public BlockSignature getSignature(String fileName, IOScheduler.Priority priority) throws IOException {
+		long updates;
+		synchronized (signatureMap) {
+			BlockSignature signature = signatureMap.get(fileName);
+			if (signature != null)
+				return signature;
+			updates = signatureUpdates;
+		}
+		File file = getFile(fileName);
+		if (file == null)
+			return null;
+
+		long size = getFileSize(file);
+		BlockSignature signature = new BlockSignature(size);
+		byte[] block = new byte[signature.getBlockSize()];
+		DataInputStream input = new DataInputStream(new BufferedInputStream(openFile(file, 0)));
+		try {
+			for (long offset = 0; offset < size; offset += block.length) {
+				int length = (int) Math.min(block.length, size - offset);
+				scheduler.acquireUninterruptibly(priority, length);
+				input.readFully(block, 0, length);
+				signature.addBlock(block, length);
+			}
+		} finally {
+			input.close();
+		}
+		bytesRead.addAndGet(size);
+		synchronized (signatureMap) {
+			if (signatureUpdates == updates)
+				signatureMap.put(fileName, signature);
+		}
+		return signature;
+	}
+
+	/**
+	 * Drop signature of a file kept in memory, as well as any signature being
+	 * computed meanwhile
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	private void invalidateSignature(String fileName) {
+		synchronized (signatureMap) {
+			signatureMap.remove(fileName);
+			signatureUpdates++;
+		}
+	}
+
+	/**
+	 * Store a chunk of a file uploaded to this server as root node of one of
+	 * its trees. With insert time replication, the chunk is passed down a
+	 * chain of nodes of the tree as soon as it arrives, and this method only
+	 * returns once the tail of the chain has stored it. Nodes of the chain are
+	 * then reported to clients as replicas of the file.
+	 * 
+	 * @param chunk
+	 *            : chunk of the file, whole file if it is the only chunk
+	 * @param tree
+	 *            : index of the tree this server is root node of
+	 * @return True if chunk is stored on this server, False otherwise
+	 */
+	public boolean uploadChunk(Chunk chunk, int tree) {
+		String[] chain = getChain(chunk.getFileName(), tree);
+		if (chain.length > 0)
+			chunk = chunk.compress();
+		int stored = chainInsert(chunk, tree, chain);
+		if (stored > 1)
+			System.out.println("Chunk of '" + chunk.getFileName() + "' stored on " + stored + " node(s).");
+
+		if (chunk.isLast() && stored > 0)
+			newVersion(chunk.getFileName());
+
+		// remember nodes of the chain holding whole file, and tell them the
+		// version they hold before the upload is acknowledged. Nodes refuse
+		// the last chunk of an upload they missed a chunk of, so that nodes
+		// of the unbroken chain hold every chunk.
+		if (chunk.isLast() && stored > 1) {
+			String key = ServerTable.getKey(chunk.getFileName(), tree, "");
+			for (int i = 0; i < stored - 1; i++)
+				addReplica(key, chain[i]);
+			VersionVector version = getVersion(chunk.getFileName());
+			for (int i = 0; i < stored - 1; i++) {
+				String hostName = hashTable.get(ServerTable.getIndex(chunk.getFileName(), tree, chain[i], TOTAL_SERVERS));
+				try {
+					getPeer(hostName).setVersion(chunk.getFileName(), version);
+				} catch (RemoteException | MalformedURLException | NotBoundException e) {
+					System.out.println("Version of '" + chunk.getFileName() + "' not set on " + hostName + " : " + e);
+				}
+			}
+		}
+
+		// the chunk is acknowledged once the tail of the chain has it
+		if (stored > 0 && stored < chain.length + 1)
+			System.out.println("Chain of '" + chunk.getFileName() + "' broken, chunk at " + chunk.getOffset()
+					+ " stored on " + stored + " of " + (chain.length + 1) + " node(s).");
+		return stored == chain.length + 1;
+	}
+
+	/**
+	 * Store a chunk of an uploaded file on this server and pass it on to the
+	 * next node of the chain at the same time.
+	 * 
+	 * @param chunk
+	 *            : chunk of the file
+	 * @param tree
+	 *            : index of the tree the chain belongs to
+	 * @param chain
+	 *            : coordinates of nodes of the chain after this one
+	 * @return number of nodes, this one included, storing the chunk in an
+	 *         unbroken chain, 0 if this server failed to store it
+	 */
+	public int chainInsert(final Chunk chunk, final int tree, final String[] chain) {
+		Future<Integer> downstream = null;
+		if (chain.length > 0) {
+			downstream = chainExecutor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return forwardChunk(chunk, tree, chain);
+				}
+			});
+		}
+
+		boolean stored = chunkInsert(chunk);
+		int count = 0;
+		if (downstream != null) {
+			try {
+				count = downstream.get();
+			} catch (InterruptedException | ExecutionException e) {
+				System.out.println("Chain of '" + chunk.getFileName() + "' broken after " + getHostName());
+			}
+		}
+		return stored ? 1 + count : 0;
+	}
+
+	/**
+	 * Pass a chunk of an uploaded file on to the next node of the chain
+	 * 
+	 * @param chunk
+	 *            : chunk of the file
+	 * @param tree
+	 *            : index of the tree the chain belongs to
+	 * @param chain
+	 *            : coordinates of nodes of the chain, next one first
+	 * @return number of nodes storing the chunk from the next one on
+	 */
+	private int forwardChunk(Chunk chunk, int tree, String[] chain) {
+		int id = ServerTable.getIndex(chunk.getFileName(), tree, chain[0], TOTAL_SERVERS);
+		String hostName = hashTable.get(id);
+		for (int attempt = 1;; attempt++) {
+			try {
+				int stored = getPeer(hostName).insertChunk(chunk, tree, Arrays.copyOfRange(chain, 1, chain.length));
+				replicationBytes.addAndGet(chunk.getEncodedLength());
+				return stored;
+			} catch (RemoteException | MalformedURLException | NotBoundException | ServerBusyException e) {
+				if (!(e instanceof ServerBusyException)) {
+					synchronized (peers) {
+						peers.remove(hostName);
+					}
+				}
+				if (attempt == Client.MAX_ATTEMPTS) {
+					System.out.println("Failed to pass chunk of '" + chunk.getFileName() + "' on to " + hostName
+							+ " : " + e);
+					return 0;
+				}
+			}
+
+			// writing a chunk again is harmless, so that it is retried after
+			// a backoff while the next node is busy or unreachable
+			Client.backoff(attempt);
+		}
+	}
+
+	/**
+	 * Return coordinates of the nodes an upload is passed on to, in the order
+	 * of the chain. Nodes are taken level by level below the root, so that
+	 * every request walking up the tree soon meets one of them, and nodes
+	 * mapped onto a server already in the chain are skipped. Fragments and
+	 * manifests of erasure coded files have no chain, parity fragments
+	 * already making up for lost ones.
+	 * 
+	 * @param fileName
+	 *            : name of file uploaded
+	 * @param tree
+	 *            : index of the tree
+	 * @return coordinates of nodes after the root
+	 */
+	private String[] getChain(String fileName, int tree) {
+		ArrayList<String> chain = new ArrayList<>();
+		if (ErasureStore.isInternal(fileName))
+			return new String[0];
+		HashSet<Integer> hosts = new HashSet<>();
+		hosts.add(ServerTable.getIndex(fileName, tree, "00", TOTAL_SERVERS));
+		for (int x = 1; x < treeDepth && chain.size() < CHAIN_LENGTH - 1; x++) {
+			for (int y = 0; y < (1 << x) && chain.size() < CHAIN_LENGTH - 1; y++) {
+				if (hosts.add(ServerTable.getIndex(fileName, tree, "" + x + y, TOTAL_SERVERS)))
+					chain.add("" + x + y);
+			}
+		}
+		return chain.toArray(new String[chain.size()]);
+	}
+
+	/**
+	 * Return RMI interface of another server, connecting to it on first use
+	 * 
+	 * @param hostName
+	 *            : address of the server
+	 * @return server interface of the server
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private S2SInterface getPeer(String hostName) throws MalformedURLException, RemoteException, NotBoundException {
+		synchronized (peers) {
+			S2SInterface peer = peers.get(hostName);
+			if (peer == null) {
+				peer = (S2SInterface) Naming.lookup(ServerTable.getURL(hostName, "server"));
+				peers.put(hostName, peer);
+			}
+			return peer;
+		}
+	}
+
+	/**
+	 * Reset state kept for a file once a new version of it has been written.
+	 * Replicas are brought up to date once the version written is known, see
+	 * {@link #newVersion(String)} and {@link #setVersion(String, VersionVector)}.
+	 * 
+	 * @param fileName
+	 *            : name of file written
+	 */
+	private void fileUpdated(String fileName) {
+
+		// checksum and signature of the previous version of file are no
+		// longer valid
+		synchronized (checksumMap) {
+			checksumMap.remove(fileName);
+		}
+		invalidateSignature(fileName);
+		tiers.updated(fileName);
+		System.out.println("File Insertion successful.");
+		synchronized (fileMap) {
+			fileMap.put(fileName, 0);
+			state.popularity(fileName, 0);
+		}
+		synchronized (fileIndex) {
+			fileIndex.add(fileName);
+		}
+	}
+
+	/**
+	 * Load popularity, replicas and versions of files saved by this server
+	 * before it was restarted. State of files no longer held, removed while
+	 * the server was down, is dropped.
+	 */
+	private void restoreState() {
+		state = new StateStore(lookupDirectory, fileMap, replicaMap, versionMap, invalidMap);
+		int records = state.load();
+		if (records < 0)
+			return;
+		fileMap.keySet().retainAll(fileIndex);
+		versionMap.keySet().retainAll(fileIndex);
+		invalidMap.keySet().retainAll(fileIndex);
+		System.out.println("Restored state of " + fileMap.size() + " file(s), " + records + " log record(s) replayed.");
+	}
+
+	/**
+	 * Remember a node holding a replica of a file pushed by this server
+	 * 
+	 * @param key
+	 *            : key of the file and tree in {@link #replicaMap}
+	 * @param node
+	 *            : coordinates of the node
+	 */
+	private void addReplica(String key, String node) {
+		synchronized (replicaMap) {
+			if (!replicaMap.containsKey(key))
+				replicaMap.put(key, new HashSet<String>());
+			if (replicaMap.get(key).add(node))
+				state.replica(key, node);
+		}
+	}
+
+	/**
+	 * Forget popularity and version of a file dropped by this server
+	 * 
+	 * @param fileName
+	 *            : name of file dropped
+	 */
+	private void forgetFile(String fileName) {
+		synchronized (fileMap) {
+			fileMap.remove(fileName);
+		}
+		synchronized (versionMap) {
+			versionMap.remove(fileName);
+		}
+		synchronized (invalidMap) {
+			invalidMap.remove(fileName);
+		}
+		tiers.updated(fileName);
+		state.removed(fileName);
+	}
+
+	/**
+	 * Upload a whole file onto this server as root node of one of its trees,
+	 * without insert time replication
+	 * 
+	 * @param data
+	 *            : file data
+	 * @param fileName
+	 *            : name of file
+	 * @return True if file insertion is successful, False otherwise
+	 */
+	public boolean uploadFile(byte[] data, String fileName) {
+		if (!fileInsert(data, fileName))
+			return false;
+		newVersion(fileName);
+		return true;
+	}
+
+	/**
+	 * Return version of the copy of a file held by this server
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return version of the file, empty if none is known
+	 */
+	public VersionVector getVersion(String fileName) {
+		synchronized (versionMap) {
+			VersionVector version = versionMap.get(fileName);
+			return version != null ? version : new VersionVector();
+		}
+	}
+
+	/**
+	 * Record a write of a file uploaded to this server as root node, a new
+	 * version following both the version held and any version the file is
+	 * known to have reached through another tree. Replicas of the file are
+	 * told at once that their copies are out of date, then refreshed in the
+	 * background.
+	 * 
+	 * @param fileName
+	 *            : name of file written
+	 */
+	private void newVersion(String fileName) {
+		VersionVector version;
+		synchronized (versionMap) {
+			version = getVersion(fileName);
+			synchronized (invalidMap) {
+				if (invalidMap.containsKey(fileName)) {
+					version = version.merge(invalidMap.remove(fileName));
+					state.invalid(fileName, null);
+				}
+			}
+			version = version.increment(getHostName());
+			versionMap.put(fileName, version);
+			state.version(fileName, version);
+		}
+		invalidateReplicas(fileName, version);
+		refreshReplicas(fileName);
+	}
+
+	/**
+	 * Record version of the copy of a file pushed onto this server, once the
+	 * push has completed, and bring replicas this server pushed onto its own
+	 * child nodes up to date. A version older than the one held is ignored,
+	 * and versions written through different trees are merged.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param version
+	 *            : version of the copy pushed
+	 */
+	public void setVersion(String fileName, VersionVector version) {
+		VersionVector stored;
+		synchronized (versionMap) {
+			VersionVector held = getVersion(fileName);
+			if (version.isBefore(held) || version.equals(held))
+				return;
+			stored = held.compare(version) == VersionVector.Order.BEFORE ? version : held.merge(version);
+			versionMap.put(fileName, stored);
+			state.version(fileName, stored);
+		}
+		synchronized (invalidMap) {
+			if (invalidMap.containsKey(fileName) && !stored.isBefore(invalidMap.get(fileName))) {
+				invalidMap.remove(fileName);
+				state.invalid(fileName, null);
+			}
+		}
+		refreshReplicas(fileName);
+	}
+
+	/**
+	 * Learn that a file has reached a newer version than the copy this server
+	 * holds. The copy is no longer served to readers until it is refreshed,
+	 * and the invalidation is passed on to replicas this server pushed the
+	 * file onto.
+	 * 
+	 * @param fileName
+	 *            : name of file written
+	 * @param version
+	 *            : version written
+	 */
+	public void invalidate(String fileName, VersionVector version) {
+		if (getFile(fileName) == null || !getVersion(fileName).isBefore(version))
+			return;
+		synchronized (invalidMap) {
+			VersionVector known = invalidMap.get(fileName);
+			if (known != null && !known.isBefore(version))
+				return;
+			invalidMap.put(fileName, known != null ? known.merge(version) : version);
+			state.invalid(fileName, invalidMap.get(fileName));
+		}
+		invalidateReplicas(fileName, version);
+	}
+
+	/**
+	 * Check if the copy of a file held by this server can be served to a
+	 * reader, that is if it is not older than any version the file is known
+	 * to have reached, nor than the version the reader has already seen
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param seen
+	 *            : latest version known to the reader, null if none
+	 * @return true if the copy held is fresh enough
+	 */
+	public boolean isFresh(String fileName, VersionVector seen) {
+		VersionVector version = getVersion(fileName);
+		synchronized (invalidMap) {
+			if (version.isBefore(invalidMap.get(fileName)))
+				return false;
+		}
+		return !version.isBefore(seen);
+	}
+
+	/**
+	 * Tell servers holding replicas this server pushed, in every tree, that a
+	 * file has reached a new version. Invalidations are sent in the
+	 * background, ahead of the replication bringing replicas up to date.
+	 * 
+	 * @param fileName
+	 *            : name of file written
+	 * @param version
+	 *            : version written
+	 */
+	private void invalidateReplicas(final String fileName, final VersionVector version) {
+		final HashSet<String> hosts = new HashSet<>();
+		synchronized (replicaMap) {
+			for (Map.Entry<String, HashSet<String>> entry : replicaMap.entrySet()) {
+				int tree = getTree(entry.getKey(), fileName);
+				if (tree < 0)
+					continue;
+				for (String child : entry.getValue())
+					hosts.add(hashTable.get(ServerTable.getIndex(fileName, tree, child, TOTAL_SERVERS)));
+			}
+		}
+		hosts.remove(getHostName());
+		if (hosts.isEmpty())
+			return;
+
+		invalidationExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (String hostName : hosts) {
+					try {
+						getPeer(hostName).invalidate(fileName, version);
+					} catch (RemoteException | MalformedURLException | NotBoundException e) {
+						System.out.println("Invalidation of '" + fileName + "' not sent to " + hostName + " : " + e);
+						synchronized (peers) {
+							peers.remove(hostName);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Push a new version of a file onto child nodes this server replicated
+	 * the file onto, in every tree. Replicas are sent a delta against the
+	 * version they hold, and pass the new version on to their own children.
+	 * 
+	 * @param fileName
+	 *            : name of file written
+	 */
+	private void refreshReplicas(String fileName) {
+		File file = new File(lookupDirectory + fileName);
+		synchronized (replicaMap) {
+			for (Map.Entry<String, HashSet<String>> entry : replicaMap.entrySet()) {
+				int tree = getTree(entry.getKey(), fileName);
+				if (tree >= 0 && !entry.getValue().isEmpty())
+					replicateFile(file, tree, entry.getValue().toArray(new String[entry.getValue().size()]));
+			}
+		}
+	}
+
+	/**
+	 * Return index of the tree a key of {@link #replicaMap} belongs to, if the
+	 * key is for the given file
+	 * 
+	 * @param key
+	 *            : key of the replica map
+	 * @param fileName
+	 *            : name of file
+	 * @return index of the tree, -1 if the key is for another file
+	 */
+	private static int getTree(String key, String fileName) {
+		if (key.equals(ServerTable.getKey(fileName, 0, "")))
+			return 0;
+		String prefix = fileName + "#";
+		if (!key.startsWith(prefix) || !key.endsWith("/"))
+			return -1;
+		try {
+			return Integer.parseInt(key.substring(prefix.length(), key.length() - 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Chech if a file exists in default lookup directory of a server.
+	 * 
+	 * @param fileName
+	 *            : file being searched
+	 * @return File instance if file is found.
+	 */
+	public File getFile(String fileName) {
+		File file = new File(lookupDirectory + fileName);
+		if (file.exists() || chunkStore.contains(fileName) || tiers.isCold(fileName))
+			return file;
+		else
+			return null;
+	}
+
+	/**
+	 * Return size of a file from default lookup directory, held either as a
+	 * plain file, as chunks or in cold tier
+	 * 
+	 * @param file
+	 *            : file returned by {@link #getFile(String)}
+	 * @return size of file data, -1 if file is not found
+	 */
+	public long getFileSize(File file) {
+		if (file.exists())
+			return file.length();
+		if (tiers.isCold(file.getName()))
+			return tiers.getColdSize(file.getName());
+		return chunkStore.getSize(file.getName());
+	}
+
+	/**
+	 * Open a file from default lookup directory for reading, held either as a
+	 * plain file or as chunks. A plain file is read a chunk at a time, each
+	 * verified against checksums of its blocks.
+	 * 
+	 * @param file
+	 *            : file returned by {@link #getFile(String)}
+	 * @param offset
+	 *            : position of the first byte read
+	 * @return stream of file data from the offset on
+	 * @throws IOException
+	 */
+	private InputStream openFile(final File file, long offset) throws IOException {
+		warm(file);
+		if (!file.exists() && chunkStore.contains(file.getName())) {
+
+			// chunks found corrupt on the way are fetched again
+			return new FilterInputStream(chunkStore.open(file.getName(), offset)) {
+				@Override
+				public int read() throws IOException {
+					try {
+						return super.read();
+					} catch (IOException e) {
+						repairFile(file.getName());
+						throw e;
+					}
+				}
+
+				@Override
+				public int read(byte[] data, int offset, int length) throws IOException {
+					try {
+						return super.read(data, offset, length);
+					} catch (IOException e) {
+						repairFile(file.getName());
+						throw e;
+					}
+				}
+			};
+		}
+		if (!file.exists())
+			throw new FileNotFoundException(file.getPath());
+
+		final long start = offset - offset % ChunkChecksums.BLOCK_SIZE;
+		final int skip = (int) (offset - start);
+		return new InputStream() {
+			long position = start;
+			byte[] buffer = new byte[0];
+			int index;
+			boolean ended;
+
+			@Override
+			public int read() throws IOException {
+				if (!fill())
+					return -1;
+				return buffer[index++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] data, int offset, int length) throws IOException {
+				if (length == 0)
+					return 0;
+				if (!fill())
+					return -1;
+				int read = Math.min(length, buffer.length - index);
+				System.arraycopy(buffer, index, data, offset, read);
+				index += read;
+				return read;
+			}
+
+			private boolean fill() throws IOException {
+				if (index < buffer.length)
+					return true;
+				if (ended)
+					return false;
+				buffer = readBlocks(file, position, Chunk.SIZE);
+				index = position == start ? Math.min(skip, buffer.length) : 0;
+				position += buffer.length;
+				ended = buffer.length < Chunk.SIZE;
+				return index < buffer.length;
+			}
+		};
+	}
+
+	/**
+	 * Bring a file back from cold tier before it is read
+	 * 
+	 * @param file
+	 *            : file returned by {@link #getFile(String)}
+	 * @throws IOException
+	 */
+	private void warm(File file) throws IOException {
+		if (!file.exists() && tiers.isCold(file.getName())) {
+			tiers.thaw(file);
+			System.out.println("File '" + file.getName() + "' brought back from cold tier.");
+		}
+	}
+
+	/**
+	 * Move files between tiers by their popularity. Files read most often
+	 * recently are held in memory as far as it goes, releasing files no
+	 * longer read as often, and plain files neither read nor written for long
+	 * are moved to cold tier.
+	 */
+	private void moveTiers() {
+		synchronized (fileMap) {
+			tiers.updateHeat(fileMap);
+		}
+
+		// hottest files which fit in memory
+		ArrayList<String> hot = new ArrayList<>();
+		long budget = TieredStore.MEMORY_BYTES;
+		for (String fileName : tiers.getHotFiles()) {
+			File file = getFile(fileName);
+			long size = file != null ? getFileSize(file) : -1;
+			if (size < 0 || size > budget || tiers.isCold(fileName))
+				continue;
+			hot.add(fileName);
+			budget -= size;
+		}
+		tiers.retain(hot);
+		for (String fileName : hot) {
+			if (tiers.isHot(fileName))
+				continue;
+			try {
+				long updates = tiers.getUpdates();
+				tiers.hold(fileName, readFile(new File(lookupDirectory + fileName), IOScheduler.Priority.BACKGROUND),
+						updates);
+			} catch (IOException e) {
+				System.out.println("Unable to hold '" + fileName + "' in memory : " + e);
+			}
+		}
+
+		// files no longer read
+		File[] files = new File(lookupDirectory).listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (!file.isFile() || file.getName().startsWith(".") || !tiers.isIdle(file))
+				continue;
+			synchronized (pendingRepair) {
+				if (pendingRepair.contains(file.getName()))
+					continue;
+			}
+			try {
+				if (tiers.freeze(file))
+					System.out.println("File '" + file.getName() + "' moved to cold tier.");
+			} catch (IOException e) {
+				System.out.println("Unable to move '" + file.getName() + "' to cold tier : " + e);
+			}
+		}
+	}
+
+	/**
+	 * Return store holding deduplicated files of this server
+	 * 
+	 * @return chunk store
+	 */
+	public ChunkStore getChunkStore() {
+		return chunkStore;
+	}
+
+	/**
+	 * Utility function to read a requested file from default lookup directory
+	 * on a server
+	 * 
+	 * @param file
+	 *            : file to be read
+	 * @param priority
+	 *            : class of traffic the read is scheduled as
+	 * @return bytes of file data
+	 * @throws IOException
+	 *             if file is not found, is cut short or is corrupt
+	 */
+	private byte[] readFile(File file, IOScheduler.Priority priority) throws IOException {
+		warm(file);
+		long size = getFileSize(file);
+		if (size < 0)
+			throw new FileNotFoundException();
+		if (file.exists() || tiers.isHot(file.getName()))
+			return readFile(file, 0, (int) size, priority);
+
+		// read data from file, chunks of a deduplicated file being read one
+		// after another
+		byte buffer[] = new byte[(int) size];
+		scheduler.acquireUninterruptibly(priority, buffer.length);
+		DataInputStream input = new DataInputStream(new BufferedInputStream(openFile(file, 0)));
+		try {
+			input.readFully(buffer, 0, buffer.length);
+		} finally {
+			input.close();
+		}
+		bytesRead.addAndGet(buffer.length);
+		return (buffer);
+	}
+
+	/**
+	 * Read a byte range of a file from default lookup directory on a server.
+	 * A range running past the end of file is cut short at the end of file.
+	 * A file held in memory is read from there, and blocks of a plain file
+	 * the range falls in are read whole and verified against their
+	 * checksums.
+	 * 
+	 * @param file
+	 *            : file to be read
+	 * @param offset
+	 *            : position of first byte to be read
+	 * @param length
+	 *            : number of bytes to be read
+	 * @param priority
+	 *            : class of traffic the read is scheduled as
+	 * @return bytes of requested range
+	 * @throws IOException
+	 */
+	public byte[] readFile(File file, long offset, int length, IOScheduler.Priority priority) throws IOException {
+		byte[] hot = tiers.read(file.getName(), offset, length);
+		if (hot != null) {
+			memoryReads.incrementAndGet();
+			return hot;
+		}
+
+		warm(file);
+		if (!file.exists()) {
+			if (!chunkStore.contains(file.getName()))
+				throw new FileNotFoundException();
+
+			long available = Math.max(0, chunkStore.getSize(file.getName()) - offset);
+			byte buffer[] = new byte[(int) Math.min(length, available)];
+			scheduler.acquireUninterruptibly(priority, buffer.length);
+			DataInputStream input = new DataInputStream(chunkStore.open(file.getName(), offset));
+			try {
+				input.readFully(buffer);
+			} catch (IOException e) {
+				repairFile(file.getName());
+				throw e;
+			} finally {
+				input.close();
+			}
+			bytesRead.addAndGet(buffer.length);
+			return buffer;
+		}
+
+		long start = offset - offset % ChunkChecksums.BLOCK_SIZE;
+		long end = offset + length + ChunkChecksums.BLOCK_SIZE - 1;
+		end -= end % ChunkChecksums.BLOCK_SIZE;
+		scheduler.acquireUninterruptibly(priority, Math.min(end - start, Math.max(0, file.length() - start)));
+		byte[] blocks = readBlocks(file, start, (int) (end - start));
+		bytesRead.addAndGet(blocks.length);
+
+		int from = (int) Math.min(offset - start, blocks.length);
+		int to = (int) Math.min(offset + length - start, blocks.length);
+		return from == 0 && to == blocks.length ? blocks : Arrays.copyOfRange(blocks, from, to);
+	}
+
+	/**
+	 * Read whole blocks of a plain file and verify them against their
+	 * checksums. Data which does not match is read again along with its
+	 * checksums while no file is being replaced, and if it is still corrupt
+	 * the file is repaired in the background.
+	 * 
+	 * @param file
+	 *            : file to be read
+	 * @param offset
+	 *            : position of the first block
+	 * @param length
+	 *            : number of bytes to be read, cut short at end of file
+	 * @return bytes of the blocks
+	 * @throws IOException
+	 *             if the blocks are corrupt
+	 */
+	private byte[] readBlocks(File file, long offset, int length) throws IOException {
+		warm(file);
+		byte[] data = readPlainFile(file, offset, length);
+		if (ChunkChecksums.verify(file, offset, data))
+			return data;
+		synchronized (storeLock) {
+			data = readPlainFile(file, offset, length);
+			if (ChunkChecksums.verify(file, offset, data))
+				return data;
+		}
+		System.out.println("Corrupt data in '" + file.getName() + "' at " + offset + ", repairing.");
+		repairFile(file.getName());
+		throw new IOException("Corrupt data in '" + file.getName() + "' at " + offset);
+	}
+
+	/**
+	 * Read a byte range of a plain file, cut short at end of file
+	 * 
+	 * @param file
+	 *            : file to be read
+	 * @param offset
+	 *            : position of first byte to be read
+	 * @param length
+	 *            : number of bytes to be read
+	 * @return bytes read
+	 * @throws IOException
+	 */
+	private static byte[] readPlainFile(File file, long offset, int length) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			long available = Math.max(0, input.length() - offset);
+			byte buffer[] = new byte[(int) Math.min(length, available)];
+			input.seek(offset);
+			input.readFully(buffer);
+			return buffer;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Repair corrupt blocks of a file in the background. Each corrupt block
+	 * is fetched from another server holding a block with the same checksum,
+	 * root nodes of the trees of the file being asked first. A file which
+	 * cannot be repaired, or whose checksums cannot be read, is moved aside
+	 * so that requests for it are served by parent nodes instead, and its
+	 * repair is retried later. A file held as chunks gets its missing or
+	 * corrupt chunks fetched again in the same way.
+	 * 
+	 * @param fileName
+	 *            : name of corrupt file
+	 */
+	private void repairFile(final String fileName) {
+		synchronized (pendingRepair) {
+			if (!pendingRepair.add(fileName))
+				return;
+		}
+
+		replicationExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					File file = new File(lookupDirectory + fileName);
+					if (!file.exists() && chunkStore.contains(fileName)) {
+						int repaired = repairChunks(fileName);
+						if (repaired < 0)
+							System.out.println("Unable to repair chunks of '" + fileName + "'");
+						else
+							System.out.println("Repaired " + repaired + " chunk(s) of '" + fileName + "'");
+						return;
+					}
+
+					int repaired = repairBlocks(file, fileName);
+					if (repaired < 0)
+						quarantine(fileName);
+					else
+						System.out.println("Repaired " + repaired + " block(s) of '" + fileName + "'");
+				} finally {
+					synchronized (pendingRepair) {
+						pendingRepair.remove(fileName);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Repair corrupt blocks of a stored copy of a file, and drop any data
+	 * beyond its end
+	 * 
+	 * @param file
+	 *            : stored copy of the file
+	 * @param fileName
+	 *            : name of file
+	 * @return number of blocks repaired, -1 if a block cannot be repaired or
+	 *         the checksums of the file cannot be read
+	 */
+	private int repairBlocks(File file, String fileName) {
+		try {
+
+			// checked under the lock, the file may be replaced meanwhile
+			ArrayList<Long> corrupt;
+			synchronized (storeLock) {
+				if (!file.exists())
+					return 0;
+				corrupt = ChunkChecksums.findCorrupt(file);
+			}
+			ArrayList<String> hosts = getRepairHosts(fileName);
+			for (long block : corrupt) {
+				if (!repairBlock(file, fileName, block, hosts))
+					return -1;
+			}
+
+			// drop any data beyond end of file
+			synchronized (storeLock) {
+				long size = ChunkChecksums.getSize(file);
+				if (size >= 0 && file.length() > size) {
+					RandomAccessFile output = new RandomAccessFile(file, "rw");
+					try {
+						output.setLength(size);
+					} finally {
+						output.close();
+					}
+				}
+			}
+			return corrupt.size();
+		} catch (IOException e) {
+			System.out.println("Repair of '" + fileName + "' failed : " + e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Fetch chunks of a file held as chunks which are missing from this
+	 * server, or were deleted as corrupt, from other servers
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return number of chunks repaired, -1 if a chunk cannot be repaired
+	 */
+	private int repairChunks(String fileName) {
+		String[] hashes = chunkStore.getHashes(fileName);
+		long[] lengths = chunkStore.getLengths(fileName);
+		if (hashes == null || lengths == null)
+			return 0;
+		HashSet<String> missing = new HashSet<>(Arrays.asList(chunkStore.getMissing(hashes)));
+		ArrayList<String> hosts = getRepairHosts(fileName);
+		int repaired = 0;
+		long offset = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (missing.remove(hashes[i])) {
+				if (!repairChunk(fileName, hashes[i], offset, (int) lengths[i], hosts))
+					return -1;
+				repaired++;
+			}
+			offset += lengths[i];
+		}
+		return repaired;
+	}
+
+	/**
+	 * Store a chunk of a file fetched from another server as the same range
+	 * of the file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param hash
+	 *            : name of the chunk
+	 * @param offset
+	 *            : position of the chunk in the file
+	 * @param length
+	 *            : length of the chunk
+	 * @param hosts
+	 *            : servers asked for the chunk, in order
+	 * @return true if the chunk is stored
+	 */
+	private boolean repairChunk(String fileName, String hash, long offset, int length, ArrayList<String> hosts) {
+		for (String hostName : hosts) {
+			try {
+				Chunk chunk = getPeer(hostName).readChunk(fileName, offset, length);
+				if (chunk == null || !chunk.verify() || !ContentChunker.hash(chunk.getData()).equals(hash))
+					continue;
+				chunkStore.put(chunk.getData());
+				return true;
+			} catch (IOException | NotBoundException | ServerBusyException e) {
+				System.out.println("Unable to fetch chunk of '" + fileName + "' from " + hostName);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return hidden file a corrupt copy of a file is moved to until it is
+	 * repaired
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return quarantined copy of the file
+	 */
+	private File getQuarantined(String fileName) {
+		return new File(lookupDirectory + "." + fileName + QUARANTINE);
+	}
+
+	/**
+	 * Move a corrupt copy of a file aside, along with its checksums, so that
+	 * it is no longer served. Its version and popularity are kept until the
+	 * copy is either repaired or dropped.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	private void quarantine(String fileName) {
+		File file = new File(lookupDirectory + fileName);
+		File quarantined = getQuarantined(fileName);
+		synchronized (storeLock) {
+			if (!file.exists())
+				return;
+			try {
+				File checksums = ChunkChecksums.getFile(file);
+				if (checksums.exists())
+					Files.move(checksums.toPath(), ChunkChecksums.getFile(quarantined).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				Files.move(file.toPath(), quarantined.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				System.out.println("Unable to move '" + fileName + "' aside : " + e);
+				return;
+			}
+		}
+		synchronized (fileIndex) {
+			fileIndex.remove(fileName);
+		}
+		synchronized (checksumMap) {
+			checksumMap.remove(fileName);
+		}
+		invalidateSignature(fileName);
+		tiers.updated(fileName);
+		System.out.println("Unable to repair '" + fileName + "', moved aside until it can be.");
+	}
+
+	/**
+	 * Retry repair of every quarantined file in the background
+	 */
+	private void retryQuarantined() {
+		File[] files = new File(lookupDirectory).listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			Matcher matcher = QUARANTINED.matcher(file.getName());
+			if (!file.isFile() || !matcher.matches())
+				continue;
+			final String fileName = matcher.group(1);
+			synchronized (pendingRepair) {
+				if (!pendingRepair.add(fileName))
+					continue;
+			}
+			replicationExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						restoreQuarantined(fileName);
+					} finally {
+						synchronized (pendingRepair) {
+							pendingRepair.remove(fileName);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Repair a quarantined copy of a file and serve it again. A copy
+	 * superseded by a newer version is dropped, and so is a copy which still
+	 * cannot be repaired once another server is confirmed to hold the same
+	 * or a newer version. Otherwise the copy is kept aside for the next
+	 * retry, as it may be the only one left.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	private void restoreQuarantined(String fileName) {
+		File file = new File(lookupDirectory + fileName);
+		File quarantined = getQuarantined(fileName);
+		if (getFile(fileName) != null) {
+			removeQuarantined(fileName);
+			return;
+		}
+
+		int repaired = repairBlocks(quarantined, fileName);
+		if (repaired >= 0) {
+			synchronized (storeLock) {
+				if (file.exists() || chunkStore.contains(fileName) || tiers.isCold(fileName) || !quarantined.exists())
+					repaired = -1;
+				else {
+					try {
+						File checksums = ChunkChecksums.getFile(quarantined);
+						if (checksums.exists())
+							Files.move(checksums.toPath(), ChunkChecksums.getFile(file).toPath(),
+									StandardCopyOption.REPLACE_EXISTING);
+						Files.move(quarantined.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					} catch (IOException e) {
+						System.out.println("Unable to restore '" + fileName + "' : " + e);
+						return;
+					}
+				}
+			}
+			if (repaired < 0) {
+				removeQuarantined(fileName);
+				return;
+			}
+			synchronized (fileIndex) {
+				fileIndex.add(fileName);
+			}
+			System.out.println("Repaired " + repaired + " block(s) of '" + fileName + "', served again.");
+			return;
+		}
+
+		if (isHeldElsewhere(fileName)) {
+			System.out.println("Unable to repair '" + fileName + "', dropped as held by another server.");
+			removeQuarantined(fileName);
+			forgetFile(fileName);
+		} else
+			System.out.println("Unable to repair '" + fileName + "', kept aside as no other copy is known.");
+	}
+
+	/**
+	 * Delete quarantined copy of a file, along with its checksums
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	private void removeQuarantined(String fileName) {
+		File quarantined = getQuarantined(fileName);
+		synchronized (storeLock) {
+			quarantined.delete();
+			ChunkChecksums.getFile(quarantined).delete();
+		}
+	}
+
+	/**
+	 * Check whether another server, at the root node of one of the trees of
+	 * a file, holds the version of the file this server holds or a newer one
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return true if another up to date copy is confirmed
+	 */
+	private boolean isHeldElsewhere(String fileName) {
+		VersionVector version = getVersion(fileName);
+		for (int tree = 0; tree < ServerTable.TREES; tree++) {
+			String hostName = hashTable.get(ServerTable.getIndex(fileName, tree, "00", TOTAL_SERVERS));
+			if (hostName.equals(getHostName()))
+				continue;
+			try {
+				FileMetadata metadata = getPeer(hostName).statFile(fileName, tree, new int[] { 0, 0 });
+				if (metadata != null && metadata.getChecksum() != -1 && !metadata.getVersion().isBefore(version))
+					return true;
+			} catch (RemoteException | MalformedURLException | NotBoundException e) {
+				System.out.println("Unable to stat '" + fileName + "' on " + hostName);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return servers which may hold a copy of a file, root nodes of its trees
+	 * first and then every other server
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return addresses of servers other than this one
+	 */
+	private ArrayList<String> getRepairHosts(String fileName) {
+		LinkedHashSet<String> hosts = new LinkedHashSet<>();
+		for (int tree = 0; tree < ServerTable.TREES; tree++)
+			hosts.add(hashTable.get(ServerTable.getIndex(fileName, tree, "00", TOTAL_SERVERS)));
+		hosts.addAll(hashTable.values());
+		hosts.remove(getHostName());
+		return new ArrayList<>(hosts);
+	}
+
+	/**
+	 * Replace a corrupt block of a file by the same block fetched from
+	 * another server
+	 * 
+	 * @param file
+	 *            : corrupt copy of the file
+	 * @param fileName
+	 *            : name of file
+	 * @param block
+	 *            : index of the block
+	 * @param hosts
+	 *            : servers asked for the block, in order
+	 * @return true if the block is repaired, or no longer corrupt
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	private boolean repairBlock(File file, String fileName, long block, ArrayList<String> hosts)
+			throws IOException {
+		long offset = block * ChunkChecksums.BLOCK_SIZE;
+		int length = (int) Math.min(ChunkChecksums.BLOCK_SIZE, ChunkChecksums.getSize(file) - offset);
+		int expected = ChunkChecksums.getChecksum(file, block);
+		for (String hostName : hosts) {
+			try {
+				Chunk chunk = getPeer(hostName).readChunk(fileName, offset, length);
+				if (chunk == null || !chunk.verify() || chunk.getData().length != length
+						|| ChunkChecksums.checksum(chunk.getData(), 0, length) != expected)
+					continue;
+
+				// the file may have been replaced by a new version meanwhile
+				synchronized (storeLock) {
+					if (!file.exists() || ChunkChecksums.getChecksum(file, block) != expected)
+						return true;
+					RandomAccessFile output = new RandomAccessFile(file, "rw");
+					try {
+						output.seek(offset);
+						output.write(chunk.getData());
+					} finally {
+						output.close();
+					}
+				}
+				return true;
+			} catch (RemoteException | MalformedURLException | NotBoundException | ServerBusyException e) {
+				System.out.println("Unable to fetch block of '" + fileName + "' from " + hostName);
+			}
+		}
+
+		// the file may have been replaced by a version the others do not hold
+		synchronized (storeLock) {
+			if (!file.exists())
+				return true;
+			byte[] data = readPlainFile(file, offset, length);
+			return data.length == length
+					&& ChunkChecksums.getChecksum(file, block) == ChunkChecksums.checksum(data, 0, length);
+		}
+	}
+
+	/**
+	 * Calculate CRC32 checksum of a file from default lookup directory. The
+	 * checksum is calculated once and kept in memory, so that clients can
+	 * cheaply revalidate their cached copies.
+	 * 
+	 * @param file
+	 *            : file to be checked
+	 * @return checksum of file data, -1 if file could not be read
+	 */
+	public long getChecksum(File file) {
+		synchronized (checksumMap) {
+			Long checksum = checksumMap.get(file.getName());
+			if (checksum != null)
+				return checksum;
+		}
+
+		// remember checksum until the file is inserted again, plain files
+		// having it stored along with checksums of their blocks
+		long checksum = file.exists() || tiers.isCold(file.getName()) ? ChunkChecksums.getFileChecksum(file) : -1;
+		if (checksum == -1)
+			checksum = getChecksum(file, getFileSize(file));
+		if (checksum != -1) {
+			synchronized (checksumMap) {
+				checksumMap.put(file.getName(), checksum);
+			}
+		}
+		return checksum;
+	}
+
+	/**
+	 * Calculate CRC32 checksum of the first bytes of a file, used to verify
+	 * data a client already holds before resuming a download.
+	 * 
+	 * @param file
+	 *            : file to be checked
+	 * @param length
+	 *            : number of bytes from start of file to be checked
+	 * @return checksum of file data, -1 if file could not be read
+	 */
+	public long getChecksum(File file, long length) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			BufferedInputStream input = new BufferedInputStream(openFile(file, 0));
+			try {
+				int read;
+				while (length > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, length))) != -1) {
+					crc.update(buffer, 0, read);
+					length -= read;
+				}
+			} finally {
+				input.close();
+			}
+		} catch (IOException exp) {
+			exp.printStackTrace();
+			return -1;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Calculate checksum of the first bytes of a file, used to verify data a
+	 * client already holds before resuming a download. It is made of the
+	 * checksums kept of the blocks of a plain file, so that only the last
+	 * partial block is read.
+	 * 
+	 * @param file
+	 *            : file to be checked
+	 * @param length
+	 *            : number of bytes from start of file to be checked
+	 * @return checksum of file data, -1 if file could not be read
+	 */
+	public long getPrefixChecksum(File file, long length) {
+		try {
+
+			// read last partial block, bringing the file back from cold tier
+			byte[] tail = new byte[(int) (length % ChunkChecksums.BLOCK_SIZE)];
+			InputStream input = openFile(file, length - tail.length);
+			try {
+				if (ChunkChecksums.readBlock(input, tail, tail.length) < tail.length)
+					return -1;
+			} finally {
+				input.close();
+			}
+
+			// files stored as chunks have no checksums of blocks
+			if (file.exists() && ChunkChecksums.getFile(file).exists())
+				return ChunkChecksums.getPrefixChecksum(file, length, tail);
+			return ChunkChecksums.getPrefixChecksum(openFile(file, 0), length);
+		} catch (IOException exp) {
+			exp.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * This method is used to send a file to the client who requested it.
+	 * 
+	 * @param file
+	 *            : file to be sent
+	 * @param request
+	 *            : request packet
+	 * @param trace
+	 *            : trace data for this request
+	 * @param priority
+	 *            : class of traffic the file is read as
+	 * @throws ServerBusyException
+	 *             if this server has no memory left for the transfer
+	 */
+	public void sendFile(File file, Request request, Trace trace, IOScheduler.Priority priority)
+			throws ServerBusyException {
+
+		// whole file is held in memory, while a range, or a file sent
+		// compressed, is sent a chunk at a time
+		ClientInterface client = request.getClient();
+		long size = getFileSize(file);
+		boolean streamed = request.isRangeRequest() || (request.acceptsCompression() && Compression.ENABLED);
+		long reserved = streamed ? Math.min(Chunk.SIZE, size) : size;
+		reserveBytes(reserved);
+		requestsServed.incrementAndGet();
+		try {
+
+			// stream requested byte range to client in chunks, followed by trace
+			if (streamed) {
+				trace.setStatus(true);
+				sendRange(file, request, trace, priority);
+				client.pushTrace(trace);
+				return;
+			}
+
+			// read file from server directory and send it to client
+			long start = System.nanoTime();
+			byte[] buffer = readFile(file, priority);
+			recordHop(trace, Trace.HopType.DISK_READ, start);
+			trace.setStatus(true);
+
+			// send file data along with whole trace of this request, time
+			// taken by the push itself is only recorded on this server
+			start = System.nanoTime();
+			client.pushFile(buffer, trace, file.getName());
+			recordHop(null, Trace.HopType.PUSH, start);
+			bytesSent.addAndGet(buffer.length);
+
+		} catch (Exception e) {
+			System.out.println("File read & transfer error.");
+			try {
+				
+				// jsut send the trace to the client
+				client.pushTrace(trace);
+			} catch (RemoteException e1) {
+				System.out.println("Lost connection with client. Exiting.");
+				return;
+			}
+			return;
+		} finally {
+			releaseBytes(reserved);
+		}
+	}
+
+	/**
+	 * Send a byte range of a file to the client as a sequence of chunks,
+	 * compressed if the client accepts it. If the client is resuming a
+	 * download and the data it already holds does not match this copy, whole
+	 * file is sent again from the beginning.
+	 * 
+	 * @param file
+	 *            : file to be sent
+	 * @param request
+	 *            : request packet including requested range
+	 * @param trace
+	 *            : trace of this request, time spent reading and pushing
+	 *            chunks is added to it
+	 * @param priority
+	 *            : class of traffic the chunks are read as
+	 * @throws IOException
+	 */
+	private void sendRange(File file, Request request, Trace trace, IOScheduler.Priority priority)
+			throws IOException {
+		ClientInterface client = request.getClient();
+		long size = getFileSize(file);
+		long offset = Math.min(request.getOffset(), size);
+		long end = request.getLength() < 0 ? size : Math.min(size, offset + request.getLength());
+
+		// verify prefix held by client before continuing from its offset
+		if (offset > 0 && request.getPrefixChecksum() != -1
+				&& request.getPrefixChecksum() != getPrefixChecksum(file, offset)) {
+			System.out.println("Prefix of '" + file.getName() + "' does not match, sending whole file.");
+			offset = 0;
+			end = size;
+		}
+
+		long readTime = 0, pushTime = 0;
+		do {
+			int length = (int) Math.min(Chunk.SIZE, end - offset);
+			long start = System.nanoTime();
+			byte[] data = readFile(file, offset, length, priority);
+			Chunk chunk = new Chunk(file.getName(), offset, data, offset + length == size);
+			if (request.acceptsCompression())
+				chunk = chunk.compress();
+			long pushStart = System.nanoTime();
+			if (!client.pushChunk(chunk))
+				throw new IOException("Client failed to store chunk at " + offset);
+			readTime += pushStart - start;
+			pushTime += System.nanoTime() - pushStart;
+			bytesSent.addAndGet(chunk.getEncodedLength());
+			offset += length;
+		} while (offset < end);
+
+		trace.addToTrace(getHostName(), Trace.HopType.DISK_READ, readTime);
+		trace.addToTrace(getHostName(), Trace.HopType.PUSH, pushTime);
+		hopLatency.get(Trace.HopType.DISK_READ).record(readTime);
+		hopLatency.get(Trace.HopType.PUSH).record(pushTime);
+	}
+
+	/**
+	 * Add an entry for work started at a given time on this server to the
+	 * trace of a request and record its duration in hop latency histograms
+	 * of this server.
+	 * 
+	 * @param trace
+	 *            : trace of the request, null to only record the duration
+	 * @param type
+	 *            : type of work done
+	 * @param start
+	 *            : time the work started at, from System.nanoTime()
+	 */
+	public void recordHop(Trace trace, Trace.HopType type, long start) {
+		long duration = System.nanoTime() - start;
+		if (trace != null)
+			trace.addToTrace(getHostName(), type, duration);
+		hopLatency.get(type).record(duration);
+	}
+
+	/**
+	 * Return latencies of one type of work done for requests on this server.
+	 * 
+	 * @param type
+	 *            : type of work
+	 * @return histogram of latencies in nanoseconds
+	 */
+	public LatencyHistogram getHopLatency(Trace.HopType type) {
+		return hopLatency.get(type);
+	}
+
+	/**
+	 * Send locations of all known replicas of a file to the client who
+	 * requested it: this server along with the child nodes it has replicated
+	 * the file onto. Client can send its next request for this file to one of
+	 * these servers directly.
+	 * 
+	 * @param fileName
+	 *            : file requested
+	 * @param node
+	 *            : coordinates of this server for the file
+	 * @param request
+	 *            : request packet, giving the tree walked
+	 */
+	public void sendLocations(String fileName, int[] node, Request request) {
+		ArrayList<ReplicaLocation> locations = new ArrayList<>();
+		int tree = request.getTree();
+		int self = ServerTable.getIndex(fileName, tree, "" + node[0] + node[1], TOTAL_SERVERS);
+		locations.add(new ReplicaLocation(hashTable.get(self), tree, node));
+
+		String key = ServerTable.getKey(fileName, tree, "");
+		synchronized (replicaMap) {
+			if (replicaMap.containsKey(key)) {
+				for (String child : replicaMap.get(key)) {
+					int id = ServerTable.getIndex(fileName, tree, child, TOTAL_SERVERS);
+					int[] childNode = { child.charAt(0) - '0', Integer.parseInt(child.substring(1)) };
+					locations.add(new ReplicaLocation(hashTable.get(id), tree, childNode));
+				}
+			}
+		}
+
+		try {
+			request.getClient().pushLocations(fileName, getVersion(fileName), locations);
+		} catch (RemoteException e) {
+			System.out.println("Lost connection with client.");
+		}
+	}
+
+	/**
+	 * Learn from a file just served to a client session. Servers which sent
+	 * the files the session downloaded before are told this file followed
+	 * them, and files which usually follow this one are prefetched onto the
+	 * node the request entered the tree at, the client being told where they
+	 * are. Both are done in the background.
+	 * 
+	 * @param fileName
+	 *            : file served
+	 * @param request
+	 *            : request served
+	 */
+	public void fileServed(final String fileName, final Request request) {
+		if (!PREFETCH || request.getRecent() == null)
+			return;
+		coAccess.served(fileName);
+		final ArrayList<String> related = coAccess.related(fileName);
+
+		prefetchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Request.Access access : request.getRecent()) {
+					if (access.getFileName().equals(fileName))
+						continue;
+					try {
+						if (access.getHostName().equals(getHostName()))
+							recordCoAccess(access.getFileName(), fileName);
+						else
+							getPeer(access.getHostName()).recordCoAccess(access.getFileName(), fileName);
+					} catch (RemoteException | MalformedURLException | NotBoundException e) {
+						synchronized (peers) {
+							peers.remove(access.getHostName());
+						}
+					}
+				}
+				for (String follower : related)
+					prefetch(follower, request);
+			}
+		});
+	}
+
+	/**
+	 * Record that a file served by this server was followed by another one
+	 * in a client session
+	 * 
+	 * @param fileName
+	 *            : file served by this server
+	 * @param follower
+	 *            : file requested after it
+	 */
+	public void recordCoAccess(String fileName, String follower) {
+		coAccess.followed(fileName, follower);
+	}
+
+	/**
+	 * Bring a file onto the node a request for a related file entered the
+	 * tree at. The closest server holding the file on the way up from that
+	 * node is asked to push a replica onto it, which is then kept up to date
+	 * like any other replica, and the client is told of the replica so that
+	 * its request goes straight to it.
+	 * 
+	 * @param fileName
+	 *            : file to be prefetched
+	 * @param request
+	 *            : request for the related file
+	 */
+	private void prefetch(String fileName, Request request) {
+		int tree = request.getTree();
+		int[] origin = request.getOrigin();
+		String node = "" + origin[0] + origin[1];
+		String hostName = hashTable.get(ServerTable.getIndex(fileName, tree, node, TOTAL_SERVERS));
+		try {
+			FileMetadata metadata = hostName.equals(getHostName()) ? statFile(fileName, tree, origin)
+					: getPeer(hostName).statFile(fileName, tree, origin);
+			if (metadata == null)
+				return;
+
+			ReplicaLocation holder = metadata.getLocation();
+			if (!Arrays.equals(holder.getNode(), origin)) {
+				boolean pushed = holder.getHostName().equals(getHostName()) ? prefetchReplica(fileName, tree, node)
+						: getPeer(holder.getHostName()).prefetchReplica(fileName, tree, node);
+				if (!pushed)
+					return;
+			}
+			request.getClient().pushPrefetched(fileName, new ReplicaLocation(hostName, tree, origin));
+		} catch (RemoteException | MalformedURLException | NotBoundException e) {
+			System.out.println("Prefetch of '" + fileName + "' failed : " + e);
+		}
+	}
+
+	/**
+	 * Push a replica of a file held by this server onto a node below it,
+	 * for a file prefetched next to a client
+	 * 
+	 * @param fileName
+	 *            : file to be prefetched
+	 * @param tree
+	 *            : index of the tree the node belongs to
+	 * @param node
+	 *            : node the replica is pushed onto
+	 * @return true if the push is queued
+	 */
+	public boolean prefetchReplica(String fileName, int tree, String node) {
+		File file = getFile(fileName);
+		if (file == null || !isFresh(fileName, null))
+			return false;
+		System.out.println("Prefetching '" + fileName + "' onto node " + node);
+		replicateFile(file, tree, new String[] { node });
+		prefetches.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Return number of replicas pushed by this server to prefetch files next
+	 * to clients
+	 * 
+	 * @return number of prefetches
+	 */
+	public long getPrefetches() {
+		return prefetches.get();
+	}
+
+	/**
+	 * Return metadata of a file, walking up the tree from a node like a
+	 * download request does. The first server holding a copy which is not out
+	 * of date answers, and no file data is read or sent. Being cheap,
+	 * metadata queries are neither subject to admission control nor counted
+	 * as requests served.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param tree
+	 *            : index of the tree walked
+	 * @param node
+	 *            : coordinates of this server for the file
+	 * @return metadata of the file, null if it is not stored
+	 * @throws RemoteException
+	 *             if a server on the way to the root is unreachable
+	 */
+	public FileMetadata statFile(String fileName, int tree, int[] node) throws RemoteException {
+		File file = getFile(fileName);
+		if (file != null && (node[0] == 0 || isFresh(fileName, null))) {
+			int replicas = 1;
+			String key = ServerTable.getKey(fileName, tree, "");
+			synchronized (replicaMap) {
+				if (replicaMap.containsKey(key))
+					replicas += replicaMap.get(key).size();
+			}
+			return new FileMetadata(fileName, getFileSize(file), getChecksum(file), getVersion(fileName), replicas,
+					getFilePopularity(fileName), new ReplicaLocation(getHostName(), tree, node));
+		}
+		if (node[0] == 0)
+			return null;
+
+		// ask parent node
+		int[] parent = { node[0] - 1, node[1] / 2 };
+		String hostName = hashTable
+				.get(ServerTable.getIndex(fileName, tree, "" + parent[0] + parent[1], TOTAL_SERVERS));
+		try {
+			return getPeer(hostName).statFile(fileName, tree, parent);
+		} catch (MalformedURLException | NotBoundException e) {
+			throw new RemoteException("Parent node unreachable from " + getHostName(), e);
+		} catch (RemoteException e) {
+			synchronized (peers) {
+				peers.remove(hostName);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Return names of files stored on this server matching a glob, in order,
+	 * one page at a time. Names are taken from the index of this server, only
+	 * names sharing the prefix of the glob being scanned.
+	 * 
+	 * @param glob
+	 *            : glob names are matched against
+	 * @param after
+	 *            : last name of the previous page, null for the first page
+	 * @param limit
+	 *            : largest number of names returned
+	 * @return names matching, fewer than limit once the last page is reached
+	 */
+	public String[] listFiles(String glob, String after, int limit) {
+		NamePattern pattern = new NamePattern(glob);
+		ArrayList<String> names = new ArrayList<>();
+		synchronized (fileIndex) {
+			NavigableSet<String> candidates = after != null && after.compareTo(pattern.getPrefix()) >= 0
+					? fileIndex.tailSet(after, false) : fileIndex.tailSet(pattern.getPrefix(), true);
+			for (String name : candidates) {
+				if (names.size() >= limit || !name.startsWith(pattern.getPrefix()))
+					break;
+				if (pattern.matches(name))
+					names.add(name);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Return scheduler sharing bandwidth of this server between classes of
+	 * traffic
+	 * 
+	 * @return I/O scheduler of this server
+	 */
+	public IOScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Mark start of serving a file request on this server, rejecting it if
+	 * this server is already serving as many requests as it admits.
+	 * 
+	 * @throws ServerBusyException
+	 *             if no more requests can be served at the moment
+	 */
+	public void beginRequest() throws ServerBusyException {
+		int current;
+		do {
+			current = inFlight.get();
+			if (current >= MAX_REQUESTS) {
+				requestsRejected.incrementAndGet();
+				throw new ServerBusyException(getHostName(), current + " requests in flight");
+			}
+		} while (!inFlight.compareAndSet(current, current + 1));
+	}
+
+	/**
+	 * Mark end of serving a file request on this server.
+	 */
+	public void endRequest() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Return number of file requests being served by this server, reported to
+	 * clients as load of this server.
+	 * 
+	 * @return number of requests in flight
+	 */
+	public int getLoad() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Reserve memory for file data about to be read or received, rejecting
+	 * the transfer if it would go beyond the byte budget of this server. A
+	 * transfer larger than the whole budget is only admitted on an otherwise
+	 * idle server.
+	 * 
+	 * @param bytes
+	 *            : number of bytes to be held in memory
+	 * @throws ServerBusyException
+	 *             if the byte budget is used up
+	 */
+	public void reserveBytes(long bytes) throws ServerBusyException {
+		long current;
+		do {
+			current = inFlightBytes.get();
+			if (current > 0 && current + bytes > MAX_BYTES) {
+				requestsRejected.incrementAndGet();
+				throw new ServerBusyException(getHostName(), current + " bytes in flight");
+			}
+		} while (!inFlightBytes.compareAndSet(current, current + bytes));
+	}
+
+	/**
+	 * Release memory reserved for file data once it has been transferred
+	 * 
+	 * @param bytes
+	 *            : number of bytes reserved
+	 */
+	public void releaseBytes(long bytes) {
+		inFlightBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Return number of bytes of file data held in memory for transfers
+	 * 
+	 * @return bytes in flight
+	 */
+	public long getInFlightBytes() {
+		return inFlightBytes.get();
+	}
+
+	/**
+	 * Return number of requests and transfers rejected as busy
+	 * 
+	 * @return number of rejections
+	 */
+	public long getRequestsRejected() {
+		return requestsRejected.get();
+	}
+
+	/**
+	 * Add bytes sent by this server to a client outside of a file request
+	 * 
+	 * @param bytes
+	 */
+	public void addBytesSent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	/**
+	 * Return number of requests for which this server sent the file
+	 * 
+	 * @return number of requests served locally
+	 */
+	public long getRequestsServed() {
+		return requestsServed.get();
+	}
+
+	/**
+	 * Return number of requests this server forwarded to a parent node
+	 * 
+	 * @return number of requests forwarded
+	 */
+	public long getRequestsForwarded() {
+		return requestsForwarded.get();
+	}
+
+	/**
+	 * Return number of bytes this server has read from its lookup directory
+	 * 
+	 * @return bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Return number of bytes of file data this server has sent to clients
+	 * 
+	 * @return bytes sent
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Return files held in lookup directory of this server
+	 * 
+	 * @return files held, empty if directory cannot be read
+	 */
+	public File[] getStoredFiles() {
+		ArrayList<File> stored = new ArrayList<>();
+		File[] files = new File(lookupDirectory).listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.isFile() && !file.getName().startsWith("."))
+					stored.add(file);
+
+		// deduplicated files are only held as manifests
+		for (String fileName : chunkStore.getFileNames())
+			stored.add(new File(lookupDirectory + fileName));
+
+		// cold files are held in cold directory
+		for (String fileName : tiers.getColdFileNames())
+			if (!new File(lookupDirectory + fileName).exists())
+				stored.add(new File(lookupDirectory + fileName));
+		return stored.toArray(new File[stored.size()]);
+	}
+
+	/**
+	 * Return number of reads served from memory tier
+	 * 
+	 * @return number of reads
+	 */
+	public long getMemoryReads() {
+		return memoryReads.get();
+	}
+
+	/**
+	 * Return store placing files of this server in tiers
+	 * 
+	 * @return tiered store
+	 */
+	public TieredStore getTieredStore() {
+		return tiers;
+	}
+
+	/**
+	 * Return number of files this server has pushed onto child nodes
+	 * 
+	 * @return number of replication pushes
+	 */
+	public long getReplicationPushes() {
+		return replicationPushes.get();
+	}
+
+	/**
+	 * Return number of bytes this server has pushed onto child nodes
+	 * 
+	 * @return bytes sent for replication
+	 */
+	public long getReplicationBytes() {
+		return replicationBytes.get();
+	}
+
+	/**
+	 * Return number of bytes of replicated files which were not sent, as the
+	 * child node already held their chunks or blocks
+	 * 
+	 * @return bytes saved by deduplication and deltas
+	 */
+	public long getDedupBytes() {
+		return dedupBytes.get();
+	}
+
+	/**
+	 * This method is responsible for increasing the popularity count of a file.
+	 * 
+	 * @param fileName
+	 *            : name of file whose popularity is to be updated
+	 */
+	public void increasePopularityCount(String fileName) {
+
+		// check of this is a new file request
+		synchronized (fileMap) {
+			if (fileMap.containsKey(fileName)) {
+				int count = fileMap.get(fileName);
+				fileMap.put(fileName, count + 1);
+			} else
+				fileMap.put(fileName, 1);
+			state.popularity(fileName, fileMap.get(fileName));
+		}
+	}
+
+	/**
+	 * This method return the popularity count of a file.
+	 * 
+	 * @param fileName:
+	 *            name of file to be checked in map
+	 * @return popularity count
+	 */
+
+	public int getFilePopularity(String fileName) {
+		synchronized (fileMap) {
+			if (fileMap.containsKey(fileName))
+				return fileMap.get(fileName);
+			else
+				return 0;
+		}
+	}
+
+	/**
+	 * Return most popular files on this server along with their popularity
+	 * count, most popular first.
+	 * 
+	 * @param count
+	 *            : number of files to be returned
+	 * @return entries of the form name=popularity
+	 */
+	public String[] getTopFiles(int count) {
+		ArrayList<Map.Entry<String, Integer>> entries;
+		synchronized (fileMap) {
+			entries = new ArrayList<>(fileMap.entrySet());
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		String[] top = new String[Math.min(count, entries.size())];
+		for (int i = 0; i < top.length; i++)
+			top[i] = entries.get(i).getKey() + "=" + entries.get(i).getValue();
+		return top;
+	}
+
+	/**
+	 * If a file being requested from this server is not found, then forward
+	 * request to another parent server.
+	 * 
+	 * @param parentNode
+	 * @param request
+	 * @param trace
+	 * @param arrival
+	 *            : time the request arrived at this server, from
+	 *            System.nanoTime()
+	 * @return
+	 * @throws RemoteException
+	 *             if the parent server cannot be reached, so that the client
+	 *             can try another tree
+	 * @throws ServerBusyException
+	 *             if the parent server is busy, passed back to the client
+	 */
+	public boolean forwardRequest(String parentNode, Request request, Trace trace, long arrival)
+			throws RemoteException, ServerBusyException {
+		recordHop(trace, Trace.HopType.FORWARD, arrival);
+		requestsForwarded.incrementAndGet();
+		try {
+			// connect to another server over network and forward file search
+			// request to it.
+			int id = ServerTable.getIndex(request.getFileName(), request.getTree(), parentNode, TOTAL_SERVERS);
+			System.out.println("@" + getHostName() + " - Connecting to : " + hashTable.get(id));
+			String hostName = ServerTable.getURL(hashTable.get(id), "server");
+
+			// RMI lookup for required host name
+			long start = System.nanoTime();
+			S2SInterface server = (S2SInterface) Naming.lookup(hostName);
+			recordHop(trace, Trace.HopType.LOOKUP, start);
+			System.out
+					.println("Forwarding " + request.getFileName() + " request to parent server: " + hashTable.get(id));
+			return server.forwardRequest(request, trace);
+
+		} catch (MalformedURLException | NotBoundException e) {
+			System.out.println("Failed to connect to parent node.");
+			throw new RemoteException("Parent node unreachable from " + getHostName(), e);
+		}
+	}
+
+	/**
+	 * Execution starts from the main method which is responsible for starting a
+	 * server and make it available for file request and search from other
+	 * servers/clients. Optional arguments give name, port and lookup directory
+	 * of the server, to run more than one server on a machine.
+	 * 
+	 * @param args
+	 *            : [name port lookupDirectory]
+	 */
+	public static void main(String[] args) {
+		DHTServer server;
+		if (args.length >= 3)
+			server = new DHTServer(args[0], Integer.parseInt(args[1]), args[2], ServerTable.getServers());
+		else
+			server = new DHTServer();
 		server.start();
 	}
 
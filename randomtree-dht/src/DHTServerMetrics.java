@@ -0,0 +1,138 @@
+import java.io.File;
+
+/**
+ * DHTServerMetrics provides implementation of {@link DHTServerMetricsMBean}.
+ * Every server registers one instance on the platform MBean server, so that
+ * its counters can be read by any JMX client such as jconsole.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class DHTServerMetrics implements DHTServerMetricsMBean {
+
+	private static final int TOP_FILES = 10;
+	private DHTServer server;
+
+	public DHTServerMetrics(DHTServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public String getServerName() {
+		return server.getHostName();
+	}
+
+	@Override
+	public long getRequestsServed() {
+		return server.getRequestsServed();
+	}
+
+	@Override
+	public long getRequestsForwarded() {
+		return server.getRequestsForwarded();
+	}
+
+	@Override
+	public double getLocalHitRatio() {
+		long served = server.getRequestsServed();
+		long total = served + server.getRequestsForwarded();
+		return total == 0 ? 0 : (double) served / total;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return server.getBytesRead();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return server.getBytesSent();
+	}
+
+	@Override
+	public long getReplicationPushes() {
+		return server.getReplicationPushes();
+	}
+
+	@Override
+	public long getReplicationBytes() {
+		return server.getReplicationBytes();
+	}
+
+	@Override
+	public long getPrefetches() {
+		return server.getPrefetches();
+	}
+
+	@Override
+	public int getInFlightRequests() {
+		return server.getLoad();
+	}
+
+	@Override
+	public long getInFlightBytes() {
+		return server.getInFlightBytes();
+	}
+
+	@Override
+	public long getRequestsRejected() {
+		return server.getRequestsRejected();
+	}
+
+	@Override
+	public int getStoredFiles() {
+		return server.getStoredFiles().length;
+	}
+
+	@Override
+	public long getStoredBytes() {
+		long bytes = 0;
+		for (File file : server.getStoredFiles())
+			bytes += server.getFileSize(file);
+		return bytes;
+	}
+
+	@Override
+	public long getChunkStoreBytes() {
+		return server.getChunkStore().getStoredBytes();
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		return server.getTieredStore().getMemoryBytes();
+	}
+
+	@Override
+	public long getMemoryReads() {
+		return server.getMemoryReads();
+	}
+
+	@Override
+	public int getColdFiles() {
+		return server.getTieredStore().getColdFileNames().size();
+	}
+
+	@Override
+	public long getDedupBytes() {
+		return server.getDedupBytes();
+	}
+
+	@Override
+	public String[] getTopFiles() {
+		return server.getTopFiles(TOP_FILES);
+	}
+
+	@Override
+	public String[] getHopLatencies() {
+		Trace.HopType[] types = Trace.HopType.values();
+		String[] latencies = new String[types.length];
+		for (int i = 0; i < types.length; i++)
+			latencies[i] = types[i] + " : " + server.getHopLatency(types[i]).getSummary();
+		return latencies;
+	}
+
+	@Override
+	public String[] getIOClasses() {
+		return server.getScheduler().getSummary();
+	}
+}
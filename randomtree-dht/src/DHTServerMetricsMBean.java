@@ -0,0 +1,74 @@
+/**
+ * Management interface exposing live metrics of a {@link DHTServer} over JMX.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public interface DHTServerMetricsMBean {
+
+	// name of the server
+	String getServerName();
+
+	// requests for which the file was sent from this server
+	long getRequestsServed();
+
+	// requests forwarded to a parent node
+	long getRequestsForwarded();
+
+	// fraction of requests served from this server
+	double getLocalHitRatio();
+
+	// bytes read from lookup directory
+	long getBytesRead();
+
+	// bytes of file data sent to clients, after compression
+	long getBytesSent();
+
+	// files pushed onto child nodes
+	long getReplicationPushes();
+
+	// bytes pushed onto child nodes, after compression
+	long getReplicationBytes();
+
+	// replicas pushed to prefetch files next to clients
+	long getPrefetches();
+
+	// requests being served right now
+	int getInFlightRequests();
+
+	// bytes of file data held in memory for transfers right now
+	long getInFlightBytes();
+
+	// requests and transfers rejected as busy
+	long getRequestsRejected();
+
+	// number of files held in lookup directory
+	int getStoredFiles();
+
+	// bytes of files held in lookup directory
+	long getStoredBytes();
+
+	// bytes of distinct chunks held for deduplicated files
+	long getChunkStoreBytes();
+
+	// bytes of hot files held in memory
+	long getMemoryBytes();
+
+	// reads served from memory without touching the disk
+	long getMemoryReads();
+
+	// number of files moved to cold tier
+	int getColdFiles();
+
+	// bytes of replicated files not sent as child nodes held them already
+	long getDedupBytes();
+
+	// most popular files as name=popularity
+	String[] getTopFiles();
+
+	// latency summary of every type of hop handled by this server
+	String[] getHopLatencies();
+
+	// bytes granted and time waited by each class of I/O traffic
+	String[] getIOClasses();
+}
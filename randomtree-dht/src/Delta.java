@@ -0,0 +1,164 @@
+import java.io.Serializable;
+
+/**
+ * Delta represents part of a new version of a file, as a sequence of
+ * operations rebuilding it from the version held by a server: ranges copied
+ * from the file held and literal data sent along. Parts are applied in
+ * order, the last one carrying checksum of the whole new version.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class Delta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private String fileName;
+	private long offset;
+
+	// position copied from in the file held, -1 for literal data, and length
+	// of every operation
+	private long[] sources;
+	private int[] lengths;
+	private byte[] literals;
+	private boolean last;
+	private long checksum;
+
+	// identifies the delta this part belongs to, so that deltas of a file
+	// sent at once are applied apart
+	private String upload;
+
+	// literal data is held compressed, along with its length once
+	// decompressed
+	private boolean compressed;
+	private int literalLength;
+	private transient byte[] decompressed;
+
+	public Delta(String fileName, long offset, long[] sources, int[] lengths, byte[] literals, boolean last,
+			long checksum, String upload) {
+		this.fileName = fileName;
+		this.offset = offset;
+		this.sources = sources;
+		this.lengths = lengths;
+		this.literals = literals;
+		this.last = last;
+		this.checksum = checksum;
+		this.upload = upload;
+		this.literalLength = literals.length;
+	}
+
+	/**
+	 * Return a copy of this part holding its literal data compressed, for
+	 * sending
+	 * 
+	 * @return compressed part, this part if its literal data does not compress
+	 */
+	public Delta compress() {
+		if (compressed)
+			return this;
+		byte[] packed = Compression.compress(literals);
+		if (packed == null)
+			return this;
+		Delta delta = new Delta(fileName, offset, sources, lengths, packed, last, checksum, upload);
+		delta.compressed = true;
+		delta.literalLength = literals.length;
+		delta.decompressed = literals;
+		return delta;
+	}
+
+	/**
+	 * Return name of the file
+	 * 
+	 * @return
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Return identifier of the delta this part belongs to
+	 * 
+	 * @return
+	 */
+	public String getUpload() {
+		return upload;
+	}
+
+	/**
+	 * Return position of this part within the new version of the file
+	 * 
+	 * @return
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Return positions copied from, -1 for literal data
+	 * 
+	 * @return
+	 */
+	public long[] getSources() {
+		return sources;
+	}
+
+	/**
+	 * Return length of every operation
+	 * 
+	 * @return
+	 */
+	public int[] getLengths() {
+		return lengths;
+	}
+
+	/**
+	 * Return literal data of all literal operations, in order
+	 * 
+	 * @return
+	 */
+	public byte[] getLiterals() {
+		if (!compressed)
+			return literals;
+		if (decompressed == null)
+			decompressed = Compression.decompress(literals, literalLength);
+		return decompressed;
+	}
+
+	/**
+	 * Return number of bytes of literal data as sent, compressed or not
+	 * 
+	 * @return
+	 */
+	public int getEncodedLength() {
+		return literals.length;
+	}
+
+	/**
+	 * Return number of bytes of the new version this part covers
+	 * 
+	 * @return
+	 */
+	public long getLength() {
+		long length = 0;
+		for (int l : lengths)
+			length += l;
+		return length;
+	}
+
+	/**
+	 * Check if this is the last part of the new version
+	 * 
+	 * @return
+	 */
+	public boolean isLast() {
+		return last;
+	}
+
+	/**
+	 * Return CRC32 checksum of the whole new version, set on the last part
+	 * 
+	 * @return
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+}
@@ -0,0 +1,215 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * DeltaEncoder reads a new version of a file and turns it into a sequence of
+ * {@link Delta} parts against the signature of the version a server holds.
+ * A window of one block slides over the new version one byte at a time;
+ * wherever the window matches a block held by the server the block is
+ * copied, and bytes in between are sent as literal data. Without a
+ * signature, whole file is sent as literal data. Parts are bounded to about
+ * a chunk of literal data, so that files of any size are sent in memory of
+ * a few chunks.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class DeltaEncoder {
+
+	// operations per part, copies being small
+	private static final int MAX_OPERATIONS = 16 * 1024;
+
+	private String fileName;
+	private String upload;
+	private InputStream input;
+	private BlockSignature base;
+	private int blockSize;
+
+	// bytes of the new version read ahead, from start to end of buffer
+	private byte[] window;
+	private int start;
+	private int end;
+	private boolean ended;
+	private boolean finished;
+
+	// position of start of window within the new version, and its checksum
+	private long position;
+	private CRC32 crc;
+
+	// weak checksum of the block at start of window, if known
+	private boolean rolling;
+	private int checksum;
+
+	// operations of the part being built, and literal bytes just before
+	// start of window not added to them yet
+	private ArrayList<Long> sources;
+	private ArrayList<Integer> lengths;
+	private ByteArrayOutputStream literals;
+	private int pending;
+
+	/**
+	 * Create an encoder of a new version of a file
+	 * 
+	 * @param fileName
+	 *            : name of the file
+	 * @param input
+	 *            : content of the new version
+	 * @param base
+	 *            : signature of the version held by the server, null if it
+	 *            holds none
+	 */
+	public DeltaEncoder(String fileName, InputStream input, BlockSignature base) {
+		this.fileName = fileName;
+		this.upload = Chunk.newUpload();
+		this.input = input;
+		this.base = base;
+		blockSize = base != null ? base.getBlockSize() : BlockSignature.MAX_BLOCK;
+		window = new byte[Math.max(4 * blockSize, Chunk.SIZE) + 1];
+		crc = new CRC32();
+	}
+
+	/**
+	 * Return the next part of the delta
+	 * 
+	 * @return next part, null once the last part has been returned
+	 * @throws IOException
+	 */
+	public Delta next() throws IOException {
+		if (finished)
+			return null;
+
+		long offset = position;
+		sources = new ArrayList<>();
+		lengths = new ArrayList<>();
+		literals = new ByteArrayOutputStream();
+		while (literals.size() + pending < Chunk.SIZE && sources.size() < MAX_OPERATIONS) {
+			fill();
+			int available = end - start;
+			if (available == 0) {
+				finished = true;
+				break;
+			}
+
+			if (base == null) {
+				literal(available);
+				continue;
+			}
+
+			// a short window at end of file can only match the last block
+			int length = Math.min(available, blockSize);
+			if (!rolling) {
+				checksum = BlockSignature.weakChecksum(window, start, length);
+				rolling = true;
+			}
+			int block = base.find(checksum, window, start, length);
+			if (block >= 0) {
+				copy((long) block * blockSize, length);
+				continue;
+			}
+			if (length < blockSize) {
+				literal(available);
+				continue;
+			}
+
+			// no match, slide window by one byte
+			if (available > blockSize)
+				checksum = BlockSignature.roll(checksum, window[start], window[start + blockSize], blockSize);
+			else
+				rolling = false;
+			literal(1);
+		}
+		flush();
+
+		long[] from = new long[sources.size()];
+		int[] size = new int[lengths.size()];
+		for (int i = 0; i < from.length; i++) {
+			from[i] = sources.get(i);
+			size[i] = lengths.get(i);
+		}
+		return new Delta(fileName, offset, from, size, literals.toByteArray(), finished,
+				finished ? crc.getValue() : 0, upload);
+	}
+
+	/**
+	 * Read ahead so that the window holds at least one block and the byte
+	 * after it, unless the end of file is reached
+	 * 
+	 * @throws IOException
+	 */
+	private void fill() throws IOException {
+		if (ended || end - start > blockSize)
+			return;
+		flush();
+		System.arraycopy(window, start, window, 0, end - start);
+		end -= start;
+		start = 0;
+		while (!ended && end < window.length) {
+			int read = input.read(window, end, window.length - end);
+			if (read < 0)
+				ended = true;
+			else
+				end += read;
+		}
+	}
+
+	/**
+	 * Copy a range of the version held by the server, extending the previous
+	 * copy if it ends where this one starts
+	 * 
+	 * @param source
+	 *            : position of the range in the version held
+	 * @param length
+	 *            : length of the range
+	 */
+	private void copy(long source, int length) {
+		flush();
+		int last = sources.size() - 1;
+		if (last >= 0 && sources.get(last) >= 0 && sources.get(last) + lengths.get(last) == source
+				&& lengths.get(last) <= Integer.MAX_VALUE - length) {
+			lengths.set(last, lengths.get(last) + length);
+		} else {
+			sources.add(source);
+			lengths.add(length);
+		}
+		crc.update(window, start, length);
+		start += length;
+		position += length;
+		rolling = false;
+	}
+
+	/**
+	 * Send bytes at start of window as literal data. Bytes are only added to
+	 * the part once the literal run ends, as most runs grow one byte at a
+	 * time.
+	 * 
+	 * @param length
+	 *            : number of bytes
+	 */
+	private void literal(int length) {
+		pending += length;
+		start += length;
+		position += length;
+	}
+
+	/**
+	 * Add literal bytes passed over since the last operation to the part,
+	 * extending the previous operation if it is literal too
+	 */
+	private void flush() {
+		if (pending == 0)
+			return;
+		int last = sources.size() - 1;
+		if (last >= 0 && sources.get(last) < 0) {
+			lengths.set(last, lengths.get(last) + pending);
+		} else {
+			sources.add(-1L);
+			lengths.add(pending);
+		}
+		literals.write(window, start - pending, pending);
+		crc.update(window, start - pending, pending);
+		pending = 0;
+	}
+}
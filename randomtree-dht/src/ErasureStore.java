@@ -0,0 +1,442 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * ErasureStore allows a client to store large files erasure coded instead of
+ * fully replicated. A file is split into k data fragments and extended with m
+ * parity fragments using a Reed-Solomon code, each fragment being stored on
+ * the server of a different node of the tree of the file. A manifest
+ * describing the code is stored next to the fragments. Any k fragments are
+ * enough to read the file back, so it survives loss of m servers while
+ * taking (k + m) / k times its size, e.g. 1.5 times for 4 + 2.
+ * 
+ * Fragments are encoded, uploaded, downloaded and decoded one block at a
+ * time, fetching blocks of k fragments from different servers in parallel.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ErasureStore {
+
+	private static final int DATA_FRAGMENTS = Integer.getInteger("dht.ec.k", 4);
+	private static final int PARITY_FRAGMENTS = Integer.getInteger("dht.ec.m", 2);
+
+	// bytes of each fragment encoded or decoded at a time
+	private static final int BLOCK_SIZE = Chunk.SIZE;
+	private static final String MANIFEST = ".ec";
+	private static final String FRAGMENT = ".frag";
+	private static final Pattern INTERNAL = Pattern.compile(".+(\\.ec|\\.frag[0-9]+)");
+
+	private Client client;
+	private HashMap<String, S2CInterface> stubs;
+
+	public ErasureStore(Client client) {
+		this.client = client;
+		stubs = new HashMap<>();
+	}
+
+	/**
+	 * Check if a name is one of the names manifests and fragments of files
+	 * are stored under
+	 * 
+	 * @param name
+	 *            : name of a file stored on a server
+	 * @return true if the file is part of an erasure coded file
+	 */
+	public static boolean isInternal(String name) {
+		return INTERNAL.matcher(name).matches();
+	}
+
+	/**
+	 * Return client interface of a server, connecting to it on first use
+	 * 
+	 * @param hostName
+	 *            : address of the server
+	 * @return client interface of the server
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private S2CInterface getServer(String hostName) throws MalformedURLException, RemoteException, NotBoundException {
+		synchronized (stubs) {
+			S2CInterface stub = stubs.get(hostName);
+			if (stub == null) {
+				stub = client.getServer(hostName);
+				stubs.put(hostName, stub);
+			}
+			return stub;
+		}
+	}
+
+	/**
+	 * Pick nodes of the tree holding each fragment of a file. Nodes are taken
+	 * level by level from the root, skipping nodes mapped onto a server
+	 * already picked, so that each fragment is held by a different server
+	 * when there are enough of them.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param count
+	 *            : number of fragments
+	 * @return coordinates of the node of each fragment
+	 */
+	private String[] placeFragments(String fileName, int count) {
+		String[] nodes = Client.getTreeNodes();
+		ArrayList<String> placed = new ArrayList<>();
+		HashSet<String> hosts = new HashSet<>();
+		for (String node : nodes)
+			if (placed.size() < count && hosts.add(client.getHost(fileName, 0, node)))
+				placed.add(node);
+
+		// fewer servers than fragments, some servers hold more than one
+		for (int i = 0; placed.size() < count; i++)
+			placed.add(nodes[i % nodes.length]);
+		return placed.toArray(new String[count]);
+	}
+
+	/**
+	 * Upload a file from the lookup directory of the client as k data and m
+	 * parity fragments.
+	 * 
+	 * @param fileName
+	 *            : file to be uploaded
+	 * @return true if every fragment and the manifest are stored
+	 */
+	public boolean upload(final String fileName) {
+		File file = new File(client.getLookupDirectory() + fileName);
+		if (!file.exists()) {
+			System.out.println("Error : File reading error.\nFile not found.");
+			return false;
+		}
+
+		int k = DATA_FRAGMENTS, m = PARITY_FRAGMENTS;
+		ReedSolomon code = new ReedSolomon(k, m);
+		final long size = file.length();
+		final long fragmentSize = (size + k - 1) / k;
+		final String[] nodes = placeFragments(fileName, k + m);
+		final String upload = Chunk.newUpload();
+		ExecutorService pool = Executors.newFixedThreadPool(k + m);
+
+		System.out.println("@Client - Uploading '" + fileName + "' as " + k + "+" + m + " fragments of "
+				+ fragmentSize + " bytes.");
+		try {
+			RandomAccessFile input = new RandomAccessFile(file, "r");
+			try {
+				long offset = 0;
+				do {
+					int length = (int) Math.min(BLOCK_SIZE, fragmentSize - offset);
+					byte[][] fragments = new byte[k + m][length];
+
+					// read block of each data fragment, zero padded past end
+					// of file
+					for (int j = 0; j < k; j++) {
+						long position = j * fragmentSize + offset;
+						int available = (int) Math.max(0, Math.min(length, size - position));
+						if (available > 0) {
+							input.seek(position);
+							input.readFully(fragments[j], 0, available);
+						}
+					}
+					code.encode(Arrays.copyOfRange(fragments, 0, k), Arrays.copyOfRange(fragments, k, k + m), length);
+
+					// send block of every fragment to its server at once
+					ArrayList<Future<Boolean>> results = new ArrayList<>();
+					final boolean last = offset + length == fragmentSize;
+					for (int i = 0; i < k + m; i++) {
+						final int index = i;
+						final Chunk chunk = new Chunk(fileName + FRAGMENT + i, offset, fragments[i], last, upload);
+						results.add(pool.submit(new Callable<Boolean>() {
+							@Override
+							public Boolean call() throws Exception {
+								return sendChunk(client.getHost(fileName, 0, nodes[index]), chunk);
+							}
+						}));
+					}
+					for (Future<Boolean> result : results)
+						if (!result.get())
+							throw new IOException("Server failed to store fragment");
+					offset += length;
+				} while (offset < fragmentSize);
+			} finally {
+				input.close();
+			}
+
+			// manifest is stored on the server of every fragment
+			Properties manifest = new Properties();
+			manifest.setProperty("k", "" + k);
+			manifest.setProperty("m", "" + m);
+			manifest.setProperty("size", "" + size);
+			manifest.setProperty("checksum", "" + Client.getChecksum(file));
+			manifest.setProperty("nodes", String.join(",", nodes));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			manifest.store(bytes, "erasure coded " + fileName);
+			HashSet<String> hosts = new HashSet<>();
+			for (String node : nodes) {
+				String hostName = client.getHost(fileName, 0, node);
+				if (hosts.add(hostName))
+					sendChunk(hostName, new Chunk(fileName + MANIFEST, 0, bytes.toByteArray(), true));
+			}
+		} catch (IOException | InterruptedException | ExecutionException | ServerBusyException
+				| NotBoundException e) {
+			System.out.println("Error : Erasure coded upload failed. " + e);
+			return false;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		System.out.println("@Client - Stored '" + fileName + "' on " + (k + m) + " nodes : " + String.join(",", nodes));
+		return true;
+	} // upload
+
+	/**
+	 * Upload one chunk of a fragment or manifest, backing off while the
+	 * server is busy
+	 * 
+	 * @param hostName
+	 *            : server holding the fragment
+	 * @param chunk
+	 *            : chunk to be uploaded
+	 * @return true if the chunk is stored
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 * @throws MalformedURLException
+	 * @throws ServerBusyException
+	 *             if the server stays busy after all attempts
+	 */
+	private boolean sendChunk(String hostName, Chunk chunk)
+			throws MalformedURLException, RemoteException, NotBoundException, ServerBusyException {
+		S2CInterface server = getServer(hostName);
+		chunk = chunk.compress();
+		for (int attempt = 1;; attempt++) {
+			try {
+				return server.insertChunk(chunk, 0);
+			} catch (ServerBusyException e) {
+				if (attempt == Client.MAX_ATTEMPTS)
+					throw e;
+				Client.backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Read manifest of an erasure coded file from the first node of its tree
+	 * holding it
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return manifest of the file, null if none is found
+	 */
+	private Properties fetchManifest(String fileName) {
+		for (String node : Client.getTreeNodes()) {
+			String hostName = client.getHost(fileName, 0, node);
+			try {
+				S2CInterface server = getServer(hostName);
+				long size = server.getFileSize(fileName + MANIFEST);
+				if (size < 0)
+					continue;
+				Chunk chunk = server.readChunk(fileName + MANIFEST, 0, (int) size);
+				if (!chunk.verify())
+					throw new IOException("Manifest is corrupt on " + hostName);
+				Properties manifest = new Properties();
+				manifest.load(new ByteArrayInputStream(chunk.getData()));
+				return manifest;
+			} catch (IOException | NotBoundException | ServerBusyException e) {
+				System.out.println("@Client - Unable to read manifest from : " + hostName);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Download an erasure coded file into the lookup directory of the client.
+	 * Blocks of k fragments are fetched in parallel, data fragments first; a
+	 * fragment whose server fails is replaced by a parity fragment for the
+	 * rest of the download.
+	 * 
+	 * @param fileName
+	 *            : file to be downloaded
+	 * @return true if the file is downloaded and verified
+	 */
+	public boolean download(final String fileName) {
+		Properties manifest = fetchManifest(fileName);
+		if (manifest == null) {
+			System.out.println("*** RESPONSE ***\nStatus : File not Found");
+			return false;
+		}
+
+		int k = Integer.parseInt(manifest.getProperty("k"));
+		int m = Integer.parseInt(manifest.getProperty("m"));
+		long size = Long.parseLong(manifest.getProperty("size"));
+		long checksum = Long.parseLong(manifest.getProperty("checksum"));
+		final String[] nodes = manifest.getProperty("nodes").split(",");
+		ReedSolomon code = new ReedSolomon(k, m);
+		long fragmentSize = (size + k - 1) / k;
+
+		// fragments read, data fragments first, and spares to fall back on
+		int[] chosen = new int[k];
+		LinkedList<Integer> spares = new LinkedList<>();
+		for (int i = 0; i < k + m; i++) {
+			if (i < k)
+				chosen[i] = i;
+			else
+				spares.add(i);
+		}
+		int[][] decoder = null;
+
+		File file = new File(client.getLookupDirectory() + fileName);
+		ExecutorService pool = Executors.newFixedThreadPool(k);
+		boolean complete = true;
+		try {
+			RandomAccessFile output = new RandomAccessFile(file, "rw");
+			try {
+				output.setLength(size);
+				byte[][] data = new byte[k][BLOCK_SIZE];
+				for (long offset = 0; offset < fragmentSize; offset += BLOCK_SIZE) {
+					final long position = offset;
+					final int length = (int) Math.min(BLOCK_SIZE, fragmentSize - offset);
+					byte[][] fragments = new byte[k][];
+
+					// fetch block of every chosen fragment, replacing failed
+					// ones by spares until k blocks are read
+					while (true) {
+						ArrayList<Future<byte[]>> results = new ArrayList<>();
+						for (int r = 0; r < k; r++) {
+							final int index = chosen[r];
+							results.add(fragments[r] != null ? null : pool.submit(new Callable<byte[]>() {
+								@Override
+								public byte[] call() throws Exception {
+									return fetchBlock(fileName, index, nodes[index], position, length);
+								}
+							}));
+						}
+
+						boolean retry = false;
+						for (int r = 0; r < k; r++) {
+							if (results.get(r) == null)
+								continue;
+							try {
+								fragments[r] = results.get(r).get();
+							} catch (ExecutionException e) {
+								System.out.println("@Client - Fragment " + chosen[r] + " unavailable on : "
+										+ client.getHost(fileName, 0, nodes[chosen[r]]));
+								if (spares.isEmpty())
+									throw new IOException("Fewer than " + k + " fragments available");
+								chosen[r] = spares.removeFirst();
+								retry = true;
+							}
+						}
+						if (!retry)
+							break;
+						decoder = null;
+					}
+
+					// data fragments are used as they are, else decode them
+					byte[][] block = fragments;
+					if (!isSystematic(chosen)) {
+						if (decoder == null)
+							decoder = code.getDecoder(chosen);
+						code.combine(decoder, fragments, data, length);
+						block = data;
+					}
+
+					for (int j = 0; j < k; j++) {
+						long target = j * fragmentSize + offset;
+						int available = (int) Math.max(0, Math.min(length, size - target));
+						if (available > 0) {
+							output.seek(target);
+							output.write(block[j], 0, available);
+						}
+					}
+				}
+			} finally {
+				output.close();
+			}
+
+			if (Client.getChecksum(file) != checksum) {
+				System.out.println("Error : Checksum mismatch for downloaded file.");
+				complete = false;
+			}
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Error : Erasure coded download failed. " + e);
+			complete = false;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (!complete) {
+			file.delete();
+			return false;
+		}
+		System.out.println("File Insertion successful.");
+		client.cacheFile(fileName);
+		return true;
+	} // download
+
+	/**
+	 * Check if the chosen fragments are the data fragments in order
+	 * 
+	 * @param chosen
+	 *            : indexes of fragments read
+	 * @return true if no decoding is needed
+	 */
+	private static boolean isSystematic(int[] chosen) {
+		for (int r = 0; r < chosen.length; r++)
+			if (chosen[r] != r)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Read one block of a fragment from its server
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param index
+	 *            : index of the fragment
+	 * @param node
+	 *            : node of the tree holding the fragment
+	 * @param offset
+	 *            : position of the block within the fragment
+	 * @param length
+	 *            : length of the block
+	 * @return data of the block
+	 * @throws Exception
+	 *             if the block cannot be read
+	 */
+	private byte[] fetchBlock(String fileName, int index, String node, long offset, int length) throws Exception {
+		String hostName = client.getHost(fileName, 0, node);
+		for (int attempt = 1;; attempt++) {
+			try {
+				Chunk chunk = getServer(hostName).readChunk(fileName + FRAGMENT + index, offset, length);
+				if (chunk.getLength() != length)
+					throw new IOException("Fragment " + index + " is truncated on " + hostName);
+				if (!chunk.verify())
+					throw new IOException("Fragment " + index + " is corrupt on " + hostName);
+				return chunk.getData();
+			} catch (ServerBusyException e) {
+				if (attempt == Client.MAX_ATTEMPTS)
+					throw e;
+				Client.backoff(attempt);
+			}
+		}
+	}
+
+} // ErasureStore
@@ -0,0 +1,103 @@
+import java.io.Serializable;
+
+/**
+ * FileMetadata describes a file stored in the DHT as seen by the first server
+ * holding it on the way from a leaf node to the root, without transferring
+ * any file data. Clients use it to check that a file exists, and whether
+ * their copy is up to date, far more cheaply than by downloading it.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class FileMetadata implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private String fileName;
+	private long size;
+	private long checksum;
+	private VersionVector version;
+	private int replicas;
+	private int popularity;
+	private ReplicaLocation location;
+
+	public FileMetadata(String fileName, long size, long checksum, VersionVector version, int replicas, int popularity,
+			ReplicaLocation location) {
+		this.fileName = fileName;
+		this.size = size;
+		this.checksum = checksum;
+		this.version = version;
+		this.replicas = replicas;
+		this.popularity = popularity;
+		this.location = location;
+	}
+
+	/**
+	 * Return name of the file
+	 * 
+	 * @return
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Return size of the file in bytes
+	 * 
+	 * @return
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Return CRC32 checksum of the file
+	 * 
+	 * @return
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Return version of the copy of the file held by the server which
+	 * answered
+	 * 
+	 * @return
+	 */
+	public VersionVector getVersion() {
+		return version;
+	}
+
+	/**
+	 * Return number of copies of the file known to the server, its own copy
+	 * and replicas it pushed onto other nodes
+	 * 
+	 * @return
+	 */
+	public int getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * Return popularity count of the file on the server
+	 * 
+	 * @return
+	 */
+	public int getPopularity() {
+		return popularity;
+	}
+
+	/**
+	 * Return server which answered, along with the node it holds the file for
+	 * 
+	 * @return
+	 */
+	public ReplicaLocation getLocation() {
+		return location;
+	}
+
+	@Override
+	public String toString() {
+		return fileName + " : " + size + " bytes, checksum " + checksum + ", version " + version + ", " + replicas
+				+ " cop" + (replicas == 1 ? "y" : "ies") + ", popularity " + popularity + ", on " + location;
+	}
+}
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * FileSearch allows a client to find files by a prefix or glob of their
+ * names. Files are spread over all servers by hashing, so that no server
+ * knows every name; the search is sent to all servers at once, each one
+ * answering from the index of files it stores, and their sorted answers are
+ * merged as they come back. Names are fetched a page at a time from every
+ * server, the next page being fetched while the current one is read, so that
+ * a search stopped early does not fetch every matching name. Manifests and
+ * fragments of erasure coded files are left out.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class FileSearch {
+
+	// names fetched from a server at once, no more than a server returns
+	private static final int PAGE_SIZE = Math.max(1,
+			Math.min(Integer.getInteger("dht.search.page", 256), DHTServer.MAX_PAGE));
+	private static final int MAX_THREADS = 8;
+	private Client client;
+
+	public FileSearch(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * Names of matching files of a server, fetched a page at a time.
+	 */
+	private static class Source {
+		String hostName;
+		LinkedList<String> names = new LinkedList<>();
+		String after;
+		Future<String[]> page;
+	}
+
+	/**
+	 * Names of all files matching a glob, in order and without duplicates,
+	 * merged from all servers. Results are to be closed when a search is
+	 * stopped before its last name.
+	 */
+	public class Results implements Iterator<String> {
+		private String glob;
+		private int pageSize;
+		private ExecutorService executor;
+		private PriorityQueue<Source> sources;
+		private String last;
+
+		private Results(String glob, String after, int pageSize) {
+			this.glob = glob;
+			this.pageSize = pageSize;
+			this.executor = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "search");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			// ask every server for its first page at once
+			ArrayList<Source> started = new ArrayList<>();
+			for (String hostName : new HashSet<>(Client.hashTable.values())) {
+				Source source = new Source();
+				source.hostName = hostName;
+				source.after = after;
+				fetch(source);
+				started.add(source);
+			}
+
+			sources = new PriorityQueue<>(Math.max(1, started.size()), new Comparator<Source>() {
+				@Override
+				public int compare(Source a, Source b) {
+					return a.names.peek().compareTo(b.names.peek());
+				}
+			});
+			for (Source source : started)
+				if (fill(source))
+					sources.add(source);
+			if (sources.isEmpty())
+				close();
+		}
+
+		/**
+		 * Start fetching next page of names of a server
+		 * 
+		 * @param source
+		 *            : server searched
+		 */
+		private void fetch(final Source source) {
+			final String after = source.after;
+			source.page = executor.submit(new Callable<String[]>() {
+				@Override
+				public String[] call() throws Exception {
+					return client.getServer(source.hostName).listFiles(glob, after, pageSize);
+				}
+			});
+		}
+
+		/**
+		 * Make sure names of a server are buffered, waiting for the page being
+		 * fetched if needed. Once a whole page is received the next one is
+		 * fetched ahead of being read.
+		 * 
+		 * @param source
+		 *            : server searched
+		 * @return true if a name is buffered, false once the server has no
+		 *         more
+		 */
+		private boolean fill(Source source) {
+			while (source.names.isEmpty() && source.page != null) {
+				String[] names;
+				try {
+					names = source.page.get();
+				} catch (InterruptedException | ExecutionException e) {
+					System.out.println("@Client - Unable to reach : " + source.hostName);
+					names = new String[0];
+				}
+				source.page = null;
+				source.names.addAll(Arrays.asList(names));
+
+				// a short page is the last one
+				if (names.length == pageSize) {
+					source.after = names[names.length - 1];
+					fetch(source);
+				}
+			}
+			return !source.names.isEmpty();
+		}
+
+		@Override
+		public boolean hasNext() {
+			// replicas of a file on different servers come out together
+			while (!sources.isEmpty() && (sources.peek().names.peek().equals(last)
+					|| ErasureStore.isInternal(sources.peek().names.peek())))
+				advance();
+			return !sources.isEmpty();
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last = sources.peek().names.peek();
+			advance();
+			return last;
+		}
+
+		/**
+		 * Drop smallest name buffered, and put its server back in order
+		 */
+		private void advance() {
+			Source source = sources.poll();
+			source.names.poll();
+			if (fill(source))
+				sources.add(source);
+			else if (sources.isEmpty())
+				close();
+		}
+
+		/**
+		 * Stop the search, dropping pages still being fetched
+		 */
+		public void close() {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Search all servers for files matching a glob
+	 * 
+	 * @param glob
+	 *            : prefix followed by '*', or any glob of '*' and '?'
+	 * @return names of matching files, in order
+	 */
+	public Results search(String glob) {
+		return new Results(glob, null, PAGE_SIZE);
+	}
+
+	/**
+	 * Return one page of names of files matching a glob
+	 * 
+	 * @param glob
+	 *            : prefix followed by '*', or any glob of '*' and '?'
+	 * @param after
+	 *            : last name of the previous page, null for the first page
+	 * @param limit
+	 *            : largest number of names returned
+	 * @return names of matching files, in order, fewer than limit on the last
+	 *         page
+	 */
+	public ArrayList<String> search(String glob, String after, int limit) {
+		Results results = new Results(glob, after, Math.min(limit, DHTServer.MAX_PAGE));
+		ArrayList<String> names = new ArrayList<>();
+		while (names.size() < limit && results.hasNext())
+			names.add(results.next());
+		results.close();
+		return names;
+	}
+}
@@ -0,0 +1,206 @@
+import java.util.EnumMap;
+
+/**
+ * IOScheduler shares disk and network bandwidth of a server between classes
+ * of traffic. Every class has its own token bucket limiting its bandwidth,
+ * and all classes draw from one more bucket holding total capacity of the
+ * server. A class is only granted capacity while no class of higher priority
+ * is waiting, so that background traffic only uses capacity left over by
+ * requests of clients.
+ * 
+ * Rates are read from system properties in bytes per second, 0 meaning
+ * unlimited : dht.io.capacity for the server and dht.io.client.rate,
+ * dht.io.forwarded.rate and dht.io.background.rate for each class.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class IOScheduler {
+
+	/**
+	 * Classes of traffic, highest priority first
+	 */
+	public enum Priority {
+		// file read on request of a client connected to this server
+		CLIENT_READ,
+		// file read on request forwarded by another server
+		FORWARDED_READ,
+		// replication and rebalancing of files between servers
+		BACKGROUND
+	}
+
+	private static final long DEFAULT_BACKGROUND_RATE = 32L * 1024 * 1024;
+
+	private TokenBucket capacity;
+	private EnumMap<Priority, TokenBucket> buckets;
+	private EnumMap<Priority, Integer> waiting;
+	private EnumMap<Priority, Long> granted;
+	private EnumMap<Priority, LatencyHistogram> waitTime;
+
+	public IOScheduler() {
+		this(Long.getLong("dht.io.capacity", 0), Long.getLong("dht.io.client.rate", 0),
+				Long.getLong("dht.io.forwarded.rate", 0),
+				Long.getLong("dht.io.background.rate", DEFAULT_BACKGROUND_RATE));
+	}
+
+	/**
+	 * Create a scheduler with given rates in bytes per second, 0 meaning
+	 * unlimited.
+	 * 
+	 * @param capacity
+	 *            : total bandwidth of the server
+	 * @param clientRate
+	 *            : bandwidth of client reads
+	 * @param forwardedRate
+	 *            : bandwidth of forwarded reads
+	 * @param backgroundRate
+	 *            : bandwidth of background traffic
+	 */
+	public IOScheduler(long capacity, long clientRate, long forwardedRate, long backgroundRate) {
+		this.capacity = new TokenBucket(capacity);
+		buckets = new EnumMap<>(Priority.class);
+		buckets.put(Priority.CLIENT_READ, new TokenBucket(clientRate));
+		buckets.put(Priority.FORWARDED_READ, new TokenBucket(forwardedRate));
+		buckets.put(Priority.BACKGROUND, new TokenBucket(backgroundRate));
+		waiting = new EnumMap<>(Priority.class);
+		granted = new EnumMap<>(Priority.class);
+		waitTime = new EnumMap<>(Priority.class);
+		for (Priority priority : Priority.values()) {
+			waiting.put(priority, 0);
+			granted.put(priority, 0L);
+			waitTime.put(priority, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Wait until a class of traffic is allowed to transfer a number of bytes.
+	 * A transfer larger than the burst of a bucket is granted once the bucket
+	 * is not in debt, leaving it in debt for the bytes above its tokens.
+	 * 
+	 * @param priority
+	 *            : class of traffic
+	 * @param bytes
+	 *            : number of bytes to be read or sent
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(Priority priority, long bytes) throws InterruptedException {
+		long start = System.nanoTime();
+		TokenBucket bucket = buckets.get(priority);
+		waiting.put(priority, waiting.get(priority) + 1);
+		try {
+			long delay;
+			while ((delay = delay(priority, bucket)) != 0) {
+				if (delay < 0)
+					wait();
+				else
+					wait(Math.max(1, delay / 1000000));
+			}
+			bucket.take(bytes);
+			capacity.take(bytes);
+			granted.put(priority, granted.get(priority) + bytes);
+		} finally {
+			waiting.put(priority, waiting.get(priority) - 1);
+			notifyAll();
+		}
+		waitTime.get(priority).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Same as {@link #acquire(Priority, long)}, keeping interrupt status of the
+	 * calling thread instead of throwing.
+	 * 
+	 * @param priority
+	 *            : class of traffic
+	 * @param bytes
+	 *            : number of bytes to be read or sent
+	 */
+	public void acquireUninterruptibly(Priority priority, long bytes) {
+		try {
+			acquire(priority, bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Return time to wait before a class of traffic can go ahead
+	 * 
+	 * @param priority
+	 * @param bucket
+	 *            : bucket of this class
+	 * @return 0 if it can go ahead now, -1 if it has to wait for a class of
+	 *         higher priority waiting on capacity of the server, else
+	 *         nanoseconds till its buckets refill
+	 */
+	private long delay(Priority priority, TokenBucket bucket) {
+		for (Priority higher : Priority.values()) {
+			if (higher == priority)
+				break;
+			if (waiting.get(higher) > 0 && buckets.get(higher).delay() == 0)
+				return -1;
+		}
+		return Math.max(bucket.delay(), capacity.delay());
+	}
+
+	/**
+	 * Return number of bytes granted to a class of traffic
+	 * 
+	 * @param priority
+	 * @return bytes granted
+	 */
+	public synchronized long getGranted(Priority priority) {
+		return granted.get(priority);
+	}
+
+	/**
+	 * Return summary of bytes granted and time spent waiting by each class of
+	 * traffic.
+	 * 
+	 * @return one line per class
+	 */
+	public synchronized String[] getSummary() {
+		Priority[] priorities = Priority.values();
+		String[] summary = new String[priorities.length];
+		for (int i = 0; i < priorities.length; i++)
+			summary[i] = String.format("%s : granted=%.1fMB wait %s", priorities[i],
+					granted.get(priorities[i]) / 1e6, waitTime.get(priorities[i]).getSummary());
+		return summary;
+	}
+
+	/**
+	 * TokenBucket refills at a fixed rate up to a burst of one second worth of
+	 * tokens. Callers hold lock of the scheduler.
+	 */
+	private static class TokenBucket {
+		private long rate;
+		private double tokens;
+		private long lastRefill;
+
+		TokenBucket(long rate) {
+			this.rate = rate;
+			tokens = rate;
+			lastRefill = System.nanoTime();
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+		}
+
+		/**
+		 * Return nanoseconds till this bucket is out of debt, 0 if it is
+		 */
+		long delay() {
+			if (rate <= 0)
+				return 0;
+			refill();
+			return tokens > 0 ? 0 : (long) Math.ceil((1 - tokens) * 1e9 / rate);
+		}
+
+		void take(long bytes) {
+			if (rate > 0)
+				tokens -= bytes;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records latencies in nanoseconds into log-linear buckets:
+ * every power of two is split into 16 buckets, keeping percentiles within
+ * about 6% of the actual value at a fixed memory cost. Values can be recorded
+ * from many threads at once.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_BUCKETS * 2;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private AtomicLong count;
+	private AtomicLong sum;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Return bucket holding a value
+	 * 
+	 * @param value
+	 * @return index of bucket
+	 */
+	private static int bucket(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) ((value >> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1));
+		return LINEAR + (magnitude - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Return smallest value held by a bucket
+	 * 
+	 * @param bucket
+	 *            : index of bucket
+	 * @return lower bound of bucket
+	 */
+	private static long lowerBound(int bucket) {
+		if (bucket < LINEAR)
+			return bucket;
+		int magnitude = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+		int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (magnitude - SUB_BITS);
+	}
+
+	/**
+	 * Record a latency
+	 * 
+	 * @param nanos
+	 *            : latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while ((current = max.get()) < nanos && !max.compareAndSet(current, nanos))
+			;
+	}
+
+	/**
+	 * Add all values recorded by another histogram to this one
+	 * 
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.addAndGet(i, other.counts.get(i));
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+
+		long current;
+		while ((current = max.get()) < other.max.get() && !max.compareAndSet(current, other.max.get()))
+			;
+	}
+
+	/**
+	 * Return number of values recorded
+	 * 
+	 * @return
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Return mean of values recorded, in nanoseconds
+	 * 
+	 * @return
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Return largest value recorded, in nanoseconds
+	 * 
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Return value below which a given fraction of recorded values fall
+	 * 
+	 * @param fraction
+	 *            : e.g. 0.99 for 99th percentile
+	 * @return percentile in nanoseconds, middle of the bucket it falls in
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				long low = lowerBound(i);
+				long high = i + 1 < BUCKETS ? lowerBound(i + 1) : low;
+				return Math.min(low + (high - low) / 2, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Return summary of this histogram in milliseconds
+	 * 
+	 * @return
+	 */
+	public String getSummary() {
+		return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", getCount(),
+				getMean() / 1e6, getPercentile(0.50) / 1e6, getPercentile(0.99) / 1e6, getPercentile(0.999) / 1e6,
+				getMax() / 1e6);
+	}
+}
@@ -0,0 +1,152 @@
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * LeafSelector picks the leaf node of the tree a client sends its download
+ * request to. Using power of two choices, two random leaves are compared and
+ * the one with lower cost is picked, cost of a server being its measured round
+ * trip time weighted by the number of requests it reports to be serving.
+ * Measurements are kept for a while, so that a server is not probed on every
+ * request.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class LeafSelector {
+
+	private static final long PROBE_INTERVAL = 5000;
+	private static final double SMOOTHING = 0.3;
+
+	// load assumed for a server for a probe interval after it rejected a
+	// request
+	private static final int BUSY_LOAD = 1000;
+	private Client client;
+	private Random random;
+
+	// host name of a server to its latest measurements
+	private HashMap<String, ServerStats> statsMap;
+
+	public LeafSelector(Client client) {
+		this.client = client;
+		this.random = new Random();
+		this.statsMap = new HashMap<>();
+	}
+
+	/**
+	 * Measurements of a server as seen by this client.
+	 */
+	private static class ServerStats {
+		double rtt;
+		int load;
+		long probedAt;
+		boolean reachable;
+
+		// time until which the server is treated as busy, after it rejected
+		// a request
+		long busyUntil;
+	}
+
+	/**
+	 * Pick a leaf node for a request of a file, comparing two random leaves.
+	 * 
+	 * @param fileName
+	 *            : file being requested
+	 * @param tree
+	 *            : index of the tree walked by the request
+	 * @return coordinates of the leaf node
+	 */
+	public int[] selectLeaf(String fileName, int tree) {
+		int level = Client.getLeafLevel();
+		int leaves = 1 << level;
+		int first = random.nextInt(leaves);
+		if (leaves == 1)
+			return new int[] { level, first };
+
+		int second = (first + 1 + random.nextInt(leaves - 1)) % leaves;
+		double firstCost = getCost(client.getHost(fileName, tree, "" + level + first));
+		double secondCost = getCost(client.getHost(fileName, tree, "" + level + second));
+		return new int[] { level, firstCost <= secondCost ? first : second };
+	}
+
+	/**
+	 * Return cost of sending a request to a server, probing the server if its
+	 * measurements are out of date.
+	 * 
+	 * @param hostName
+	 *            : host name of the server
+	 * @return cost of the server, lower is better
+	 */
+	private double getCost(String hostName) {
+		ServerStats stats;
+		synchronized (statsMap) {
+			stats = statsMap.get(hostName);
+		}
+		long now = System.currentTimeMillis();
+		if (stats == null || now - stats.probedAt > PROBE_INTERVAL)
+			stats = probe(hostName, stats);
+
+		if (!stats.reachable)
+			return Double.MAX_VALUE;
+		int load = now < stats.busyUntil ? Math.max(stats.load, BUSY_LOAD) : stats.load;
+		return stats.rtt * (1 + load);
+	}
+
+	/**
+	 * Mark a server as busy after it rejected a request, so that other leaves
+	 * are preferred for a probe interval. A server never probed is left to be
+	 * probed on its next use, its cost being its measured round trip time
+	 * weighted by the busy load.
+	 * 
+	 * @param hostName
+	 *            : host name of the busy server
+	 */
+	public void reportBusy(String hostName) {
+		synchronized (statsMap) {
+			ServerStats stats = statsMap.get(hostName);
+			if (stats == null) {
+				stats = new ServerStats();
+				statsMap.put(hostName, stats);
+			}
+			stats.busyUntil = System.currentTimeMillis() + PROBE_INTERVAL;
+		}
+	}
+
+	/**
+	 * Measure round trip time of a server and fetch the load it reports.
+	 * 
+	 * @param hostName
+	 *            : host name of the server
+	 * @param previous
+	 *            : earlier measurements of the server, if any
+	 * @return updated measurements
+	 */
+	private ServerStats probe(String hostName, ServerStats previous) {
+		ServerStats stats = new ServerStats();
+		stats.probedAt = System.currentTimeMillis();
+		try {
+			S2CInterface server = client.getServer(hostName);
+			long start = System.nanoTime();
+			stats.load = server.getLoad();
+			double rtt = System.nanoTime() - start;
+
+			// smooth round trip time over earlier measurements
+			if (previous != null && previous.reachable)
+				rtt = SMOOTHING * rtt + (1 - SMOOTHING) * previous.rtt;
+			stats.rtt = rtt;
+			stats.reachable = true;
+		} catch (MalformedURLException | RemoteException | NotBoundException e) {
+			stats.reachable = false;
+		}
+
+		synchronized (statsMap) {
+			ServerStats current = statsMap.get(hostName);
+			if (current != null)
+				stats.busyUntil = current.busyUntil;
+			statsMap.put(hostName, stats);
+		}
+		return stats;
+	}
+}
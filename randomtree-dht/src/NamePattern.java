@@ -0,0 +1,59 @@
+import java.util.regex.Pattern;
+
+/**
+ * NamePattern matches file names against a glob, where '*' stands for any
+ * run of characters and '?' for any single character. Names matching a glob
+ * all start with the part of it before the first wildcard, so that a sorted
+ * index of names is only scanned from that prefix on.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class NamePattern {
+
+	private String prefix;
+	private Pattern pattern;
+
+	/**
+	 * Create a pattern from a glob, a plain name matching only itself
+	 * 
+	 * @param glob
+	 *            : glob names are matched against
+	 */
+	public NamePattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int wildcard = -1;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (wildcard < 0)
+					wildcard = i;
+				regex.append(c == '*' ? ".*" : ".");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		prefix = wildcard < 0 ? glob : glob.substring(0, wildcard);
+		pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * Return part of the glob before its first wildcard
+	 * 
+	 * @return prefix of every matching name
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Check if a name matches the glob
+	 * 
+	 * @param name
+	 *            : file name
+	 * @return true if the whole name matches
+	 */
+	public boolean matches(String name) {
+		return name.startsWith(prefix) && pattern.matcher(name).matches();
+	}
+}
@@ -0,0 +1,167 @@
+import java.util.Arrays;
+
+/**
+ * ReedSolomon implements a systematic Reed-Solomon erasure code over GF(2^8).
+ * k data fragments are extended with m parity fragments, each parity byte
+ * being a linear combination of the data bytes at the same position with
+ * coefficients from a Cauchy matrix. Any k of the k + m fragments are enough
+ * to recover the data.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ReedSolomon {
+
+	// generator polynomial x^8 + x^4 + x^3 + x^2 + 1 of the field
+	private static final int POLYNOMIAL = 0x11d;
+	private static final int[] EXP = new int[512];
+	private static final int[] LOG = new int[256];
+
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= 256)
+				x ^= POLYNOMIAL;
+		}
+		for (int i = 255; i < EXP.length; i++)
+			EXP[i] = EXP[i - 255];
+	}
+
+	private int dataFragments;
+
+	// coefficients of parity fragments, one row per parity fragment
+	private int[][] parity;
+
+	/**
+	 * Create a code with k data and m parity fragments
+	 * 
+	 * @param dataFragments
+	 *            : k
+	 * @param parityFragments
+	 *            : m
+	 */
+	public ReedSolomon(int dataFragments, int parityFragments) {
+		if (dataFragments < 1 || parityFragments < 0 || dataFragments + parityFragments > 256)
+			throw new IllegalArgumentException("Unsupported code : " + dataFragments + "+" + parityFragments);
+		this.dataFragments = dataFragments;
+
+		// Cauchy matrix 1 / (x_i + y_j), x_i = k + i and y_j = j being distinct
+		parity = new int[parityFragments][dataFragments];
+		for (int i = 0; i < parityFragments; i++)
+			for (int j = 0; j < dataFragments; j++)
+				parity[i][j] = inverse((dataFragments + i) ^ j);
+	}
+
+	private static int multiply(int a, int b) {
+		if (a == 0 || b == 0)
+			return 0;
+		return EXP[LOG[a] + LOG[b]];
+	}
+
+	private static int inverse(int a) {
+		if (a == 0)
+			throw new ArithmeticException("Zero has no inverse");
+		return EXP[255 - LOG[a]];
+	}
+
+	/**
+	 * Compute parity fragments of a block of data fragments
+	 * 
+	 * @param data
+	 *            : k data fragments
+	 * @param output
+	 *            : m parity fragments, overwritten
+	 * @param length
+	 *            : number of bytes of each fragment to be encoded
+	 */
+	public void encode(byte[][] data, byte[][] output, int length) {
+		combine(parity, data, output, length);
+	}
+
+	/**
+	 * Return matrix recovering data fragments from the given k fragments,
+	 * i.e. inverse of the rows of the encoding matrix for these fragments.
+	 * 
+	 * @param indexes
+	 *            : indexes of the fragments available, k of them, data
+	 *            fragments numbered from 0 and parity fragments from k
+	 * @return k x k decoding matrix
+	 */
+	public int[][] getDecoder(int[] indexes) {
+		int k = dataFragments;
+		if (indexes.length != k)
+			throw new IllegalArgumentException("Expected " + k + " fragments, got " + indexes.length);
+
+		// rows of the systematic encoding matrix [I; parity], next to identity
+		int[][] matrix = new int[k][2 * k];
+		for (int r = 0; r < k; r++) {
+			if (indexes[r] < k)
+				matrix[r][indexes[r]] = 1;
+			else
+				System.arraycopy(parity[indexes[r] - k], 0, matrix[r], 0, k);
+			matrix[r][k + r] = 1;
+		}
+
+		// Gauss-Jordan elimination
+		for (int col = 0; col < k; col++) {
+			int pivot = col;
+			while (pivot < k && matrix[pivot][col] == 0)
+				pivot++;
+			if (pivot == k)
+				throw new IllegalArgumentException("Fragments are not independent");
+			int[] swap = matrix[col];
+			matrix[col] = matrix[pivot];
+			matrix[pivot] = swap;
+
+			int scale = inverse(matrix[col][col]);
+			for (int c = 0; c < 2 * k; c++)
+				matrix[col][c] = multiply(matrix[col][c], scale);
+			for (int r = 0; r < k; r++) {
+				int factor = matrix[r][col];
+				if (r == col || factor == 0)
+					continue;
+				for (int c = 0; c < 2 * k; c++)
+					matrix[r][c] ^= multiply(factor, matrix[col][c]);
+			}
+		}
+
+		int[][] decoder = new int[k][k];
+		for (int r = 0; r < k; r++)
+			System.arraycopy(matrix[r], k, decoder[r], 0, k);
+		return decoder;
+	}
+
+	/**
+	 * Multiply a matrix by a set of fragments, byte by byte
+	 * 
+	 * @param matrix
+	 *            : coefficients, one row per output fragment
+	 * @param input
+	 *            : input fragments, one per column
+	 * @param output
+	 *            : output fragments, overwritten
+	 * @param length
+	 *            : number of bytes of each fragment
+	 */
+	public void combine(int[][] matrix, byte[][] input, byte[][] output, int length) {
+		for (int r = 0; r < matrix.length; r++) {
+			byte[] out = output[r];
+			Arrays.fill(out, 0, length, (byte) 0);
+			for (int c = 0; c < input.length; c++) {
+				int coefficient = matrix[r][c];
+				if (coefficient == 0)
+					continue;
+				byte[] in = input[c];
+				int logCoefficient = LOG[coefficient];
+				for (int i = 0; i < length; i++) {
+					int value = in[i] & 0xff;
+					if (value != 0)
+						out[i] ^= EXP[logCoefficient + LOG[value]];
+				}
+			}
+		}
+	}
+}
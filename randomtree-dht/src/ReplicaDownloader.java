@@ -0,0 +1,198 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ReplicaDownloader allows a client to download a file from all servers
+ * holding a replica of it. Different byte ranges of the file are fetched from
+ * different replicas at the same time, then the file is reassembled in the
+ * lookup directory of the client and verified against its checksum.
+ *
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ReplicaDownloader {
+
+	private static final int CHUNK_SIZE = Chunk.SIZE;
+	private static final int MAX_THREADS = 8;
+	private Client client;
+
+	public ReplicaDownloader(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * A server found to hold a copy of the file being downloaded.
+	 */
+	private static class Replica {
+		String hostName;
+		S2CInterface server;
+		long size;
+		VersionVector version;
+	}
+
+	/**
+	 * Find all servers holding a replica of a file. Every node of every tree
+	 * of the file is checked starting from the root, the first copy found is
+	 * taken as the reference and replicas of a different size, or of an older
+	 * version, are left out as stale.
+	 *
+	 * @param fileName
+	 *            : file being searched
+	 * @return list of replicas, reference copy first
+	 */
+	private ArrayList<Replica> findReplicas(String fileName) {
+		ArrayList<Replica> replicas = new ArrayList<>();
+		HashSet<String> visited = new HashSet<>();
+
+		for (int tree = 0; tree < ServerTable.TREES; tree++) {
+			for (String node : Client.getTreeNodes()) {
+				String hostName = client.getHost(fileName, tree, node);
+
+				// same server may be mapped to more than one node of the tree
+				if (!visited.add(hostName))
+					continue;
+
+				try {
+					S2CInterface server = client.getServer(hostName);
+					long size = server.getFileSize(fileName);
+					if (size < 0 || (!replicas.isEmpty() && size != replicas.get(0).size))
+						continue;
+					VersionVector version = server.getVersion(fileName);
+					if (version == null || (!replicas.isEmpty() && version.isBefore(replicas.get(0).version)))
+						continue;
+
+					Replica replica = new Replica();
+					replica.hostName = hostName;
+					replica.server = server;
+					replica.size = size;
+					replica.version = version;
+					replicas.add(replica);
+				} catch (MalformedURLException | RemoteException | NotBoundException e) {
+					System.out.println("@Client - Unable to reach : " + hostName);
+				}
+			}
+		}
+		return replicas;
+	}
+
+	/**
+	 * Fetch one chunk of the file and write it at its position in the output
+	 * file. If a replica fails or is busy, the chunk is requested from the
+	 * next one, backing off between attempts on busy replicas.
+	 *
+	 * @param fileName
+	 *            : file being downloaded
+	 * @param replicas
+	 *            : servers holding the file
+	 * @param index
+	 *            : index of the chunk
+	 * @param output
+	 *            : file being reassembled
+	 * @return true if the chunk was written, false otherwise
+	 */
+	private boolean fetchChunk(String fileName, ArrayList<Replica> replicas, int index, RandomAccessFile output) {
+		long offset = (long) index * CHUNK_SIZE;
+		int length = (int) Math.min(CHUNK_SIZE, replicas.get(0).size - offset);
+
+		int attempts = Math.max(replicas.size(), Client.MAX_ATTEMPTS);
+		for (int attempt = 0; attempt < attempts; attempt++) {
+			Replica replica = replicas.get((index + attempt) % replicas.size());
+			try {
+				Chunk chunk = replica.server.readChunk(fileName, offset, length);
+				if (chunk.getLength() != length || !chunk.verify())
+					continue;
+
+				synchronized (output) {
+					output.seek(offset);
+					output.write(chunk.getData());
+				}
+				return true;
+			} catch (IOException e) {
+				System.out.println("@Client - Chunk " + index + " failed on : " + replica.hostName);
+			} catch (ServerBusyException e) {
+				System.out.println("@Client - Chunk " + index + " rejected by busy : " + replica.hostName);
+				Client.backoff(attempt + 1);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Download a file by fetching its chunks in parallel from all replicas
+	 * and verify the reassembled file.
+	 *
+	 * @param fileName
+	 *            : file to be downloaded
+	 * @return true if file is downloaded and verified, false otherwise
+	 */
+	public boolean download(final String fileName) {
+		final ArrayList<Replica> replicas = findReplicas(fileName);
+		if (replicas.isEmpty()) {
+			System.out.println("*** RESPONSE ***\nStatus : File not Found");
+			return false;
+		}
+
+		System.out.println("@Client - Downloading '" + fileName + "' from " + replicas.size() + " replica(s) :");
+		for (Replica replica : replicas)
+			System.out.println("\t" + replica.hostName);
+
+		File file = new File(client.getLookupDirectory() + fileName);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_THREADS, replicas.size() * 2));
+		boolean complete = true;
+		try {
+			long checksum = replicas.get(0).server.getChecksum(fileName);
+			final RandomAccessFile output = new RandomAccessFile(file, "rw");
+			try {
+				output.setLength(replicas.get(0).size);
+				int chunks = (int) ((replicas.get(0).size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+				// request every chunk from a different replica in turn
+				ArrayList<Future<Boolean>> results = new ArrayList<>();
+				for (int i = 0; i < chunks; i++) {
+					final int index = i;
+					results.add(pool.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() {
+							return fetchChunk(fileName, replicas, index, output);
+						}
+					}));
+				}
+				for (Future<Boolean> result : results)
+					complete &= result.get();
+			} finally {
+				output.close();
+			}
+
+			// verify reassembled file against checksum of the reference copy
+			if (complete && Client.getChecksum(file) != checksum) {
+				System.out.println("Error : Checksum mismatch for downloaded file.");
+				complete = false;
+			}
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			System.out.println("Error : Parallel download failed. " + e);
+			complete = false;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (!complete) {
+			file.delete();
+			return false;
+		}
+		System.out.println("File Insertion successful.");
+		client.cacheFile(fileName);
+		return true;
+	} // download
+
+} // ReplicaDownloader
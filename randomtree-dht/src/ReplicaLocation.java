@@ -0,0 +1,64 @@
+import java.io.Serializable;
+
+/**
+ * ReplicaLocation represents a server holding a copy of a file, along with
+ * coordinates of the node of the tree it holds the file for. Servers return
+ * these locations to clients so later requests can be sent to a replica
+ * directly.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ReplicaLocation implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private String hostName;
+	private int tree;
+	private int[] node;
+
+	public ReplicaLocation(String hostName, int tree, int[] node) {
+		this.hostName = hostName;
+		this.tree = tree;
+		this.node = new int[] { node[0], node[1] };
+	}
+
+	/**
+	 * Return host name of the server holding the replica
+	 * 
+	 * @return
+	 */
+	public String getHostName() {
+		return hostName;
+	}
+
+	/**
+	 * Return index of the tree the replica is held for
+	 * 
+	 * @return
+	 */
+	public int getTree() {
+		return tree;
+	}
+
+	/**
+	 * Return coordinates of the tree node the replica is held for
+	 * 
+	 * @return
+	 */
+	public int[] getNode() {
+		return new int[] { node[0], node[1] };
+	}
+
+	/**
+	 * Return level of the tree node, 0 for root
+	 * 
+	 * @return
+	 */
+	public int getLevel() {
+		return node[0];
+	}
+
+	@Override
+	public String toString() {
+		return hostName + " (" + node[0] + "," + node[1] + (tree == 0 ? "" : " tree " + tree) + ")";
+	}
+}
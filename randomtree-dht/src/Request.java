@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.ArrayList;
 
 /**
  * This class represents a Request packet. It includes details of file download
@@ -12,10 +13,50 @@ public class Request implements Serializable {
 	private ClientInterface client;
 	private String fileName;
 	private int[] server;
+	private int tree;
+	private long offset;
+	private long length;
+	private long prefixChecksum;
+	private boolean compression;
+	private VersionVector minVersion;
+	private ArrayList<Access> recent;
+	private int[] origin;
+
+	/**
+	 * A file recently downloaded by the client sending a request, and the
+	 * server which sent it
+	 */
+	public static class Access implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private String fileName;
+		private String hostName;
+		private long time;
+
+		public Access(String fileName, String hostName, long time) {
+			this.fileName = fileName;
+			this.hostName = hostName;
+			this.time = time;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public String getHostName() {
+			return hostName;
+		}
+
+		public long getTime() {
+			return time;
+		}
+	}
 
 	public Request() {
 		this.fileName = null;
 		this.server = new int[2];
+		this.offset = 0;
+		this.length = -1;
+		this.prefixChecksum = -1;
 	}
 
 	/**
@@ -64,6 +105,25 @@ public class Request implements Serializable {
 			server[i++] = x;
 	}
 
+	/**
+	 * Set index of the tree this request walks, servers of every node on its
+	 * way are found by hashing with this index.
+	 * 
+	 * @param tree
+	 */
+	public void setTree(int tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Return index of the tree this request walks, 0 by default
+	 * 
+	 * @return
+	 */
+	public int getTree() {
+		return tree;
+	}
+
 	public void setFileName(String fileName) {
 		this.fileName = fileName;
 	}
@@ -72,4 +132,142 @@ public class Request implements Serializable {
 		this.client = callBack;
 	}
 
+	/**
+	 * Request only a byte range of the file instead of whole file.
+	 * 
+	 * @param offset
+	 *            : position of the first byte requested
+	 * @param length
+	 *            : number of bytes requested, -1 for up to end of file
+	 */
+	public void setRange(long offset, long length) {
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Return position of the first byte requested
+	 * 
+	 * @return
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Return number of bytes requested, -1 if requested up to end of file
+	 * 
+	 * @return
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Check if only a byte range of the file has been requested
+	 * 
+	 * @return
+	 */
+	public boolean isRangeRequest() {
+		return offset > 0 || length >= 0;
+	}
+
+	/**
+	 * Set checksum of the data client already holds before the requested
+	 * offset, calculated by {@link ChunkChecksums#getPrefixChecksum}. Server
+	 * restarts transfer from the beginning if it does not match.
+	 * 
+	 * @param prefixChecksum
+	 */
+	public void setPrefixChecksum(long prefixChecksum) {
+		this.prefixChecksum = prefixChecksum;
+	}
+
+	/**
+	 * Return checksum of the data client holds before the requested offset,
+	 * -1 if not set
+	 * 
+	 * @return
+	 */
+	public long getPrefixChecksum() {
+		return prefixChecksum;
+	}
+
+	/**
+	 * Set if client accepts file data sent compressed
+	 * 
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Check if client accepts file data sent compressed
+	 * 
+	 * @return
+	 */
+	public boolean acceptsCompression() {
+		return compression;
+	}
+
+	/**
+	 * Set latest version of the file the client has seen. Servers holding an
+	 * older copy forward the request to their parent node instead of serving
+	 * it.
+	 * 
+	 * @param minVersion
+	 */
+	public void setMinVersion(VersionVector minVersion) {
+		this.minVersion = minVersion;
+	}
+
+	/**
+	 * Return latest version of the file the client has seen, null if none
+	 * 
+	 * @return
+	 */
+	public VersionVector getMinVersion() {
+		return minVersion;
+	}
+
+	/**
+	 * Set files downloaded by the client in its current session, oldest
+	 * first, allowing servers to learn which files are requested together
+	 * 
+	 * @param recent
+	 */
+	public void setRecent(ArrayList<Access> recent) {
+		this.recent = recent;
+	}
+
+	/**
+	 * Return files downloaded by the client in its current session, null if
+	 * not set
+	 * 
+	 * @return
+	 */
+	public ArrayList<Access> getRecent() {
+		return recent;
+	}
+
+	/**
+	 * Set coordinates of the node this request was first sent to
+	 * 
+	 * @param origin
+	 */
+	public void setOrigin(int[] origin) {
+		this.origin = origin.clone();
+	}
+
+	/**
+	 * Return coordinates of the node this request was first sent to, null
+	 * until it reaches a server
+	 * 
+	 * @return
+	 */
+	public int[] getOrigin() {
+		return origin;
+	}
+
 }
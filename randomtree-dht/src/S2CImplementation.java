@@ -1,4 +1,5 @@
 import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
@@ -13,12 +14,10 @@ import java.rmi.server.UnicastRemoteObject;
 public class S2CImplementation extends UnicastRemoteObject implements S2CInterface {
 	private static final long serialVersionUID = 1L;
 	private DHTServer server;
-	private int[] serverNode;
 
 	public S2CImplementation(DHTServer server) throws RemoteException {
 		super();
 		this.server = server;
-		serverNode = new int[2];
 	}
 
 	@Override
@@ -29,9 +28,7 @@ public class S2CImplementation extends UnicastRemoteObject implements S2CInterfa
 	 * @see S2CInterface#searchFile(Request, ClientInterface)
 	 */
 	public boolean searchFile(Request request, ClientInterface client) throws RemoteException {
-		System.out.println("New request for file '" + request.getFileName() + "' from :" + client.getAddress());
 		String fileName = request.getFileName();
-		setNode(request.getDestination());
 
 		File file = server.getFile(fileName);
 		if (file != null) {
@@ -44,33 +41,236 @@ public class S2CImplementation extends UnicastRemoteObject implements S2CInterfa
 	@Override
 	/*
 	 * This method allows a client to insert/ upload a file onto this server.
+	 * With insert time replication the file is passed down a chain of nodes
+	 * of its tree before returning. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#insertFile(byte[], java.lang.String, int)
+	 */
+	public void insertFile(byte[] data, String fileName, int tree) throws RemoteException, ServerBusyException {
+		server.reserveBytes(data.length);
+		try {
+			if (DHTServer.CHAIN_LENGTH > 1)
+				server.uploadChunk(new Chunk(fileName, 0, data, true), tree);
+			else
+				server.uploadFile(data, fileName);
+		} finally {
+			server.releaseBytes(data.length);
+		}
+	}
+
+	@Override
+	/*
+	 * This method allows a client to upload a large file onto this server
+	 * one chunk at a time, without holding whole file in memory.
 	 * (non-Javadoc)
 	 * 
-	 * @see S2CInterface#insertFile(byte[], java.lang.String)
+	 * @see S2CInterface#insertChunk(Chunk, int)
 	 */
-	public void insertFile(byte[] data, String fileName) throws RemoteException {
-		server.fileInsert(data, fileName);
+	public boolean insertChunk(Chunk chunk, int tree) throws RemoteException, ServerBusyException {
+		long reserved = chunk.getLength() + (chunk.isCompressed() ? chunk.getEncodedLength() : 0);
+		server.reserveBytes(reserved);
+		try {
+			return server.uploadChunk(chunk, tree);
+		} finally {
+			server.releaseBytes(reserved);
+		}
 	}
 
-	/**
-	 * After receiving a request packet, a server can fetch details about its
-	 * position in the distributed system network.
+	@Override
+	/*
+	 * This method allows a client uploading a new version of a file to find
+	 * the blocks this server already holds. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#getSignature(java.lang.String)
+	 */
+	public BlockSignature getSignature(String fileName) throws RemoteException {
+		try {
+			return server.getSignature(fileName, IOScheduler.Priority.CLIENT_READ);
+		} catch (IOException e) {
+			throw new RemoteException("File read error : " + fileName, e);
+		}
+	}
+
+	@Override
+	/*
+	 * This method allows a client to upload a new version of a file as a delta
+	 * against the version this server holds. With insert time replication the
+	 * new version is pushed down a chain of nodes of its tree once complete.
+	 * (non-Javadoc)
+	 * 
+	 * @see S2CInterface#insertDelta(Delta, int)
+	 */
+	public boolean insertDelta(Delta delta, int tree) throws RemoteException, ServerBusyException {
+		long reserved = delta.getEncodedLength() + Chunk.SIZE;
+		server.reserveBytes(reserved);
+		try {
+			return server.uploadDelta(delta, tree);
+		} finally {
+			server.releaseBytes(reserved);
+		}
+	}
+
+	@Override
+	/*
+	 * This method allows a client uploading a deduplicated file to find the
+	 * chunks this server does not hold yet. (non-Javadoc)
 	 * 
-	 * @param node
+	 * @see S2CInterface#getMissingChunks(java.lang.String[])
 	 */
-	private void setNode(int[] node) {
-		int i = 0;
-		while (i < 2)
-			serverNode[i] = node[i++];
+	public String[] getMissingChunks(String[] hashes) throws RemoteException {
+		return server.getChunkStore().getMissing(hashes);
+	}
+
+	@Override
+	/*
+	 * This method allows a client to upload a chunk of a deduplicated file.
+	 * (non-Javadoc)
+	 * 
+	 * @see S2CInterface#putChunk(Chunk)
+	 */
+	public void putChunk(Chunk chunk) throws RemoteException, ServerBusyException {
+		if (!chunk.verify())
+			throw new RemoteException("Chunk " + chunk.getFileName() + " is corrupt");
+		long reserved = chunk.getEncodedLength() + ContentChunker.MAX_SIZE;
+		server.reserveBytes(reserved);
+		try {
+			server.getChunkStore().put(chunk.getData());
+		} catch (IOException e) {
+			throw new RemoteException("Failed to store chunk", e);
+		} finally {
+			server.releaseBytes(reserved);
+		}
+	}
+
+	@Override
+	/*
+	 * This method allows a client to complete upload of a deduplicated file
+	 * once the server holds all of its chunks. With insert time replication
+	 * the file is pushed down a chain of nodes of its tree before returning.
+	 * (non-Javadoc)
+	 * 
+	 * @see S2CInterface#insertManifest(java.lang.String, java.lang.String[],
+	 * int)
+	 */
+	public boolean insertManifest(String fileName, String[] hashes, int tree)
+			throws RemoteException, ServerBusyException {
+		server.beginRequest();
+		try {
+			return server.uploadManifest(fileName, hashes, tree);
+		} finally {
+			server.endRequest();
+		}
+	}
+
+	@Override
+	/*
+	 * Return size of a file available in the lookup directory of this server,
+	 * used by clients to discover replicas of a file. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#getFileSize(java.lang.String)
+	 */
+	public long getFileSize(String fileName) throws RemoteException {
+		File file = server.getFile(fileName);
+		if (file != null)
+			return server.getFileSize(file);
+		else
+			return -1;
+	}
+
+	@Override
+	/*
+	 * Return checksum of a file available on this server, used by clients to
+	 * verify a reassembled file. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#getChecksum(java.lang.String)
+	 */
+	public long getChecksum(String fileName) throws RemoteException {
+		File file = server.getFile(fileName);
+		if (file != null)
+			return server.getChecksum(file);
+		else
+			return -1;
+	}
+
+	@Override
+	/*
+	 * Read a byte range of a file available on this server, allowing a client
+	 * to fetch parts of a file from different replicas. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#readChunk(java.lang.String, long, int)
+	 */
+	public Chunk readChunk(String fileName, long offset, int length) throws RemoteException, ServerBusyException {
+		File file = server.getFile(fileName);
+		if (file == null)
+			throw new RemoteException("File not found : " + fileName);
+
+		server.reserveBytes(length);
+		try {
+			byte[] data = server.readFile(file, offset, length, IOScheduler.Priority.CLIENT_READ);
+			server.addBytesSent(data.length);
+			return new Chunk(fileName, offset, data, offset + data.length == server.getFileSize(file));
+		} catch (IOException e) {
+			throw new RemoteException("File read error : " + fileName, e);
+		} finally {
+			server.releaseBytes(length);
+		}
+	}
+
+	@Override
+	/*
+	 * Return number of requests being served by this server, allowing clients
+	 * to avoid overloaded servers. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#getLoad()
+	 */
+	public int getLoad() throws RemoteException {
+		return server.getLoad();
+	}
+
+	@Override
+	/*
+	 * Return metadata of a file without sending it, for clients checking
+	 * files before planning work on them. No callback to the client is made.
+	 * (non-Javadoc)
+	 * 
+	 * @see S2CInterface#statFile(java.lang.String, int, int[])
+	 */
+	public FileMetadata statFile(String fileName, int tree, int[] node) throws RemoteException {
+		return server.statFile(fileName, tree, node);
+	}
+
+	@Override
+	/*
+	 * Return version of the copy of a file held by this server, allowing a
+	 * client to leave out replicas older than another copy. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#getVersion(java.lang.String)
+	 */
+	public VersionVector getVersion(String fileName) throws RemoteException {
+		return server.getFile(fileName) != null ? server.getVersion(fileName) : null;
+	}
+
+	@Override
+	/*
+	 * Return a page of names of files stored on this server, for a client
+	 * searching all servers at once. Pages are bounded so that one answer
+	 * stays small. (non-Javadoc)
+	 * 
+	 * @see S2CInterface#listFiles(java.lang.String, java.lang.String, int)
+	 */
+	public String[] listFiles(String glob, String after, int limit) throws RemoteException {
+		return server.listFiles(glob, after, Math.min(limit, DHTServer.MAX_PAGE));
 	}
 
 	/**
 	 * This method return the coordinates of the child nodes for the current
 	 * server.
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return child nodes coordinates
 	 */
-	private String[] getChildNodes() {
+	private String[] getChildNodes(int[] serverNode) {
 		String[] childNodes = new String[2];
 
 		int x = serverNode[0] + 1;
@@ -85,74 +285,115 @@ public class S2CImplementation extends UnicastRemoteObject implements S2CInterfa
 	 * This method return the coordinates of the parent node for the current
 	 * node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return coordinates of the parent node
 	 */
-	private int[] parentNode() {
+	private int[] parentNode(int[] serverNode) {
 		int x = serverNode[0] - 1;
-		int y = (serverNode[1] - 1) / 2;
+		int y = serverNode[1] / 2;
 		return new int[] { x, y };
 	}
 
 	/**
 	 * Check if the current node is leaf node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return
 	 */
-	private boolean isLeafNode() {
-		return serverNode[0] >= 2 ? true : false;
+	private boolean isLeafNode(int[] serverNode) {
+		return serverNode[0] >= server.getTreeDepth() - 1 ? true : false;
 	}
 
 	/**
 	 * Check if the current node is root node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return
 	 */
-	private boolean isRootNode() {
+	private boolean isRootNode(int[] serverNode) {
 		return serverNode[0] == 0 ? true : false;
 	}
 
 	@Override
 	/*
 	 * This method is responsible for accepting file download requests from
-	 * clients (non-Javadoc)
+	 * clients. Requests beyond the capacity of this server are rejected at
+	 * once, so that clients can retry elsewhere. (non-Javadoc)
 	 * 
 	 * @see S2CInterface#requestFile(Request)
 	 */
-	public synchronized boolean requestFile(Request request) throws RemoteException {
+	public boolean requestFile(Request request) throws RemoteException, ServerBusyException {
+		server.beginRequest();
+		try {
+			return serveFile(request);
+		} finally {
+			server.endRequest();
+		}
+	}
+
+	/**
+	 * Serve a file download request, sending the file to the client if it is
+	 * available on this server or else forwarding the request to parent node.
+	 * 
+	 * @param request
+	 *            : request packet
+	 * @return true if the file is found, false otherwise
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	private boolean serveFile(Request request) throws RemoteException, ServerBusyException {
+		long arrival = System.nanoTime();
 
 		System.out.println(
 				"New request for file '" + request.getFileName() + "' from : " + request.getClient().getAddress());
 		Trace trace = new Trace();
 		String fileName = request.getFileName();
-		setNode(request.getDestination());
+		int[] serverNode = request.getDestination().clone();
+		if (request.getOrigin() == null)
+			request.setOrigin(serverNode);
 
-		// check if the requested file is available on server
+		// check if the requested file is available on server, a copy older
+		// than a version known to the server or the client being only served
+		// by root node
 		File file = server.getFile(fileName);
+		if (file != null && !isRootNode(serverNode) && !server.isFresh(fileName, request.getMinVersion())) {
+			System.out.println("Copy of '" + fileName + "' is out of date, forwarding request.");
+			file = null;
+		}
 		if (file != null) {
 
 			// if file is found, then send file to the client
-			server.sendFile(file, request, trace);
+			server.sendFile(file, request, trace, IOScheduler.Priority.CLIENT_READ);
 
 			// increase popularity count of this file
 			server.increasePopularityCount(fileName);
 
-			// if popularity of file is more than or equal to 5, replicate this
+			// if popularity of file reaches replication threshold, replicate this
 			// file onto child servers.
-			if (!isLeafNode() && server.getFilePopularity(fileName) >= 5) {
-				server.replicateFile(file, getChildNodes());
+			if (!isLeafNode(serverNode) && server.getFilePopularity(fileName) >= server.getReplicationThreshold()) {
+				server.replicateFile(file, request.getTree(), getChildNodes(serverNode));
 			}
+
+			// let client know where replicas of this file can be found
+			server.sendLocations(fileName, serverNode, request);
+
+			// learn which files follow this one, and prefetch them
+			server.fileServed(fileName, request);
 			return true;
-		} else if (!isRootNode()) {
+		} else if (!isRootNode(serverNode)) {
 
 			// if file is not found on current server, then forward the request
 			// onto parent node.
-			int[] parentNode = parentNode();
+			int[] parentNode = parentNode(serverNode);
 			request.setDestination(parentNode);
-			return server.forwardRequest("" + parentNode[0] + parentNode[1], request, trace);
+			return server.forwardRequest("" + parentNode[0] + parentNode[1], request, trace, arrival);
 		} else {
 
 			// if current node is root, then send an error message to client
-			request.getClient().pushTrace(trace.getTrace());
+			request.getClient().pushTrace(trace);
 		}
 		return false;
 	}
@@ -12,9 +12,56 @@ public interface S2CInterface extends Remote {
 	// search if a file is present on a server
 	boolean searchFile(Request request, ClientInterface client) throws RemoteException;
 
-	// upload a file onto server
-	void insertFile(byte[] data, String fileName) throws RemoteException;
+	// upload a file onto server, as root node of one of its trees
+	void insertFile(byte[] data, String fileName, int tree) throws RemoteException, ServerBusyException;
+
+	// upload a chunk of a large file onto server, file is complete once its
+	// last chunk is written
+	boolean insertChunk(Chunk chunk, int tree) throws RemoteException, ServerBusyException;
+
+	// return signature of the blocks of a file stored on this server, null
+	// if it is not present
+	BlockSignature getSignature(String fileName) throws RemoteException;
+
+	// upload part of a delta against the file stored on this server, as root
+	// node of one of its trees, false if it does not apply
+	boolean insertDelta(Delta delta, int tree) throws RemoteException, ServerBusyException;
+
+	// return chunks of a list this server does not hold, for a client to
+	// upload only those
+	String[] getMissingChunks(String[] hashes) throws RemoteException;
+
+	// upload a chunk of a deduplicated file, named by its hash
+	void putChunk(Chunk chunk) throws RemoteException, ServerBusyException;
+
+	// upload a deduplicated file from chunks held by the server, as root node
+	// of one of its trees, false if a chunk is missing
+	boolean insertManifest(String fileName, String[] hashes, int tree) throws RemoteException, ServerBusyException;
 
 	// request a file to be searched and down loaded from server
-	boolean requestFile(Request request) throws RemoteException;
+	boolean requestFile(Request request) throws RemoteException, ServerBusyException;
+
+	// return size of a file stored on this server, -1 if it is not present
+	long getFileSize(String fileName) throws RemoteException;
+
+	// return checksum of a file stored on this server, -1 if it is not present
+	long getChecksum(String fileName) throws RemoteException;
+
+	// return version of a file stored on this server, null if it is not
+	// present
+	VersionVector getVersion(String fileName) throws RemoteException;
+
+	// read a byte range of a file stored on this server
+	Chunk readChunk(String fileName, long offset, int length) throws RemoteException, ServerBusyException;
+
+	// return number of requests being served by this server
+	int getLoad() throws RemoteException;
+
+	// return metadata of a file, walking up the tree from the given node of
+	// this server, null if it is not stored
+	FileMetadata statFile(String fileName, int tree, int[] node) throws RemoteException;
+
+	// return names of files stored on this server matching a glob, in order,
+	// from after the given name on, at most limit names
+	String[] listFiles(String glob, String after, int limit) throws RemoteException;
 }
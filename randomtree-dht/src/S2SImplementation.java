@@ -1,4 +1,5 @@
 import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
@@ -14,33 +15,20 @@ public class S2SImplementation extends UnicastRemoteObject implements S2SInterfa
 
 	private static final long serialVersionUID = 1L;
 	private DHTServer server;
-	private int[] serverNode;
 
 	public S2SImplementation(DHTServer server) throws RemoteException {
 		super();
 		this.server = server;
-		serverNode = new int[2];
-	}
-
-	/**
-	 * Update coordinates for current server from details fetched from request
-	 * packet
-	 * 
-	 * @param node
-	 */
-	private void setNode(int[] node) {
-		int i = 0;
-		while (i < 2)
-			serverNode[i] = node[i++];
-
 	}
 
 	/**
 	 * Return coordinates of the child nodes for this server node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return
 	 */
-	private String[] getChildNodes() {
+	private String[] getChildNodes(int[] serverNode) {
 		String[] childNodes = new String[2];
 
 		int x = serverNode[0] + 1;
@@ -54,9 +42,11 @@ public class S2SImplementation extends UnicastRemoteObject implements S2SInterfa
 	/**
 	 * Return coordinates of the parent node for this server node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return
 	 */
-	private int[] parentNode() {
+	private int[] parentNode(int[] serverNode) {
 		int x = serverNode[0] - 1;
 		int y = serverNode[1] / 2;
 		return new int[] { x, y };
@@ -65,18 +55,22 @@ public class S2SImplementation extends UnicastRemoteObject implements S2SInterfa
 	/**
 	 * Check if the server is a leaf node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return
 	 */
-	private boolean isLeafNode() {
-		return serverNode[0] >= 2 ? true : false;
+	private boolean isLeafNode(int[] serverNode) {
+		return serverNode[0] >= server.getTreeDepth() - 1 ? true : false;
 	}
 
 	/**
 	 * Check if the server is a root node
 	 * 
+	 * @param serverNode
+	 *            : coordinates of this server for the requested file
 	 * @return
 	 */
-	private boolean isRootNode() {
+	private boolean isRootNode(int[] serverNode) {
 		return serverNode[0] == 0 ? true : false;
 	}
 
@@ -87,51 +81,248 @@ public class S2SImplementation extends UnicastRemoteObject implements S2SInterfa
 	 * 
 	 * @see S2SInterface#forwardRequest(Request, Trace)
 	 */
-	public boolean forwardRequest(Request request, Trace trace) throws RemoteException {
+	public boolean forwardRequest(Request request, Trace trace) throws RemoteException, ServerBusyException {
+		server.beginRequest();
+		try {
+			return serveFile(request, trace);
+		} finally {
+			server.endRequest();
+		}
+	}
+
+	/**
+	 * Serve a forwarded file request, sending the file to the client if it is
+	 * available on this server or else forwarding the request to parent node.
+	 * 
+	 * @param request
+	 *            : request packet
+	 * @param trace
+	 *            : trace of the request so far
+	 * @return true if the file is found, false otherwise
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	private boolean serveFile(Request request, Trace trace) throws RemoteException, ServerBusyException {
+		long arrival = System.nanoTime();
 
 		System.out.println("New request for file '" + request.getFileName() + "'");
 		String fileName = request.getFileName();
 
-		// update request packet destination details.
-		setNode(request.getDestination());
+		// coordinates of this server for the requested file
+		int[] serverNode = request.getDestination().clone();
 
+		// a copy older than a version known to the server or the client is
+		// only served by root node
 		File file = server.getFile(fileName);
+		if (file != null && !isRootNode(serverNode) && !server.isFresh(fileName, request.getMinVersion())) {
+			System.out.println("Copy of '" + fileName + "' is out of date, forwarding request.");
+			file = null;
+		}
 		if (file != null) {
 			// if file is present in the default lookup directory then send it
 			// to client
-			server.sendFile(file, request, trace);
+			server.sendFile(file, request, trace, IOScheduler.Priority.FORWARDED_READ);
 
 			// increase popularity count for this file and replicate it to child
-			// nodes if the popularity is more then 4
+			// nodes if the popularity reaches replication threshold
 			server.increasePopularityCount(fileName);
 			int popCount = server.getFilePopularity(fileName);
 			System.out.println("Current popularity count :" + popCount);
-			if (!isLeafNode() && popCount >= 5) {
-				server.replicateFile(file, getChildNodes());
+			if (!isLeafNode(serverNode) && popCount >= server.getReplicationThreshold()) {
+				server.replicateFile(file, request.getTree(), getChildNodes(serverNode));
 			}
+
+			// let client know where replicas of this file can be found
+			server.sendLocations(fileName, serverNode, request);
+
+			// learn which files follow this one, and prefetch them
+			server.fileServed(fileName, request);
 			return true;
-		} else if (!isRootNode()) {
-			int[] parentNode = parentNode();
+		} else if (!isRootNode(serverNode)) {
+			int[] parentNode = parentNode(serverNode);
 			request.setDestination(parentNode);
 
 			// if file is not found then forward request to parent server
-			return server.forwardRequest("" + parentNode[0] + parentNode[1], request, trace);
+			return server.forwardRequest("" + parentNode[0] + parentNode[1], request, trace, arrival);
 		} else {
 
 			// Current server is root node, thus return trace to client.
-			request.getClient().pushTrace(trace.getTrace());
+			request.getClient().pushTrace(trace);
 		}
 		return false;
 	}
 
 	@Override
 	/*
-	 * This method allows (non-Javadoc)
+	 * This method allows the root node of a file to pass chunks of an upload
+	 * down a chain of servers as they arrive. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#insertChunk(Chunk, int, java.lang.String[])
+	 */
+	public int insertChunk(Chunk chunk, int tree, String[] chain) throws RemoteException, ServerBusyException {
+		long reserved = chunk.getLength() + (chunk.isCompressed() ? chunk.getEncodedLength() : 0);
+		server.reserveBytes(reserved);
+		try {
+			return server.chainInsert(chunk, tree, chain);
+		} finally {
+			server.releaseBytes(reserved);
+		}
+	}
+
+	@Override
+	/*
+	 * This method allows a server refreshing a replica to find the blocks
+	 * this server already holds. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#getSignature(java.lang.String)
+	 */
+	public BlockSignature getSignature(String fileName) throws RemoteException {
+		try {
+			return server.getSignature(fileName, IOScheduler.Priority.BACKGROUND);
+		} catch (IOException e) {
+			throw new RemoteException("File read error : " + fileName, e);
+		}
+	}
+
+	@Override
+	/*
+	 * Apply part of a delta pushed by another server, ranges copied being read
+	 * as background traffic. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#insertDelta(Delta)
+	 */
+	public boolean insertDelta(Delta delta) throws RemoteException, ServerBusyException {
+		long reserved = delta.getEncodedLength() + Chunk.SIZE;
+		server.reserveBytes(reserved);
+		try {
+			return server.deltaInsert(delta, IOScheduler.Priority.BACKGROUND);
+		} finally {
+			server.releaseBytes(reserved);
+		}
+	}
+
+	@Override
+	/*
+	 * This method allows a server pushing a deduplicated file to find the
+	 * chunks this server still needs. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#getMissingChunks(java.lang.String[])
+	 */
+	public String[] getMissingChunks(String[] hashes) throws RemoteException {
+		return server.getChunkStore().getMissing(hashes);
+	}
+
+	@Override
+	/*
+	 * Store a chunk pushed by another server, written as background traffic.
+	 * (non-Javadoc)
+	 * 
+	 * @see S2SInterface#putChunk(Chunk)
+	 */
+	public void putChunk(Chunk chunk) throws RemoteException, ServerBusyException {
+		if (!chunk.verify())
+			throw new RemoteException("Chunk " + chunk.getFileName() + " is corrupt");
+		long reserved = chunk.getEncodedLength() + ContentChunker.MAX_SIZE;
+		server.reserveBytes(reserved);
+		try {
+			byte[] data = chunk.getData();
+			server.getScheduler().acquireUninterruptibly(IOScheduler.Priority.BACKGROUND, data.length);
+			server.getChunkStore().put(data);
+		} catch (IOException e) {
+			throw new RemoteException("Failed to store chunk", e);
+		} finally {
+			server.releaseBytes(reserved);
+		}
+	}
+
+	@Override
+	/*
+	 * Store a deduplicated file pushed by another server once its chunks are
+	 * all held. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#insertManifest(java.lang.String, java.lang.String[])
+	 */
+	public boolean insertManifest(String fileName, String[] hashes) throws RemoteException {
+		return server.manifestInsert(fileName, hashes);
+	}
+
+	@Override
+	/*
+	 * Read a byte range of a file held by this server, allowing another server
+	 * to repair a corrupt copy of the file. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#readChunk(java.lang.String, long, int)
+	 */
+	public Chunk readChunk(String fileName, long offset, int length) throws RemoteException, ServerBusyException {
+		File file = server.getFile(fileName);
+		if (file == null)
+			return null;
+
+		server.reserveBytes(length);
+		try {
+			byte[] data = server.readFile(file, offset, length, IOScheduler.Priority.BACKGROUND);
+			return new Chunk(fileName, offset, data, offset + data.length == server.getFileSize(file));
+		} catch (IOException e) {
+			throw new RemoteException("File read error : " + fileName, e);
+		} finally {
+			server.releaseBytes(length);
+		}
+	}
+
+	@Override
+	/*
+	 * Return metadata of a file for a metadata query forwarded by a child
+	 * node. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#statFile(java.lang.String, int, int[])
+	 */
+	public FileMetadata statFile(String fileName, int tree, int[] node) throws RemoteException {
+		return server.statFile(fileName, tree, node);
+	}
+
+	@Override
+	/*
+	 * Mark the copy of a file held by this server as out of date, so that
+	 * readers are sent on to a server holding the new version until the copy
+	 * is refreshed. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#invalidate(java.lang.String, VersionVector)
+	 */
+	public void invalidate(String fileName, VersionVector version) throws RemoteException {
+		server.invalidate(fileName, version);
+	}
+
+	@Override
+	/*
+	 * Record version of a replica once a parent node has finished pushing it.
+	 * (non-Javadoc)
+	 * 
+	 * @see S2SInterface#setVersion(java.lang.String, VersionVector)
+	 */
+	public void setVersion(String fileName, VersionVector version) throws RemoteException {
+		server.setVersion(fileName, version);
+	}
+
+	@Override
+	/*
+	 * Count a file requested after one served by this server, as reported by
+	 * the server serving it. (non-Javadoc)
+	 * 
+	 * @see S2SInterface#recordCoAccess(java.lang.String, java.lang.String)
+	 */
+	public void recordCoAccess(String fileName, String follower) throws RemoteException {
+		server.recordCoAccess(fileName, follower);
+	}
+
+	@Override
+	/*
+	 * Push a replica onto the node a client entered the tree at, for a file
+	 * related to one it has just been sent. (non-Javadoc)
 	 * 
-	 * @see S2SInterface#insertFile(byte[], java.lang.String)
+	 * @see S2SInterface#prefetchReplica(java.lang.String, int, java.lang.String)
 	 */
-	public void insertFile(byte[] data, String fileName) throws RemoteException {
-		server.fileInsert(data, fileName);
+	public boolean prefetchReplica(String fileName, int tree, String node) throws RemoteException {
+		return server.prefetchReplica(fileName, tree, node);
 	}
 
 	@Override
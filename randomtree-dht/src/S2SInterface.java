@@ -10,10 +10,50 @@ import java.rmi.RemoteException;
 public interface S2SInterface extends Remote {
 
 	// receive forwarded request from another server
-	boolean forwardRequest(Request packet, Trace trace) throws RemoteException;
+	boolean forwardRequest(Request packet, Trace trace) throws RemoteException, ServerBusyException;
 
-	// receive file data from another server
-	void insertFile(byte[] data, String fileName) throws RemoteException;
+	// store a chunk of an uploaded file and pass it down the rest of the
+	// chain, returning number of nodes which stored it
+	int insertChunk(Chunk chunk, int tree, String[] chain) throws RemoteException, ServerBusyException;
+
+	// return signature of the blocks of a file held by this server, null if
+	// it is not present
+	BlockSignature getSignature(String fileName) throws RemoteException;
+
+	// apply part of a delta against the file held by this server
+	boolean insertDelta(Delta delta) throws RemoteException, ServerBusyException;
+
+	// return chunks of a list this server does not hold
+	String[] getMissingChunks(String[] hashes) throws RemoteException;
+
+	// store a chunk of a deduplicated file, named by its hash
+	void putChunk(Chunk chunk) throws RemoteException, ServerBusyException;
+
+	// store a deduplicated file from chunks held by this server
+	boolean insertManifest(String fileName, String[] hashes) throws RemoteException;
+
+	// read a byte range of a file held by this server, null if it is not
+	// present
+	Chunk readChunk(String fileName, long offset, int length) throws RemoteException, ServerBusyException;
+
+	// return metadata of a file, walking on up the tree from the given node
+	// of this server, null if it is not stored
+	FileMetadata statFile(String fileName, int tree, int[] node) throws RemoteException;
+
+	// learn that a file has reached a newer version than the copy held, and
+	// pass it on to replicas pushed from here
+	void invalidate(String fileName, VersionVector version) throws RemoteException;
+
+	// record version of the copy of a file just pushed onto this server
+	void setVersion(String fileName, VersionVector version) throws RemoteException;
+
+	// record that a file served by this server was followed by another one
+	// in a client session
+	void recordCoAccess(String fileName, String follower) throws RemoteException;
+
+	// push a replica of a file held onto a node below, to prefetch it next to
+	// a client, false if the file is not held
+	boolean prefetchReplica(String fileName, int tree, String node) throws RemoteException;
 
 	// return host name of the server machine
 	String getHostName() throws RemoteException;
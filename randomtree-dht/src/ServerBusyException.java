@@ -0,0 +1,35 @@
+/**
+ * ServerBusyException is thrown by a server which has no room left for
+ * another request, so that clients can back off and retry on another replica
+ * or leaf node instead of queueing on an overloaded server.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ServerBusyException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+	private String hostName;
+
+	/**
+	 * Create an exception for a server which rejected a request
+	 * 
+	 * @param hostName
+	 *            : host name of the busy server
+	 * @param reason
+	 *            : budget of the server which has been used up
+	 */
+	public ServerBusyException(String hostName, String reason) {
+		super("Server " + hostName + " is busy : " + reason);
+		this.hostName = hostName;
+	}
+
+	/**
+	 * Return host name of the server which rejected the request
+	 * 
+	 * @return host name of the busy server
+	 */
+	public String getHostName() {
+		return hostName;
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * ServerTable provides the list of servers forming the distributed hash table,
+ * shared by servers and clients. By default these are the RIT CS servers, each
+ * listening on port 4040. Another list can be given in a file with one server
+ * per line, as host or host:port, through the dht.servers system property.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ServerTable {
+
+	static final int DEFAULT_PORT = 4040;
+
+	// number of independent trees each file is stored in
+	static final int TREES = Integer.getInteger("dht.trees", 1);
+
+	private static final String[] DEFAULT_SERVERS = { "glados.cs.rit.edu", "kansas.cs.rit.edu", "gorgon.cs.rit.edu",
+			"newyork.cs.rit.edu", "yes.cs.rit.edu", "kinks.cs.rit.edu", "medusa.cs.rit.edu", "joplin.cs.rit.edu",
+			"delaware.cs.rit.edu", "buddy.cs.rit.edu", "arizona.cs.rit.edu" };
+
+	/**
+	 * Return list of all servers, from the file given by dht.servers system
+	 * property if set.
+	 * 
+	 * @return addresses of all servers
+	 */
+	public static String[] getServers() {
+		String path = System.getProperty("dht.servers");
+		if (path == null)
+			return DEFAULT_SERVERS.clone();
+
+		try {
+			return load(path);
+		} catch (IOException e) {
+			System.out.println("Unable to read server table " + path + ", using default servers.");
+			return DEFAULT_SERVERS.clone();
+		}
+	}
+
+	/**
+	 * Read list of servers from a file, skipping empty lines and lines
+	 * starting with #.
+	 * 
+	 * @param path
+	 *            : path of the file
+	 * @return addresses of all servers
+	 * @throws IOException
+	 */
+	public static String[] load(String path) throws IOException {
+		ArrayList<String> servers = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					servers.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return servers.toArray(new String[servers.size()]);
+	}
+
+	/**
+	 * Write list of servers to a file, to be used by clients or servers started
+	 * separately.
+	 * 
+	 * @param path
+	 *            : path of the file
+	 * @param servers
+	 *            : addresses of all servers
+	 * @throws IOException
+	 */
+	public static void save(String path, String[] servers) throws IOException {
+		PrintWriter writer = new PrintWriter(path);
+		for (String server : servers)
+			writer.println(server);
+		writer.close();
+	}
+
+	/**
+	 * Return key hashed to find the server responsible for a file at a node of
+	 * one of its trees. Tree 0 hashes the file name as it is, other trees add
+	 * their index as salt so that their nodes, root included, map onto other
+	 * servers.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param tree
+	 *            : index of the tree, from 0 to TREES - 1
+	 * @param node
+	 *            : coordinates of the node, e.g. "00" for root
+	 * @return key of the file at this node
+	 */
+	public static String getKey(String fileName, int tree, String node) {
+		return tree == 0 ? fileName + node : fileName + "#" + tree + "/" + node;
+	}
+
+	/**
+	 * Return index of the server responsible for a file at a node of one of
+	 * its trees.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param tree
+	 *            : index of the tree
+	 * @param node
+	 *            : coordinates of the node
+	 * @param servers
+	 *            : number of servers
+	 * @return index of the server in the server table
+	 */
+	public static int getIndex(String fileName, int tree, String node, int servers) {
+		return Math.abs(getKey(fileName, tree, node).hashCode()) % servers;
+	}
+
+	/**
+	 * Return RMI URL of an object bound on the registry of a server.
+	 * 
+	 * @param server
+	 *            : address of the server, as host or host:port
+	 * @param name
+	 *            : name the object is bound with
+	 * @return RMI URL of the object
+	 */
+	public static String getURL(String server, String name) {
+		if (server.indexOf(':') < 0)
+			server += ":" + DEFAULT_PORT;
+		return "rmi://" + server + "/" + name;
+	}
+}
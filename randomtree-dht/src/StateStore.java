@@ -0,0 +1,508 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * StateStore keeps state a server learns while running, popularity of the
+ * files it holds, replicas it pushed onto other nodes and versions of its
+ * copies, across restarts. Every change is appended to a log, and the whole
+ * state is written to a compact snapshot from time to time, after which the
+ * log starts over. At startup the snapshot is loaded and the log replayed on
+ * top of it, so that a restarted server makes the same replication decisions
+ * as before without learning them again. Log records hold values rather than
+ * changes of values, so that replaying a record twice does no harm. Each log
+ * starts with its sequence number and a snapshot records the last log it
+ * covers, so that logs already covered are not replayed over a newer
+ * snapshot. State which cannot be loaded is moved aside rather than written
+ * over.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class StateStore {
+
+	// seconds between snapshots, and log size after which a snapshot is
+	// written sooner
+	static final int CHECKPOINT_INTERVAL = Integer.getInteger("dht.checkpoint.interval", 60);
+	private static final long MAX_LOG = 4L * 1024 * 1024;
+
+	private static final String SNAPSHOT = ".state";
+	private static final String LOG = ".state.log";
+	private static final String DAMAGED = ".bad";
+	private static final int MAGIC = 0x44485403;
+
+	// types of log records, a log starting with its sequence number
+	private static final byte SEQUENCE = 0;
+	private static final byte POPULARITY = 1;
+	private static final byte REMOVED = 2;
+	private static final byte REPLICA = 3;
+	private static final byte VERSION = 4;
+	private static final byte INVALID = 5;
+
+	private String directory;
+	private HashMap<String, Integer> fileMap;
+	private HashMap<String, HashSet<String>> replicaMap;
+	private HashMap<String, VersionVector> versionMap;
+	private HashMap<String, VersionVector> invalidMap;
+	private DataOutputStream log;
+	private long logStart;
+	private long logSize;
+
+	// sequence number of the current log, and of the last log covered by
+	// the snapshot
+	private long sequence;
+	private long covered = -1;
+
+	/**
+	 * Create a store of the state held in maps of a server
+	 * 
+	 * @param directory
+	 *            : lookup directory of the server
+	 * @param fileMap
+	 *            : popularity of files held
+	 * @param replicaMap
+	 *            : nodes replicas were pushed onto
+	 * @param versionMap
+	 *            : versions of copies held
+	 * @param invalidMap
+	 *            : versions files are known to have reached
+	 */
+	public StateStore(String directory, HashMap<String, Integer> fileMap, HashMap<String, HashSet<String>> replicaMap,
+			HashMap<String, VersionVector> versionMap, HashMap<String, VersionVector> invalidMap) {
+		this.directory = directory;
+		this.fileMap = fileMap;
+		this.replicaMap = replicaMap;
+		this.versionMap = versionMap;
+		this.invalidMap = invalidMap;
+	}
+
+	/**
+	 * Load the last snapshot and replay the logs written since. A record cut
+	 * short by a crash ends the replay. If the state cannot be loaded, the
+	 * maps are left empty and its files are moved aside, so that they are
+	 * not replaced by snapshots of the empty maps.
+	 * 
+	 * @return number of log records replayed, -1 if there was no state
+	 */
+	public int load() {
+		File snapshot = new File(directory + SNAPSHOT);
+		File current = new File(directory + LOG);
+		File previous = new File(directory + LOG + ".old");
+		if (!snapshot.exists() && !current.exists() && !previous.exists())
+			return -1;
+
+		int records = 0;
+		try {
+			if (snapshot.exists())
+				readSnapshot(snapshot);
+			records += replay(previous);
+			records += replay(current);
+		} catch (IOException e) {
+			System.out.println("Unable to load state from " + directory + ", moved aside : " + e);
+			clear();
+			for (File file : new File[] { snapshot, current, previous })
+				setAside(file);
+			covered = -1;
+			sequence = 0;
+			return -1;
+		}
+		sequence = Math.max(sequence, covered + 1);
+		return records;
+	}
+
+	private void clear() {
+		synchronized (fileMap) {
+			fileMap.clear();
+		}
+		synchronized (replicaMap) {
+			replicaMap.clear();
+		}
+		synchronized (versionMap) {
+			versionMap.clear();
+		}
+		synchronized (invalidMap) {
+			invalidMap.clear();
+		}
+	}
+
+	private void setAside(File file) {
+		try {
+			if (file.exists())
+				Files.move(file.toPath(), new File(file.getPath() + DAMAGED).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Read a snapshot into the maps
+	 * 
+	 * @param snapshot
+	 *            : file of the snapshot
+	 * @throws IOException
+	 */
+	private void readSnapshot(File snapshot) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+		try {
+			if (input.readInt() != MAGIC)
+				throw new IOException("Not a snapshot : " + snapshot);
+			covered = input.readLong();
+			for (int n = input.readInt(); n > 0; n--)
+				fileMap.put(input.readUTF(), input.readInt());
+			for (int n = input.readInt(); n > 0; n--) {
+				String key = input.readUTF();
+				HashSet<String> nodes = new HashSet<>();
+				for (int m = input.readInt(); m > 0; m--)
+					nodes.add(input.readUTF());
+				replicaMap.put(key, nodes);
+			}
+			for (int n = input.readInt(); n > 0; n--)
+				versionMap.put(input.readUTF(), VersionVector.read(input));
+			for (int n = input.readInt(); n > 0; n--)
+				invalidMap.put(input.readUTF(), VersionVector.read(input));
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Apply the records of a log to the maps, skipping records of logs the
+	 * snapshot already covers. A log left aside by a snapshot which did not
+	 * complete may hold several logs one after another.
+	 * 
+	 * @param file
+	 *            : file of the log
+	 * @return number of records applied
+	 * @throws IOException
+	 */
+	private int replay(File file) throws IOException {
+		if (!file.exists())
+			return 0;
+		int records = 0;
+		long current = -1;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				byte type = input.readByte();
+				String fileName = input.readUTF();
+				if (type == SEQUENCE) {
+					current = input.readLong();
+					sequence = Math.max(sequence, current);
+					continue;
+				}
+				if (current < 0)
+					throw new IOException("No sequence number in " + file);
+				if (current <= covered) {
+					skip(input, type);
+					continue;
+				}
+				switch (type) {
+				case POPULARITY:
+					fileMap.put(fileName, input.readInt());
+					break;
+				case REMOVED:
+					fileMap.remove(fileName);
+					versionMap.remove(fileName);
+					invalidMap.remove(fileName);
+					break;
+				case REPLICA:
+					String node = input.readUTF();
+					if (!replicaMap.containsKey(fileName))
+						replicaMap.put(fileName, new HashSet<String>());
+					replicaMap.get(fileName).add(node);
+					break;
+				case VERSION:
+					versionMap.put(fileName, VersionVector.read(input));
+					break;
+				case INVALID:
+					VersionVector version = VersionVector.read(input);
+					if (version.isEmpty())
+						invalidMap.remove(fileName);
+					else
+						invalidMap.put(fileName, version);
+					break;
+				default:
+					throw new IOException("Unknown record in " + file + " : " + type);
+				}
+				records++;
+			}
+		} catch (EOFException e) {
+			return records;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Read past the rest of a record not applied
+	 * 
+	 * @param input
+	 *            : log positioned after type and file name of the record
+	 * @param type
+	 *            : type of the record
+	 * @throws IOException
+	 */
+	private static void skip(DataInputStream input, byte type) throws IOException {
+		switch (type) {
+		case POPULARITY:
+			input.readInt();
+			break;
+		case REMOVED:
+			break;
+		case REPLICA:
+			input.readUTF();
+			break;
+		case VERSION:
+		case INVALID:
+			VersionVector.read(input);
+			break;
+		default:
+			throw new IOException("Unknown record : " + type);
+		}
+	}
+
+	/**
+	 * Record popularity of a file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param count
+	 *            : popularity count of the file
+	 */
+	public synchronized void popularity(String fileName, int count) {
+		try {
+			open();
+			log.writeByte(POPULARITY);
+			log.writeUTF(fileName);
+			log.writeInt(count);
+			logged();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Record a file no longer held
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	public synchronized void removed(String fileName) {
+		try {
+			open();
+			log.writeByte(REMOVED);
+			log.writeUTF(fileName);
+			logged();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Record a replica pushed onto a node
+	 * 
+	 * @param key
+	 *            : key of the file and tree in the replica map
+	 * @param node
+	 *            : coordinates of the node
+	 */
+	public synchronized void replica(String key, String node) {
+		try {
+			open();
+			log.writeByte(REPLICA);
+			log.writeUTF(key);
+			log.writeUTF(node);
+			logged();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Record version of the copy of a file held
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param version
+	 *            : version of the copy
+	 */
+	public synchronized void version(String fileName, VersionVector version) {
+		writeVersion(VERSION, fileName, version);
+	}
+
+	/**
+	 * Record version a file is known to have reached
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param version
+	 *            : version reached, null once the copy held is up to date
+	 */
+	public synchronized void invalid(String fileName, VersionVector version) {
+		writeVersion(INVALID, fileName, version != null ? version : new VersionVector());
+	}
+
+	private void writeVersion(byte type, String fileName, VersionVector version) {
+		try {
+			open();
+			log.writeByte(type);
+			log.writeUTF(fileName);
+			version.write(log);
+			logged();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Open the log for appending, if not open yet. A new log starts with its
+	 * sequence number.
+	 * 
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		if (log == null) {
+			File file = new File(directory + LOG);
+			logStart = file.length();
+			log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			if (logStart == 0) {
+				log.writeByte(SEQUENCE);
+				log.writeUTF("");
+				log.writeLong(sequence);
+			}
+		}
+	}
+
+	private void logged() {
+		logSize = logStart + log.size();
+	}
+
+	private void failed(IOException e) {
+		System.out.println("Unable to log state in " + directory + " : " + e);
+	}
+
+	/**
+	 * Write records appended so far to disk
+	 */
+	public synchronized void flush() {
+		try {
+			if (log != null)
+				log.flush();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Check if the log has grown large enough for a snapshot to be due
+	 * 
+	 * @return true if a snapshot is to be written
+	 */
+	public synchronized boolean isLogFull() {
+		return logSize > MAX_LOG;
+	}
+
+	/**
+	 * Write the whole state to a new snapshot and start the log over. The log
+	 * is moved aside first, so that changes made while the snapshot is being
+	 * written go to the new log, and it is only deleted once the snapshot is
+	 * in place. The snapshot records the sequence number of the log moved
+	 * aside, so that the log is not replayed over it should it be left
+	 * behind.
+	 */
+	public void checkpoint() {
+		File previous = new File(directory + LOG + ".old");
+		long last;
+		synchronized (this) {
+			try {
+				if (log != null) {
+					log.close();
+					log = null;
+				}
+				// a log left aside by a snapshot which did not complete is
+				// kept, the current one being added to it
+				File current = new File(directory + LOG);
+				if (current.exists() && previous.exists()) {
+					Files.write(previous.toPath(), Files.readAllBytes(current.toPath()), StandardOpenOption.APPEND);
+					current.delete();
+				} else if (current.exists()) {
+					Files.move(current.toPath(), previous.toPath());
+				}
+				logSize = 0;
+				last = sequence++;
+			} catch (IOException e) {
+				failed(e);
+				return;
+			}
+		}
+
+		File partial = new File(directory + SNAPSHOT + ".tmp");
+		try {
+			FileOutputStream stream = new FileOutputStream(partial);
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+			try {
+				output.writeInt(MAGIC);
+				output.writeLong(last);
+				synchronized (fileMap) {
+					output.writeInt(fileMap.size());
+					for (Map.Entry<String, Integer> entry : fileMap.entrySet()) {
+						output.writeUTF(entry.getKey());
+						output.writeInt(entry.getValue());
+					}
+				}
+				synchronized (replicaMap) {
+					output.writeInt(replicaMap.size());
+					for (Map.Entry<String, HashSet<String>> entry : replicaMap.entrySet()) {
+						output.writeUTF(entry.getKey());
+						output.writeInt(entry.getValue().size());
+						for (String node : entry.getValue())
+							output.writeUTF(node);
+					}
+				}
+				writeVersions(output, versionMap);
+				writeVersions(output, invalidMap);
+				output.flush();
+				stream.getFD().sync();
+			} finally {
+				output.close();
+			}
+			Files.move(partial.toPath(), new File(directory + SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			previous.delete();
+		} catch (IOException e) {
+			System.out.println("Unable to write snapshot in " + directory + " : " + e);
+			partial.delete();
+		}
+	}
+
+	private static void writeVersions(DataOutputStream output, HashMap<String, VersionVector> versions)
+			throws IOException {
+		synchronized (versions) {
+			output.writeInt(versions.size());
+			for (Map.Entry<String, VersionVector> entry : versions.entrySet()) {
+				output.writeUTF(entry.getKey());
+				entry.getValue().write(output);
+			}
+		}
+	}
+
+	/**
+	 * Write a last snapshot and close the log
+	 */
+	public void close() {
+		checkpoint();
+	}
+}
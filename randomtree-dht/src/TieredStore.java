@@ -0,0 +1,445 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * TieredStore places files held by a server in tiers by how often they are
+ * read. The few hot files which get most reads are also held in memory, off
+ * the heap, and served from there without touching the disk. Warm files are
+ * held as plain files in lookup directory as before. Cold files, not read
+ * for a long time, are moved to a cold directory, which may be on a cheaper
+ * volume, compressed a chunk at a time. A cold file is brought back to lookup
+ * directory when it is read again. Checksums of a cold file stay in lookup
+ * directory, and are valid again once the file is back.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class TieredStore {
+
+	// bytes of files held in memory, 0 to hold none
+	static final long MEMORY_BYTES = Long.getLong("dht.tier.memory", 64L * 1024 * 1024);
+
+	// seconds without reads after which a file is moved to cold tier, 0 to
+	// keep every file on disk
+	static final int COLD_AGE = Integer.getInteger("dht.tier.cold.age", 24 * 60 * 60);
+
+	// seconds between moves of files between tiers
+	static final int INTERVAL = Integer.getInteger("dht.tier.interval", 10);
+
+	// directory holding cold directories of servers, lookup directory itself
+	// if not set
+	private static final String COLD_DIRECTORY = System.getProperty("dht.tier.cold");
+
+	// reads per interval, decayed over past intervals, for a file to be hot
+	private static final double MIN_RATE = Double.parseDouble(System.getProperty("dht.tier.hot", "1"));
+	private static final double DECAY = 0.5;
+
+	private static final String COLD = ".cold";
+	private static final int MAGIC = 0x44485402;
+
+	/**
+	 * Reads of a file seen so far
+	 */
+	private static class Heat {
+		int count;
+		double rate;
+		long lastRead;
+	}
+
+	private File lookupDirectory;
+	private File coldDirectory;
+
+	// held while a stored file is replaced
+	private Object storeLock;
+
+	// hot files held in memory, and number of updates of files so far, a
+	// copy read before an update not being held
+	private HashMap<String, ByteBuffer> memory;
+	private long memoryBytes;
+	private long updates;
+
+	private HashMap<String, Heat> heat;
+	private long started;
+
+	/**
+	 * Create tiers of the files of a server
+	 * 
+	 * @param directory
+	 *            : lookup directory of the server
+	 * @param storeLock
+	 *            : lock held by the server while a stored file is replaced
+	 */
+	public TieredStore(String directory, Object storeLock) {
+		this.lookupDirectory = new File(directory);
+		this.coldDirectory = COLD_DIRECTORY != null ? new File(COLD_DIRECTORY, lookupDirectory.getName())
+				: new File(directory + COLD);
+		coldDirectory.mkdirs();
+		this.storeLock = storeLock;
+		memory = new HashMap<>();
+		heat = new HashMap<>();
+		started = System.currentTimeMillis();
+	}
+
+	/**
+	 * Read a byte range of a file held in memory. A range running past the
+	 * end of file is cut short at the end of file.
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param offset
+	 *            : position of first byte to be read
+	 * @param length
+	 *            : number of bytes to be read
+	 * @return bytes of requested range, null if file is not held in memory
+	 */
+	public byte[] read(String fileName, long offset, int length) {
+		ByteBuffer buffer;
+		synchronized (memory) {
+			buffer = memory.get(fileName);
+		}
+		if (buffer == null)
+			return null;
+
+		ByteBuffer view = buffer.duplicate();
+		view.position((int) Math.min(offset, view.limit()));
+		byte[] data = new byte[Math.min(length, view.remaining())];
+		view.get(data);
+		return data;
+	}
+
+	/**
+	 * Check if a file is held in memory
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return true if reads of the file are served from memory
+	 */
+	public boolean isHot(String fileName) {
+		synchronized (memory) {
+			return memory.containsKey(fileName);
+		}
+	}
+
+	/**
+	 * Return number of updates of files so far, to be passed to
+	 * {@link #hold(String, byte[], long)} along with data read afterwards
+	 * 
+	 * @return number of updates
+	 */
+	public long getUpdates() {
+		synchronized (memory) {
+			return updates;
+		}
+	}
+
+	/**
+	 * Hold a file in memory, unless a file was updated since it was read or
+	 * memory is full
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @param data
+	 *            : whole file data
+	 * @param updates
+	 *            : number of updates before the data was read
+	 * @return true if the file is held
+	 */
+	public boolean hold(String fileName, byte[] data, long updates) {
+		synchronized (memory) {
+			if (updates != this.updates || memory.containsKey(fileName) || memoryBytes + data.length > MEMORY_BYTES)
+				return false;
+			ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+			buffer.put(data);
+			buffer.flip();
+			memory.put(fileName, buffer);
+			memoryBytes += data.length;
+			return true;
+		}
+	}
+
+	/**
+	 * Release files held in memory which are no longer hot
+	 * 
+	 * @param hot
+	 *            : files to be kept in memory
+	 */
+	public void retain(Collection<String> hot) {
+		synchronized (memory) {
+			Iterator<Map.Entry<String, ByteBuffer>> it = memory.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, ByteBuffer> entry = it.next();
+				if (!hot.contains(entry.getKey())) {
+					memoryBytes -= entry.getValue().capacity();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return bytes of files held in memory
+	 * 
+	 * @return bytes held
+	 */
+	public long getMemoryBytes() {
+		synchronized (memory) {
+			return memoryBytes;
+		}
+	}
+
+	/**
+	 * Forget copies of a file in memory and in cold tier, once the file is
+	 * written or removed
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 */
+	public void updated(String fileName) {
+		synchronized (memory) {
+			updates++;
+			ByteBuffer buffer = memory.remove(fileName);
+			if (buffer != null)
+				memoryBytes -= buffer.capacity();
+		}
+		getColdFile(fileName).delete();
+	}
+
+	/**
+	 * Return the file holding cold copy of a file
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return file in cold directory
+	 */
+	private File getColdFile(String fileName) {
+		return new File(coldDirectory, fileName);
+	}
+
+	/**
+	 * Check if a file is held in cold tier
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return true if the file is cold
+	 */
+	public boolean isCold(String fileName) {
+		return getColdFile(fileName).exists();
+	}
+
+	/**
+	 * Return size of a file held in cold tier
+	 * 
+	 * @param fileName
+	 *            : name of file
+	 * @return size of file data, -1 if file is not cold
+	 */
+	public long getColdSize(String fileName) {
+		try {
+			DataInputStream input = new DataInputStream(new FileInputStream(getColdFile(fileName)));
+			try {
+				if (input.readInt() != MAGIC)
+					return -1;
+				return input.readLong();
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Return names of files held in cold tier
+	 * 
+	 * @return names of cold files
+	 */
+	public ArrayList<String> getColdFileNames() {
+		ArrayList<String> names = new ArrayList<>();
+		File[] files = coldDirectory.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.isFile() && !file.getName().startsWith("."))
+					names.add(file.getName());
+		return names;
+	}
+
+	/**
+	 * Move a plain file to cold tier, compressing it a chunk at a time. The
+	 * file is left where it is if it is written while being compressed.
+	 * 
+	 * @param file
+	 *            : plain file in lookup directory
+	 * @return true if the file is now cold
+	 * @throws IOException
+	 */
+	public boolean freeze(File file) throws IOException {
+		long modified = file.lastModified(), size = file.length();
+		File partial = new File(coldDirectory, "." + file.getName() + ".freeze");
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+		boolean frozen = false;
+		try {
+			output.writeInt(MAGIC);
+			output.writeLong(size);
+			for (long written = 0; written < size; written += Chunk.SIZE) {
+				byte[] block = new byte[(int) Math.min(Chunk.SIZE, size - written)];
+				input.readFully(block);
+				byte[] compressed = Compression.shrink(block);
+				output.writeBoolean(compressed != null);
+				output.writeInt(compressed != null ? compressed.length : block.length);
+				output.write(compressed != null ? compressed : block);
+			}
+			frozen = true;
+		} finally {
+			input.close();
+			output.close();
+			if (!frozen)
+				partial.delete();
+		}
+
+		synchronized (storeLock) {
+			if (file.lastModified() != modified || file.length() != size) {
+				partial.delete();
+				return false;
+			}
+			Files.move(partial.toPath(), getColdFile(file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			file.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Bring a cold file back to lookup directory
+	 * 
+	 * @param file
+	 *            : file in lookup directory
+	 * @throws IOException
+	 */
+	public synchronized void thaw(File file) throws IOException {
+		File cold = getColdFile(file.getName());
+		if (file.exists() || !cold.exists())
+			return;
+
+		File partial = new File(lookupDirectory, "." + file.getName() + ".thaw");
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cold)));
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(partial));
+		boolean thawed = false;
+		try {
+			if (input.readInt() != MAGIC)
+				throw new IOException("Not a cold file : " + cold);
+			long size = input.readLong();
+			for (long written = 0; written < size; written += Chunk.SIZE) {
+				int length = (int) Math.min(Chunk.SIZE, size - written);
+				boolean compressed = input.readBoolean();
+				byte[] block = new byte[input.readInt()];
+				input.readFully(block);
+				output.write(compressed ? Compression.decompress(block, length) : block);
+			}
+			thawed = true;
+		} catch (IllegalStateException e) {
+			throw new IOException("Corrupt cold file : " + cold, e);
+		} finally {
+			input.close();
+			output.close();
+			if (!thawed)
+				partial.delete();
+		}
+
+		synchronized (storeLock) {
+			if (file.exists() || !cold.exists()) {
+				partial.delete();
+				return;
+			}
+			Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			cold.delete();
+		}
+	}
+
+	/**
+	 * Update reads of files from their popularity counts, which only grow
+	 * until a file is written again
+	 * 
+	 * @param popularity
+	 *            : popularity count of every file held
+	 */
+	public void updateHeat(Map<String, Integer> popularity) {
+		long now = System.currentTimeMillis();
+		synchronized (heat) {
+			heat.keySet().retainAll(popularity.keySet());
+			for (Map.Entry<String, Integer> entry : popularity.entrySet()) {
+				Heat file = heat.get(entry.getKey());
+				if (file == null) {
+					file = new Heat();
+					heat.put(entry.getKey(), file);
+				}
+				int reads = entry.getValue() - file.count;
+				if (reads < 0)
+					reads = entry.getValue();
+				file.rate = file.rate * DECAY + reads;
+				file.count = entry.getValue();
+				if (reads > 0)
+					file.lastRead = now;
+			}
+		}
+	}
+
+	/**
+	 * Return files read often enough to be held in memory
+	 * 
+	 * @return hot files, most read first
+	 */
+	public ArrayList<String> getHotFiles() {
+		final HashMap<String, Double> rates = new HashMap<>();
+		synchronized (heat) {
+			for (Map.Entry<String, Heat> entry : heat.entrySet())
+				if (entry.getValue().rate >= MIN_RATE)
+					rates.put(entry.getKey(), entry.getValue().rate);
+		}
+		ArrayList<String> hot = new ArrayList<>(rates.keySet());
+		Collections.sort(hot, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Double.compare(rates.get(b), rates.get(a));
+			}
+		});
+		return hot;
+	}
+
+	/**
+	 * Check if a file has been neither read nor written for long enough to
+	 * be moved to cold tier
+	 * 
+	 * @param file
+	 *            : plain file in lookup directory
+	 * @return true if the file is to be cold
+	 */
+	public boolean isIdle(File file) {
+		if (COLD_AGE <= 0)
+			return false;
+		long used = Math.max(started, file.lastModified());
+		synchronized (heat) {
+			Heat reads = heat.get(file.getName());
+			if (reads != null)
+				used = Math.max(used, reads.lastRead);
+		}
+		return System.currentTimeMillis() - used > COLD_AGE * 1000L;
+	}
+}
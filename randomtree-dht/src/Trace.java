@@ -1,23 +1,75 @@
 import java.io.Serializable;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.ListIterator;
 
 /**
  * Trace class represents a trace of request being served on a distributed
  * systems network. Each server node adds its details to the trace for a file
- * search or download request.
- * 
+ * search or download request, along with the type of work done and how long
+ * it took, so that latency of a request can be broken down hop by hop.
+ *
  * @author Anurag Malik, am3926
  *
  */
 public class Trace implements Serializable {
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 	private boolean status;
-	private ArrayList<String> trace;
+	private ArrayList<Hop> trace;
+
+	/**
+	 * Type of work recorded by an entry of the trace
+	 */
+	public enum HopType {
+		// RMI lookup of the next server
+		LOOKUP,
+		// request handled and forwarded to parent node
+		FORWARD,
+		// requested data read from disk
+		DISK_READ,
+		// requested data pushed onto client
+		PUSH
+	}
+
+	/**
+	 * One entry of the trace : host name of a server, type of work it did,
+	 * wall clock time it started at in microseconds since epoch and its
+	 * duration in nanoseconds.
+	 */
+	public static class Hop implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private String hostname;
+		private HopType type;
+		private long timestamp;
+		private long duration;
+
+		Hop(String hostname, HopType type, long timestamp, long duration) {
+			this.hostname = hostname;
+			this.type = type;
+			this.timestamp = timestamp;
+			this.duration = duration;
+		}
+
+		public String getHostname() {
+			return hostname;
+		}
+
+		public HopType getType() {
+			return type;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+	}
 
 	public Trace() {
 		status = false;
-		trace = new ArrayList<String>();
+		trace = new ArrayList<Hop>();
 	}
 
 	/**
@@ -30,12 +82,57 @@ public class Trace implements Serializable {
 		this.status = status;
 	}
 
+	/**
+	 * Return status of the trace, true if the file is found
+	 * @return
+	 */
+	public boolean getStatus() {
+		return status;
+	}
+
 	/**
 	 * Add host name of a server who received a file search request.
 	 * @param hostname
 	 */
 	public void addToTrace(String hostname) {
-		trace.add(hostname);
+		addToTrace(hostname, HopType.FORWARD, 0);
+	}
+
+	/**
+	 * Add an entry for work done by a server which has just finished.
+	 * @param hostname
+	 *            : host name of the server
+	 * @param type
+	 *            : type of work done
+	 * @param duration
+	 *            : time taken in nanoseconds
+	 */
+	public void addToTrace(String hostname, HopType type, long duration) {
+		Instant now = Instant.now();
+		long timestamp = now.getEpochSecond() * 1000000 + now.getNano() / 1000 - duration / 1000;
+		trace.add(new Hop(hostname, type, timestamp, duration));
+	}
+
+	/**
+	 * Return all entries of the trace, in the order they were added.
+	 * @return
+	 */
+	public ArrayList<Hop> getHops() {
+		return new ArrayList<Hop>(trace);
+	}
+
+	/**
+	 * Return number of nodes which handled the request, every node forwarding
+	 * it and the node serving it. A server holding several nodes of the tree
+	 * is counted once for each of them.
+	 * @return
+	 */
+	public int getHopCount() {
+		int hops = 0;
+		for (Hop hop : trace)
+			if (hop.type == HopType.FORWARD || hop.type == HopType.DISK_READ)
+				hops++;
+		return hops;
 	}
 
 	/**
@@ -48,9 +145,11 @@ public class Trace implements Serializable {
 			return trace;
 
 		trace = "*** RESPONSE ***\nStatus : File Found\nTrace :\n\t";
-		ListIterator<String> iterator = this.trace.listIterator();
-		while (iterator.hasNext())
-			trace += iterator.next() + "\n\t";
+		ListIterator<Hop> iterator = this.trace.listIterator();
+		while (iterator.hasNext()) {
+			Hop hop = iterator.next();
+			trace += String.format("%s %s %.3fms", hop.hostname, hop.type, hop.duration / 1e6) + "\n\t";
+		}
 
 		return trace;
 	}
@@ -0,0 +1,169 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * VersionVector identifies a version of a file by one counter per server
+ * which accepted a write of it, that is per root node of the trees it was
+ * uploaded to. Two versions are ordered if every counter of one is at most
+ * the counter of the other, so that a replica can tell whether the copy it
+ * holds is older than a version it has been told about, and versions written
+ * independently through different trees show up as concurrent rather than
+ * one silently replacing the other. Version vectors are immutable.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class VersionVector implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Order of two versions of a file
+	 */
+	public enum Order {
+		BEFORE, EQUAL, AFTER, CONCURRENT
+	}
+
+	private TreeMap<String, Long> counters;
+
+	public VersionVector() {
+		this.counters = new TreeMap<>();
+	}
+
+	private VersionVector(TreeMap<String, Long> counters) {
+		this.counters = counters;
+	}
+
+	/**
+	 * Return version following this one after a write accepted by a server.
+	 * The counter of the server is taken from its clock when that is ahead,
+	 * so that counters keep growing across restarts of the server.
+	 * 
+	 * @param server
+	 *            : server accepting the write
+	 * @return next version
+	 */
+	public VersionVector increment(String server) {
+		TreeMap<String, Long> next = new TreeMap<>(counters);
+		next.put(server, Math.max(get(server) + 1, System.currentTimeMillis()));
+		return new VersionVector(next);
+	}
+
+	/**
+	 * Return smallest version following both this one and another
+	 * 
+	 * @param other
+	 *            : version merged with this one
+	 * @return merged version
+	 */
+	public VersionVector merge(VersionVector other) {
+		TreeMap<String, Long> merged = new TreeMap<>(counters);
+		for (Map.Entry<String, Long> entry : other.counters.entrySet())
+			merged.put(entry.getKey(), Math.max(get(entry.getKey()), entry.getValue()));
+		return new VersionVector(merged);
+	}
+
+	/**
+	 * Compare this version with another
+	 * 
+	 * @param other
+	 *            : version compared with
+	 * @return BEFORE if this version is older than the other one
+	 */
+	public Order compare(VersionVector other) {
+		boolean before = false, after = false;
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			long theirs = other.get(entry.getKey());
+			before |= entry.getValue() < theirs;
+			after |= entry.getValue() > theirs;
+		}
+		for (Map.Entry<String, Long> entry : other.counters.entrySet())
+			before |= get(entry.getKey()) < entry.getValue();
+
+		if (before && after)
+			return Order.CONCURRENT;
+		return before ? Order.BEFORE : after ? Order.AFTER : Order.EQUAL;
+	}
+
+	/**
+	 * Check if this version is older than another, which is then to be read
+	 * instead of it
+	 * 
+	 * @param other
+	 *            : version compared with, null for none
+	 * @return true if the other version follows this one
+	 */
+	public boolean isBefore(VersionVector other) {
+		return other != null && compare(other) == Order.BEFORE;
+	}
+
+	/**
+	 * Return counter of a server
+	 * 
+	 * @param server
+	 *            : server accepting writes
+	 * @return counter of the server, 0 if it accepted no write
+	 */
+	public long get(String server) {
+		Long counter = counters.get(server);
+		return counter != null ? counter : 0;
+	}
+
+	/**
+	 * Check if no write of this version is known, as for a copy stored
+	 * before versions were kept
+	 * 
+	 * @return true if every counter is 0
+	 */
+	public boolean isEmpty() {
+		return counters.isEmpty();
+	}
+
+	/**
+	 * Write this version in binary form
+	 * 
+	 * @param output
+	 *            : stream written to
+	 * @throws IOException
+	 */
+	public void write(DataOutput output) throws IOException {
+		output.writeInt(counters.size());
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			output.writeUTF(entry.getKey());
+			output.writeLong(entry.getValue());
+		}
+	}
+
+	/**
+	 * Read a version written by {@link #write(DataOutput)}
+	 * 
+	 * @param input
+	 *            : stream read from
+	 * @return version read
+	 * @throws IOException
+	 */
+	public static VersionVector read(DataInput input) throws IOException {
+		TreeMap<String, Long> counters = new TreeMap<>();
+		for (int n = input.readInt(); n > 0; n--)
+			counters.put(input.readUTF(), input.readLong());
+		return new VersionVector(counters);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof VersionVector && counters.equals(((VersionVector) other).counters);
+	}
+
+	@Override
+	public int hashCode() {
+		return counters.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return counters.toString();
+	}
+}
@@ -0,0 +1,55 @@
+import java.util.Random;
+
+/**
+ * ZipfGenerator draws item ranks following a Zipf distribution, where the
+ * probability of item k is proportional to 1 / k^s. Item 0 is the most
+ * popular one. Cumulative probabilities are computed once, so each draw is a
+ * binary search.
+ * 
+ * @author Anurag Malik, am3926
+ *
+ */
+public class ZipfGenerator {
+
+	private double[] cumulative;
+
+	/**
+	 * Create a generator for a number of items.
+	 * 
+	 * @param items
+	 *            : number of items
+	 * @param exponent
+	 *            : skew of the distribution, 0 for uniform
+	 */
+	public ZipfGenerator(int items, double exponent) {
+		cumulative = new double[items];
+		double sum = 0;
+		for (int k = 0; k < items; k++) {
+			sum += 1 / Math.pow(k + 1, exponent);
+			cumulative[k] = sum;
+		}
+		for (int k = 0; k < items; k++)
+			cumulative[k] /= sum;
+	}
+
+	/**
+	 * Draw an item
+	 * 
+	 * @param random
+	 *            : source of randomness, one per thread
+	 * @return rank of the item drawn, starting from 0
+	 */
+	public int next(Random random) {
+		double value = random.nextDouble();
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cumulative[mid] < value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}